@@ -69,7 +69,7 @@ public class VideoPlugin implements SpyPlugin
         public void messageReceived(LCM lcm, String channel, LCMDataInputStream ins)
         {
             try {
-                image_t v = new image_t(ins);
+                image_t_view v = new image_t_view(ins);
                 BufferedImage bi = image_t_util.decode(v);
                 ji.setImage(bi);
             } catch (IOException ex) {
@@ -60,6 +60,17 @@ public class image_t_util
         }
     }
 
+    /** Decode an image without copying it out of the message first
+     * when it is a JPEG; other formats are decoded from an image_t.
+     **/
+    public static BufferedImage decode(image_t_view v) throws IOException
+    {
+        if (v.getPixelformat() == FORMAT_JPEG)
+            return ImageIO.read(new ByteArrayInputStream(v.getBuffer(), v.getImageOffset(), v.getSize()));
+
+        return decode(v.decode());
+    }
+
     public static BufferedImage decode(image_t v) throws IOException
     {
         switch (v.pixelformat) {
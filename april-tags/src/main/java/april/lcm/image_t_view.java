@@ -0,0 +1,86 @@
+package april.lcm;
+
+import java.io.*;
+import java.nio.*;
+
+import lcm.lcm.*;
+
+import april.lcmtypes.image_t;
+
+/** Reads an encoded image_t in place. The header fields cost a few
+ * loads each and the pixels are not copied, so a consumer that only
+ * needs the timestamp or the size of a frame, or that skips frames,
+ * does not pay for the image.
+ **/
+public final class image_t_view extends LCMView
+{
+    static final int UTIME = 8;
+    static final int WIDTH = 16;
+    static final int HEIGHT = 18;
+    static final int STRIDE = 20;
+    static final int PIXELFORMAT = 22;
+    static final int SIZE = 26;
+    static final int IMAGE = 30;
+
+    public image_t_view(byte buf[], int offset, int length) throws IOException
+    {
+        super(buf, offset, length, image_t.LCM_FINGERPRINT);
+        need(IMAGE, 0);
+        need(IMAGE, getSize());
+    }
+
+    public image_t_view(LCMDataInputStream ins) throws IOException
+    {
+        super(ins, image_t.LCM_FINGERPRINT);
+        need(IMAGE, 0);
+        need(IMAGE, getSize());
+    }
+
+    public long getUtime()
+    {
+        return getLong(UTIME);
+    }
+
+    public short getWidth()
+    {
+        return getShort(WIDTH);
+    }
+
+    public short getHeight()
+    {
+        return getShort(HEIGHT);
+    }
+
+    public short getStride()
+    {
+        return getShort(STRIDE);
+    }
+
+    public int getPixelformat()
+    {
+        return getInt(PIXELFORMAT);
+    }
+
+    public int getSize()
+    {
+        return getInt(SIZE);
+    }
+
+    /** The pixels, without copying them. **/
+    public ByteBuffer getImage()
+    {
+        return slice(IMAGE, getSize());
+    }
+
+    /** Index of the first pixel byte in getBuffer(). **/
+    public int getImageOffset()
+    {
+        return offset + IMAGE;
+    }
+
+    /** Decode the whole message. **/
+    public image_t decode() throws IOException
+    {
+        return new image_t(getInputStream());
+    }
+}
@@ -0,0 +1,58 @@
+package april.lcm;
+
+import java.io.*;
+import java.nio.*;
+
+import lcm.lcm.*;
+
+import april.lcmtypes.velodyne_t;
+
+/** Reads an encoded velodyne_t in place, without copying the packet. **/
+public final class velodyne_t_view extends LCMView
+{
+    static final int UTIME = 8;
+    static final int DATALEN = 16;
+    static final int DATA = 20;
+
+    public velodyne_t_view(byte buf[], int offset, int length) throws IOException
+    {
+        super(buf, offset, length, velodyne_t.LCM_FINGERPRINT);
+        need(DATA, 0);
+        need(DATA, getDatalen());
+    }
+
+    public velodyne_t_view(LCMDataInputStream ins) throws IOException
+    {
+        super(ins, velodyne_t.LCM_FINGERPRINT);
+        need(DATA, 0);
+        need(DATA, getDatalen());
+    }
+
+    public long getUtime()
+    {
+        return getLong(UTIME);
+    }
+
+    public int getDatalen()
+    {
+        return getInt(DATALEN);
+    }
+
+    /** The packet, without copying it. **/
+    public ByteBuffer getData()
+    {
+        return slice(DATA, getDatalen());
+    }
+
+    /** Index of the first packet byte in getBuffer(). **/
+    public int getDataOffset()
+    {
+        return offset + DATA;
+    }
+
+    /** Decode the whole message. **/
+    public velodyne_t decode() throws IOException
+    {
+        return new velodyne_t(getInputStream());
+    }
+}
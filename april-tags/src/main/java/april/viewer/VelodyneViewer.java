@@ -18,6 +18,7 @@ import april.velodyne.*;
 
 import lcm.lcm.*;
 import april.lcmtypes.*;
+import april.lcm.*;
 import april.jmat.*;
 import april.vis.*;
 
@@ -84,12 +85,15 @@ public class VelodyneViewer implements ViewObject, LCMSubscriber
     {
         if (channel.equals(this.channel))
         {
-            velodyne_t vdata = new velodyne_t(ins);
-            pose_t pose = pt.get(vdata.utime);
+            // don't copy the packet until we know we can place it
+            velodyne_t_view vdata = new velodyne_t_view(ins);
+            pose_t pose = pt.get(vdata.getUtime());
             if (pose == null)
                 return;
             VisWorld.Buffer vb = vw.getBuffer(this.channel);
-            Velodyne v = new Velodyne(calib, vdata.data);
+            byte data[] = new byte[vdata.getDatalen()];
+            vdata.getData().get(data);
+            Velodyne v = new Velodyne(calib, data);
             Velodyne.Sample vs = new Velodyne.Sample();
             // ArrayList<double[]> points = new ArrayList<double[]>();
             double B2G[][] = LinAlg.quatPosToMatrix(pose.orientation, pose.pos);
@@ -0,0 +1,202 @@
+package lcm.lcm;
+
+/**
+ * Delivers messages to an {@link LCMSubscriber} on a dedicated worker
+ * thread.
+ * <p>
+ * Normally subscribers run on the provider's receive thread, so one
+ * slow subscriber delays every other subscriber and can cause the
+ * provider to lose packets. An AsyncSubscriber retains each message
+ * (see {@link LCMDataInputStream#retainBuffer}) in its own bounded
+ * queue and returns immediately; a worker thread then hands the
+ * messages to the wrapped subscriber in order.
+ * <p>
+ * When the queue is full, the {@link Policy} decides whether the
+ * oldest queued message is discarded or the provider thread waits for
+ * room. Discarded messages are counted.
+ * <p>
+ * Instances are normally created with {@link LCM#subscribeAsync}.
+ */
+public class AsyncSubscriber implements LCMSubscriber
+{
+    /** What to do when a message arrives and the queue is full. **/
+    public enum Policy { DROP_OLDEST, BLOCK };
+
+    final LCMSubscriber sub;
+    final Policy policy;
+
+    // circular queue of pending messages
+    final String    channels[];
+    final LCMBuffer bufs[];
+    int head, size;
+
+    long ndelivered, ndropped;
+    boolean closed;
+
+    LCM lcm;
+    WorkerThread worker;
+
+    /**
+     * @param sub the subscriber to run on the worker thread.
+     * @param maxMessages number of messages that may be queued.
+     * @param policy what to do when the queue is full.
+     */
+    public AsyncSubscriber(LCMSubscriber sub, int maxMessages, Policy policy)
+    {
+        if (maxMessages < 1)
+            throw new IllegalArgumentException("maxMessages must be at least 1");
+
+        this.sub = sub;
+        this.policy = policy;
+        this.channels = new String[maxMessages];
+        this.bufs = new LCMBuffer[maxMessages];
+
+        worker = new WorkerThread();
+        worker.start();
+    }
+
+    /** Internal method, called by LCM when a message is received. **/
+    public void messageReceived(LCM lcm, String channel, LCMDataInputStream ins)
+    {
+        // the provider may reuse its buffer as soon as we return.
+        LCMBuffer buf = ins.retainBuffer();
+
+        synchronized(this) {
+            this.lcm = lcm;
+
+            if (policy == Policy.BLOCK) {
+                while (size == bufs.length && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        buf.release();
+                        return;
+                    }
+                }
+            }
+
+            if (closed) {
+                buf.release();
+                return;
+            }
+
+            if (size == bufs.length) {
+                // DROP_OLDEST
+                bufs[head].release();
+                channels[head] = null;
+                bufs[head] = null;
+                head = (head + 1) % bufs.length;
+                size--;
+                ndropped++;
+            }
+
+            int idx = (head + size) % bufs.length;
+            channels[idx] = channel;
+            bufs[idx] = buf;
+            size++;
+
+            notifyAll();
+        }
+    }
+
+    /** Returns the wrapped subscriber. **/
+    public LCMSubscriber getSubscriber()
+    {
+        return sub;
+    }
+
+    /** Returns the number of messages waiting to be delivered. **/
+    public synchronized int getQueueLength()
+    {
+        return size;
+    }
+
+    /** Returns the number of messages handed to the subscriber so far. **/
+    public synchronized long getNumDelivered()
+    {
+        return ndelivered;
+    }
+
+    /** Returns the number of messages discarded because the queue was full. **/
+    public synchronized long getNumDropped()
+    {
+        return ndropped;
+    }
+
+    /** Stops the worker thread. Messages still queued are discarded,
+     * and any provider thread blocked on a full queue is released.
+     **/
+    public void close()
+    {
+        synchronized(this) {
+            closed = true;
+
+            for (; size > 0; size--) {
+                bufs[head].release();
+                channels[head] = null;
+                bufs[head] = null;
+                head = (head + 1) % bufs.length;
+            }
+
+            notifyAll();
+        }
+
+        if (Thread.currentThread() != worker) {
+            try {
+                worker.join();
+            } catch (InterruptedException ex) {
+            }
+        }
+    }
+
+    class WorkerThread extends Thread
+    {
+        WorkerThread()
+        {
+            setDaemon(true);
+            setName("LCM AsyncSubscriber");
+        }
+
+        public void run()
+        {
+            while (true) {
+                LCM lcm;
+                String channel;
+                LCMBuffer buf;
+
+                synchronized(AsyncSubscriber.this) {
+                    while (size == 0 && !closed) {
+                        try {
+                            AsyncSubscriber.this.wait();
+                        } catch (InterruptedException ex) {
+                        }
+                    }
+
+                    if (closed)
+                        return;
+
+                    lcm = AsyncSubscriber.this.lcm;
+                    channel = channels[head];
+                    buf = bufs[head];
+                    channels[head] = null;
+                    bufs[head] = null;
+                    head = (head + 1) % bufs.length;
+                    size--;
+                    ndelivered++;
+
+                    // wake up a provider waiting for room.
+                    AsyncSubscriber.this.notifyAll();
+                }
+
+                try {
+                    sub.messageReceived(lcm, channel, buf.getInputStream());
+                } catch (RuntimeException ex) {
+                    System.err.println("LCM AsyncSubscriber ex: "+ex);
+                } finally {
+                    buf.release();
+                }
+            }
+        }
+    }
+}
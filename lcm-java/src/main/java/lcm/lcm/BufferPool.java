@@ -0,0 +1,113 @@
+package lcm.lcm;
+
+import java.util.*;
+
+/** A thread-safe pool of byte arrays, kept in power-of-two size
+ * classes. get() returns an array at least as large as requested;
+ * arrays handed back with put() are reused by later calls.
+ *
+ * Up to maxPerClass arrays are retained in each class up to 1 MB, but
+ * only one in each class above that, and arrays larger than 16 MB are
+ * not retained at all. So the pool holds at most 30 MB of large
+ * arrays, plus about maxPerClass * 2 MB in the classes up to 1 MB
+ * (32 MB with the default of 16), whatever size of messages it has
+ * seen.
+ **/
+public class BufferPool
+{
+    static final int MIN_CLASS = 8;  // 256 bytes
+    static final int MAX_CLASS = 30; // 1 GB
+    static final int LARGE_CLASS = 20; // 1 MB: above this, retain one array
+    static final int MAX_POOLED_CLASS = 24; // 16 MB: above this, retain none
+
+    @SuppressWarnings("unchecked")
+    final ArrayList<byte[]> free[] = (ArrayList<byte[]>[]) new ArrayList<?>[MAX_CLASS + 1];
+
+    final int maxPerClass;
+
+    long nallocated, nreused;
+
+    public BufferPool()
+    {
+        this(16);
+    }
+
+    /** @param maxPerClass number of arrays retained per size class,
+     * for classes up to 1 MB.
+     **/
+    public BufferPool(int maxPerClass)
+    {
+        this.maxPerClass = maxPerClass;
+        for (int i = 0; i < free.length; i++)
+            free[i] = new ArrayList<byte[]>();
+    }
+
+    static int sizeClass(int size)
+    {
+        int c = 32 - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1);
+        return Math.max(c, MIN_CLASS);
+    }
+
+    /** Returns an array of at least size bytes. Its contents are
+     * undefined.
+     **/
+    public byte[] get(int size)
+    {
+        int c = sizeClass(size);
+        if (c > MAX_CLASS)
+            throw new IllegalArgumentException("BufferPool: buffer too large: "+size);
+
+        synchronized(this) {
+            ArrayList<byte[]> list = free[c];
+            if (!list.isEmpty()) {
+                nreused++;
+                return list.remove(list.size() - 1);
+            }
+            nallocated++;
+        }
+
+        return new byte[1 << c];
+    }
+
+    /** Lease a reference-counted buffer of length bytes. The caller
+     * holds one reference and must release() it.
+     **/
+    public LCMBuffer lease(int length)
+    {
+        return new LCMBuffer(this, get(length), 0, length);
+    }
+
+    /** Return an array to the pool. Arrays that were not obtained
+     * from get() are accepted if their length is a power of two, and
+     * otherwise ignored; so are arrays over 16 MB.
+     **/
+    public void put(byte b[])
+    {
+        if (b == null || Integer.bitCount(b.length) != 1 || b.length < (1 << MIN_CLASS))
+            return;
+
+        int c = sizeClass(b.length);
+        if (c > MAX_POOLED_CLASS)
+            return;
+
+        int max = c > LARGE_CLASS ? 1 : maxPerClass;
+
+        synchronized(this) {
+            ArrayList<byte[]> list = free[c];
+            if (list.size() < max)
+                list.add(b);
+        }
+    }
+
+    /** Number of get() calls that had to allocate a new array. **/
+    public synchronized long getNumAllocated()
+    {
+        return nallocated;
+    }
+
+    /** Number of get() calls satisfied from the pool. **/
+    public synchronized long getNumReused()
+    {
+        return nreused;
+    }
+}
@@ -0,0 +1,211 @@
+package lcm.lcm;
+
+import java.lang.reflect.Array;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.regex.*;
+
+/** An immutable set of (regex, value) subscriptions that answers
+ * "which values match this channel?" cheaply enough to be asked for
+ * every message.
+ *
+ * Subscriptions that contain no regex metacharacters can only match
+ * one channel name, and are found with a hash lookup instead of being
+ * run as patterns. The result for each channel is cached, so the
+ * patterns are only run the first time a channel is seen. add() and
+ * remove() return a new index (with an empty cache) and leave this one
+ * unchanged, so readers need no locks: publish the new index through a
+ * volatile field.
+ *
+ * Results are in subscription order. A value that matches a channel
+ * through several subscriptions appears once, at its first position.
+ **/
+public final class ChannelIndex<T>
+{
+    /** Once this many channels are cached, further results are
+     * computed on every call rather than cached, so a stream of
+     * unique channel names cannot grow the cache without bound.
+     **/
+    static final int MAX_CACHED_CHANNELS = 16384;
+
+    static final class Entry<T>
+    {
+        final String  regex;
+        final Pattern pat; // null for a literal channel name
+        final T       value;
+
+        Entry(String regex, Pattern pat, T value)
+        {
+            this.regex = regex;
+            this.pat = pat;
+            this.value = value;
+        }
+    }
+
+    final Class<T> type;
+    final T none[];
+    final Entry<T> entries[];
+
+    final ConcurrentHashMap<String, T[]> cache = new ConcurrentHashMap<String, T[]>();
+
+    // built on the first cache miss, so a burst of add() and remove()
+    // calls does not pay for it each time.
+    volatile Lookup lookup;
+
+    /** The positions in entries[] of the literal subscriptions for
+     * each channel name, and of all the regex subscriptions.
+     **/
+    static final class Lookup
+    {
+        final HashMap<String, int[]> literals = new HashMap<String, int[]>();
+        final int patterns[];
+
+        Lookup(Entry<?> entries[])
+        {
+            int npatterns = 0;
+            for (Entry<?> e : entries) {
+                if (e.pat != null)
+                    npatterns++;
+            }
+            patterns = new int[npatterns];
+
+            npatterns = 0;
+            for (int i = 0; i < entries.length; i++) {
+                Entry<?> e = entries[i];
+                if (e.pat != null) {
+                    patterns[npatterns++] = i;
+                    continue;
+                }
+
+                int pos[] = literals.get(e.regex);
+                pos = pos == null ? new int[1] : Arrays.copyOf(pos, pos.length + 1);
+                pos[pos.length - 1] = i;
+                literals.put(e.regex, pos);
+            }
+        }
+    }
+
+    /** An empty index. The type is needed to create result arrays. **/
+    public ChannelIndex(Class<T> type)
+    {
+        this(type, ChannelIndex.<T>newEntries(0));
+    }
+
+    @SuppressWarnings("unchecked")
+    ChannelIndex(Class<T> type, Entry<T> entries[])
+    {
+        this.type = type;
+        this.none = (T[]) Array.newInstance(type, 0);
+        this.entries = entries;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <T> Entry<T>[] newEntries(int n)
+    {
+        return (Entry<T>[]) new Entry<?>[n];
+    }
+
+    /** True if the regex matches exactly one string: itself. **/
+    public static boolean isLiteral(String regex)
+    {
+        for (int i = 0; i < regex.length(); i++) {
+            if ("\\^$.|?*+()[]{}".indexOf(regex.charAt(i)) >= 0)
+                return false;
+        }
+        return true;
+    }
+
+    /** Returns a new index with this subscription appended.
+     * @throws PatternSyntaxException if regex is not a valid pattern.
+     **/
+    public ChannelIndex<T> add(String regex, T value)
+    {
+        Pattern pat = isLiteral(regex) ? null : Pattern.compile(regex);
+
+        Entry<T> newEntries[] = Arrays.copyOf(entries, entries.length + 1);
+        newEntries[entries.length] = new Entry<T>(regex, pat, value);
+        return new ChannelIndex<T>(type, newEntries);
+    }
+
+    /** Returns a new index without the i'th subscription. **/
+    public ChannelIndex<T> remove(int i)
+    {
+        Entry<T> newEntries[] = newEntries(entries.length - 1);
+        System.arraycopy(entries, 0, newEntries, 0, i);
+        System.arraycopy(entries, i + 1, newEntries, i, entries.length - i - 1);
+        return new ChannelIndex<T>(type, newEntries);
+    }
+
+    /** Number of subscriptions. **/
+    public int size()
+    {
+        return entries.length;
+    }
+
+    public String getRegex(int i)
+    {
+        return entries[i].regex;
+    }
+
+    public T getValue(int i)
+    {
+        return entries[i].value;
+    }
+
+    /** The values whose regex matches the whole channel name. The
+     * returned array is shared and must not be modified.
+     **/
+    public T[] get(String channel)
+    {
+        T values[] = cache.get(channel);
+        if (values != null)
+            return values;
+
+        values = match(channel);
+        if (cache.size() < MAX_CACHED_CHANNELS) {
+            T prev[] = cache.putIfAbsent(channel, values);
+            if (prev != null)
+                return prev;
+        }
+        return values;
+    }
+
+    @SuppressWarnings("unchecked")
+    T[] match(String channel)
+    {
+        Lookup lookup = this.lookup;
+        if (lookup == null)
+            this.lookup = lookup = new Lookup(entries);
+
+        int patterns[] = lookup.patterns;
+        int lits[] = lookup.literals.get(channel);
+        int nlits = lits == null ? 0 : lits.length;
+
+        // merge the literal and pattern matches back into
+        // subscription order.
+        ArrayList<T> matches = new ArrayList<T>();
+        int li = 0;
+        for (int pi = 0; pi <= patterns.length; pi++) {
+            int next = pi < patterns.length ? patterns[pi] : entries.length;
+
+            while (li < nlits && lits[li] < next)
+                addUnique(matches, entries[lits[li++]].value);
+
+            if (pi < patterns.length && entries[next].pat.matcher(channel).matches())
+                addUnique(matches, entries[next].value);
+        }
+
+        if (matches.isEmpty())
+            return none;
+        return matches.toArray((T[]) Array.newInstance(type, matches.size()));
+    }
+
+    static <T> void addUnique(ArrayList<T> matches, T value)
+    {
+        for (int i = 0; i < matches.size(); i++) {
+            if (matches.get(i) == value)
+                return;
+        }
+        matches.add(value);
+    }
+}
@@ -0,0 +1,278 @@
+package lcm.lcm;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+/** Reassembles fragmented udpm messages (LC03 packets).
+ *
+ * Partially received messages are tracked per (sender, sequence
+ * number), so a publisher may interleave the fragments of several
+ * large messages. Fragments are copied straight from the packet into
+ * a pooled message buffer, and may arrive in any order. Completed
+ * messages are delivered in that buffer, so subscribers can retain
+ * them without another copy. Partial messages that see no new
+ * fragment for the timeout period are discarded. Completed messages
+ * are counted by the SequenceTracker, if one is set.
+ *
+ * A fragment announcing a message larger than the maximum message
+ * size is discarded before anything is allocated for it, so that a
+ * corrupt or hostile packet cannot make the reader allocate up to
+ * 2 GB per partial message.
+ *
+ * Not thread-safe: a reassembler belongs to one reader thread. The
+ * counters may be read from any thread.
+ **/
+public class FragmentReassembler
+{
+    static final int  MAX_PARTIALS_PER_SENDER = 16;
+    static final long DEFAULT_TIMEOUT_NS = 1000000000L;
+    static final int  DEFAULT_MAX_MESSAGE_SIZE = 64*1024*1024;
+
+    static class Partial
+    {
+        int     msgSeqNumber;
+        int     data_size;
+        int     nfragments;
+        int     fragments_remaining;
+        boolean frag_received[] = new boolean[8];
+        LCMBuffer data;
+        String  channel;
+        long    last_nanos;
+
+        void init(int msgSeqNumber, int data_size, int nfragments, LCMBuffer data)
+        {
+            this.msgSeqNumber = msgSeqNumber;
+            this.data_size = data_size;
+            this.nfragments = nfragments;
+            this.fragments_remaining = nfragments;
+            this.data = data;
+            this.channel = null;
+
+            if (frag_received.length < nfragments)
+                frag_received = new boolean[nfragments];
+            else
+                Arrays.fill(frag_received, 0, nfragments, false);
+        }
+    }
+
+    final LCM lcm;
+    final BufferPool pool;
+    SequenceTracker tracker;
+
+    HashMap<SocketAddress, ArrayList<Partial>> partials = new HashMap<SocketAddress, ArrayList<Partial>>();
+    ArrayList<Partial> freePartials = new ArrayList<Partial>();
+
+    long timeout_ns = DEFAULT_TIMEOUT_NS;
+    int max_message_size = DEFAULT_MAX_MESSAGE_SIZE;
+    long last_sweep_nanos = System.nanoTime();
+
+    volatile long ncompleted, nexpired, ncorrupted;
+
+    public FragmentReassembler(LCM lcm, BufferPool pool)
+    {
+        this.lcm = lcm;
+        this.pool = pool;
+    }
+
+    /** Partial messages that receive no fragment for this long are
+     * discarded. Default is one second.
+     **/
+    public void setTimeout(double seconds)
+    {
+        timeout_ns = (long) (seconds * 1E9);
+    }
+
+    /** Messages larger than this many bytes are discarded and counted
+     * as corrupted. Default is 64 MB.
+     **/
+    public void setMaxMessageSize(int bytes)
+    {
+        max_message_size = bytes;
+    }
+
+    /** Count completed messages with this tracker (null for none). **/
+    public void setSequenceTracker(SequenceTracker tracker)
+    {
+        this.tracker = tracker;
+    }
+
+    /** Number of messages fully reassembled and delivered. **/
+    public long getNumCompleted()
+    {
+        return ncompleted;
+    }
+
+    /** Number of partial messages discarded because they timed out or
+     * because the sender had too many messages in flight.
+     **/
+    public long getNumExpired()
+    {
+        return nexpired;
+    }
+
+    /** Number of messages discarded because of inconsistent fragments,
+     * or because they were larger than the maximum message size.
+     **/
+    public long getNumCorrupted()
+    {
+        return ncorrupted;
+    }
+
+    /** Handle one fragment. ins must be positioned just after the
+     * LC03 magic number.
+     **/
+    public void handleFragment(SocketAddress from, LCMDataInputStream ins) throws IOException
+    {
+        int msgSeqNumber = ins.readInt();
+        int msg_size = ins.readInt();
+        int fragment_offset = ins.readInt();
+        int fragment_id = ins.readShort() & 0xffff;
+        int fragments_in_msg = ins.readShort() & 0xffff;
+
+        byte buf[] = ins.getBuffer();
+        int payload_offset = ins.getBufferOffset();
+        int payload_len = ins.available();
+
+        long now = System.nanoTime();
+        if (now - last_sweep_nanos > timeout_ns / 2) {
+            expire(now);
+            last_sweep_nanos = now;
+        }
+
+        if (msg_size <= 0 || msg_size > max_message_size ||
+            fragments_in_msg == 0 || fragment_id >= fragments_in_msg ||
+            msg_size > fragments_in_msg * (long) UDPMulticastProvider.FRAGMENTATION_THRESHOLD) {
+            ncorrupted++;
+            return;
+        }
+
+        ArrayList<Partial> list = partials.get(from);
+        if (list == null) {
+            list = new ArrayList<Partial>();
+            partials.put(from, list);
+        }
+
+        Partial p = null;
+        for (int i = 0; i < list.size(); i++) {
+            if (list.get(i).msgSeqNumber == msgSeqNumber) {
+                p = list.get(i);
+                break;
+            }
+        }
+
+        if (p != null && (p.data_size != msg_size || p.nfragments != fragments_in_msg)) {
+            // same sequence number, different message: the sender
+            // restarted or the packet is garbage.
+            ncorrupted++;
+            release(list, p);
+            p = null;
+        }
+
+        if (p == null) {
+            if (list.size() >= MAX_PARTIALS_PER_SENDER) {
+                nexpired++;
+                release(list, oldest(list));
+            }
+
+            p = freePartials.isEmpty() ? new Partial() : freePartials.remove(freePartials.size() - 1);
+            p.init(msgSeqNumber, msg_size, fragments_in_msg, pool.lease(msg_size));
+            list.add(p);
+        }
+
+        p.last_nanos = now;
+
+        if (fragment_id == 0) {
+            // first fragment is special: channel name precedes the data
+            int channel_len = 0;
+            while (channel_len < payload_len && buf[payload_offset + channel_len] != 0)
+                channel_len++;
+
+            if (channel_len == payload_len) {
+                ncorrupted++;
+                release(list, p);
+                return;
+            }
+
+            if (p.channel == null)
+                p.channel = new String(buf, payload_offset, channel_len, "US-ASCII");
+
+            payload_offset += channel_len + 1;
+            payload_len -= channel_len + 1;
+        }
+
+        if (fragment_offset < 0 || fragment_offset + (long) payload_len > p.data_size) {
+            System.err.println ("LC: dropping invalid fragment");
+            ncorrupted++;
+            release(list, p);
+            return;
+        }
+
+        if (!p.frag_received[fragment_id]) {
+            p.frag_received[fragment_id] = true;
+            System.arraycopy(buf, payload_offset, p.data.getData(), fragment_offset, payload_len);
+            p.fragments_remaining--;
+        }
+
+        if (p.fragments_remaining == 0) {
+            // remove before delivering, in case a subscriber throws.
+            list.remove(p);
+            if (list.isEmpty())
+                partials.remove(from);
+
+            ncompleted++;
+            if (tracker != null)
+                tracker.record(from, p.msgSeqNumber, p.channel);
+            try {
+                lcm.receiveMessage(p.channel, p.data);
+            } finally {
+                recycle(p);
+            }
+        }
+    }
+
+    static Partial oldest(ArrayList<Partial> list)
+    {
+        Partial oldest = list.get(0);
+        for (Partial p : list) {
+            if (p.last_nanos - oldest.last_nanos < 0)
+                oldest = p;
+        }
+        return oldest;
+    }
+
+    void release(ArrayList<Partial> list, Partial p)
+    {
+        list.remove(p);
+        recycle(p);
+    }
+
+    void recycle(Partial p)
+    {
+        // subscribers may still hold references to the buffer
+        p.data.release();
+        p.data = null;
+        p.channel = null;
+        if (freePartials.size() < MAX_PARTIALS_PER_SENDER)
+            freePartials.add(p);
+    }
+
+    void expire(long now)
+    {
+        for (Iterator<ArrayList<Partial>> it = partials.values().iterator(); it.hasNext(); ) {
+            ArrayList<Partial> list = it.next();
+
+            for (int i = list.size() - 1; i >= 0; i--) {
+                Partial p = list.get(i);
+                if (now - p.last_nanos > timeout_ns) {
+                    nexpired++;
+                    list.remove(i);
+                    recycle(p);
+                }
+            }
+
+            if (list.isEmpty())
+                it.remove();
+        }
+    }
+}
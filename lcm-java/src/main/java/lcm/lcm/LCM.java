@@ -3,6 +3,7 @@ package lcm.lcm;
 import java.net.*;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.regex.*;
 import java.nio.*;
 
@@ -14,14 +15,22 @@ public class LCM
     static class SubscriptionRecord
     {
         String  regex;
-        Pattern pat;
         LCMSubscriber lcsub;
+        volatile LCMMetrics.SubscriptionMetrics metrics; // created when first measured
     }
 
-    ArrayList<SubscriptionRecord> subscriptions = new ArrayList<SubscriptionRecord>();
-    ArrayList<Provider> providers = new ArrayList<Provider>();
+    /** All subscriptions. Replaced (copy-on-write) whenever a
+     * subscription is added or removed, so receiveMessage() can read
+     * it without locking; the index caches which subscriptions match
+     * each channel until then.
+     **/
+    volatile ChannelIndex<SubscriptionRecord> subscriptions =
+        new ChannelIndex<SubscriptionRecord>(SubscriptionRecord.class);
 
-    HashMap<String,ArrayList<SubscriptionRecord>> subscriptionsMap = new HashMap<String,ArrayList<SubscriptionRecord>>();
+    // serializes writers of subscriptions; readers never take it.
+    Object subscriptionLock = new Object();
+
+    ArrayList<Provider> providers = new ArrayList<Provider>();
 
     boolean closed = false;
 
@@ -29,6 +38,11 @@ public class LCM
 
     LCMDataOutputStream encodeBuffer = new LCMDataOutputStream(new byte[1024]);
 
+    BufferPool bufferPool = new BufferPool();
+
+    // before the providers, which may deliver messages straight away.
+    final LCMMetrics metrics = new LCMMetrics(this);
+
     /** Create a new LCM object, connecting to one or more URLs. If
      * no URL is specified, the environment variable LCM_DEFAULT_URL is
      * used. If that environment variable is not defined, then the
@@ -62,9 +76,24 @@ public class LCM
                 providers.add(new TCPProvider(this, up));
             else if (protocol.equals("file"))
                 providers.add(new LogFileProvider(this, up));
+            else if (protocol.equals("memq"))
+                providers.add(new MemqProvider(this, up));
+            else if (protocol.equals("shm"))
+                providers.add(new ShmProvider(this, up));
             else
                 System.err.println("LCM: Unknown URL protocol: "+protocol);
         }
+
+        metrics.init(providers);
+    }
+
+    /** Create an LCM object that uses the given providers. Used by
+     * benchmarks that drive receiveMessage() directly.
+     **/
+    LCM(ArrayList<Provider> providers)
+    {
+        this.providers = providers;
+        metrics.init(providers);
     }
 
     /** Retrieve a default instance of LCM using either the environment
@@ -132,8 +161,19 @@ public class LCM
         throws IOException
     {
         if (this.closed) throw new IllegalStateException();
-        for (Provider p : providers)
-            p.publish(channel, data, offset, length);
+
+        if (!metrics.enabled) {
+            for (Provider p : providers)
+                p.publish(channel, data, offset, length);
+            return;
+        }
+
+        metrics.published(channel, length);
+        for (int i = 0; i < providers.size(); i++) {
+            long start = System.nanoTime();
+            providers.get(i).publish(channel, data, offset, length);
+            metrics.providerPublished(i, length, System.nanoTime() - start);
+        }
     }
 
     /** Subscribe to all channels whose name matches the regular
@@ -145,24 +185,46 @@ public class LCM
         if (this.closed) throw new IllegalStateException();
         SubscriptionRecord srec = new SubscriptionRecord();
         srec.regex = regex;
-        srec.pat = Pattern.compile(regex);
         srec.lcsub = sub;
 
+        // (compiles the regex, so an invalid one throws before any
+        // provider hears about it.)
+        synchronized(subscriptionLock) {
+            subscriptions = subscriptions.add(regex, srec);
+        }
+
         synchronized(this) {
             for (Provider p : providers)
                 p.subscribe (regex);
         }
+    }
+
+    /** Subscribe to all channels whose name matches the regular
+     * expression, delivering messages to the subscriber on its own
+     * worker thread instead of the provider's thread. Up to
+     * maxMessages messages are queued; when the queue is full, the
+     * policy decides whether the oldest message is dropped or the
+     * provider waits. The returned AsyncSubscriber reports queue
+     * statistics. Cancel with unsubscribe(regex, sub) as usual.
+     **/
+    public AsyncSubscriber subscribeAsync(String regex, LCMSubscriber sub,
+                                          int maxMessages, AsyncSubscriber.Policy policy)
+    {
+        AsyncSubscriber async = new AsyncSubscriber(sub, maxMessages, policy);
+        subscribe(regex, async);
+        return async;
+    }
 
-        synchronized(subscriptions) {
-            subscriptions.add(srec);
+    static boolean subscriptionMatches(SubscriptionRecord sr, String regex, LCMSubscriber sub)
+    {
+        if (regex != null && !sr.regex.equals(regex))
+            return false;
 
-            for (String channel : subscriptionsMap.keySet()) {
-                if (srec.pat.matcher(channel).matches()) {
-                    ArrayList<SubscriptionRecord> subs = subscriptionsMap.get(channel);
-                    subs.add(srec);
-                }
-            }
-        }
+        if (sub == null || sr.lcsub == sub)
+            return true;
+
+        return (sr.lcsub instanceof AsyncSubscriber) &&
+            ((AsyncSubscriber) sr.lcsub).getSubscriber() == sub;
     }
 
     /** Remove this particular regex/subscriber pair (UNTESTED AND API
@@ -182,59 +244,111 @@ public class LCM
 
         // TODO: providers don't seem to use anything beyond first channel
 
-        synchronized(subscriptions) {
+        ArrayList<AsyncSubscriber> removed = new ArrayList<AsyncSubscriber>();
 
-            // Find and remove subscriber from list
-            for (Iterator<SubscriptionRecord> it = subscriptions.iterator(); it.hasNext(); ) {
-                SubscriptionRecord sr = it.next();
+        synchronized(subscriptionLock) {
+            ChannelIndex<SubscriptionRecord> index = subscriptions;
 
-                if ((sub == null || sr.lcsub == sub) &&
-                    (regex == null || sr.regex.equals(regex))) {
-                    it.remove();
+            for (int i = index.size() - 1; i >= 0; i--) {
+                SubscriptionRecord sr = index.getValue(i);
+                if (subscriptionMatches(sr, regex, sub)) {
+                    if (sr.lcsub instanceof AsyncSubscriber)
+                        removed.add((AsyncSubscriber) sr.lcsub);
+                    index = index.remove(i);
                 }
             }
 
-            // Find and remove subscriber from map
-            for (String channel : subscriptionsMap.keySet()) {
-                for (Iterator<SubscriptionRecord> it = subscriptionsMap.get(channel).iterator(); it.hasNext(); ) {
-                    SubscriptionRecord sr = it.next();
-
-                    if ((sub == null || sr.lcsub == sub) &&
-                        (regex == null || sr.regex.equals(regex))) {
-                        it.remove();
-                    }
-                }
-            }
+            subscriptions = index;
         }
+
+        for (AsyncSubscriber async : removed)
+            async.close();
+    }
+
+    /** The providers this LCM was created with, one per URL; e.g. to
+     * reach a LogFileProvider's playback controls.
+     **/
+    public synchronized ArrayList<Provider> getProviders()
+    {
+        return new ArrayList<Provider>(providers);
+    }
+
+    /** Returns this instance's metrics, which are disabled until
+     * LCMMetrics.setEnabled(true).
+     **/
+    public LCMMetrics getMetrics()
+    {
+        return metrics;
+    }
+
+    /** Returns the pool from which providers lease message buffers,
+     * and into which retained messages are copied.
+     **/
+    public BufferPool getBufferPool()
+    {
+        return bufferPool;
     }
 
     /** Not for use by end users. Provider back ends call this method
      * when they receive a message. The subscribers that match the
-     * channel name are synchronously notified.
+     * channel name are synchronously notified. No locks are held
+     * while subscribers run, so a slow subscriber does not block
+     * other providers or calls to subscribe() and unsubscribe().
+     *
+     * The data is only valid until this method returns; a subscriber
+     * that keeps it must copy it or use retainBuffer().
      **/
     public void receiveMessage(String channel, byte data[], int offset, int length)
     {
         if (this.closed) throw new IllegalStateException();
-        synchronized (subscriptions) {
-            ArrayList<SubscriptionRecord> srecs = subscriptionsMap.get(channel);
 
-            if (srecs == null) {
-                // must build this list!
-                srecs = new ArrayList<SubscriptionRecord>();
-                subscriptionsMap.put(channel, srecs);
+        SubscriptionRecord srecs[] = subscriptions.get(channel);
 
-                for (SubscriptionRecord srec : subscriptions) {
-                    if (srec.pat.matcher(channel).matches())
-                        srecs.add(srec);
-                }
-            }
+        LCMMetrics.ChannelMetrics cm = null;
+        long start = 0, t = 0;
+        if (metrics.enabled) {
+            cm = metrics.received(channel, data, offset, length);
+            start = t = System.nanoTime();
+        }
 
-            for (SubscriptionRecord srec : srecs) {
-                srec.lcsub.messageReceived(this,
-                                           channel,
-                                           new LCMDataInputStream(data, offset, length));
-            }
+        for (SubscriptionRecord srec : srecs) {
+            LCMDataInputStream ins = new LCMDataInputStream(data, offset, length);
+            ins.pool = bufferPool;
+            srec.lcsub.messageReceived(this, channel, ins);
+            if (cm != null)
+                t = metrics.handled(srec, start, t);
+        }
+
+        if (cm != null)
+            cm.handlerNanos.record(t - start);
+    }
+
+    /** Not for use by end users. Like receiveMessage(String, byte[],
+     * int, int), but for a message held in a pooled buffer:
+     * subscribers can retain the buffer rather than copying it. The
+     * caller keeps its own reference and must still release it.
+     **/
+    public void receiveMessage(String channel, LCMBuffer buf)
+    {
+        if (this.closed) throw new IllegalStateException();
+
+        SubscriptionRecord srecs[] = subscriptions.get(channel);
+
+        LCMMetrics.ChannelMetrics cm = null;
+        long start = 0, t = 0;
+        if (metrics.enabled) {
+            cm = metrics.received(channel, buf.getData(), buf.getOffset(), buf.getLength());
+            start = t = System.nanoTime();
+        }
+
+        for (SubscriptionRecord srec : srecs) {
+            srec.lcsub.messageReceived(this, channel, buf.getInputStream());
+            if (cm != null)
+                t = metrics.handled(srec, start, t);
         }
+
+        if (cm != null)
+            cm.handlerNanos.record(t - start);
     }
 
     /** A convenience function that subscribes to all LCM channels. **/
@@ -250,10 +364,18 @@ public class LCM
     public synchronized void close()
     {
         if (this.closed) throw new IllegalStateException();
+        metrics.close();
         for (Provider p : providers) {
             p.close();
         }
         providers = null;
+
+        ChannelIndex<SubscriptionRecord> index = subscriptions;
+        for (int i = 0; i < index.size(); i++) {
+            SubscriptionRecord sr = index.getValue(i);
+            if (sr.lcsub instanceof AsyncSubscriber)
+                ((AsyncSubscriber) sr.lcsub).close();
+        }
         this.closed = true;
     }
 
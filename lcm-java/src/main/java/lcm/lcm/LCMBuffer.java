@@ -0,0 +1,101 @@
+package lcm.lcm;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * A reference-counted message buffer leased from a {@link BufferPool}.
+ * <p>
+ * Providers lease a buffer, fill it, and hand it to
+ * {@link LCM#receiveMessage(String, LCMBuffer)}. A subscriber that
+ * wants to keep a message after messageReceived() returns calls
+ * {@link LCMDataInputStream#retainBuffer} instead of copying the
+ * bytes, and calls {@link #release} when it is done. The backing
+ * array goes back to the pool when the last reference is released.
+ * <p>
+ * The valid message bytes are data[offset] through
+ * data[offset+length-1]. The array may be larger than the message.
+ */
+public final class LCMBuffer
+{
+    static final AtomicIntegerFieldUpdater<LCMBuffer> REFCOUNT =
+        AtomicIntegerFieldUpdater.newUpdater(LCMBuffer.class, "refcount");
+
+    final BufferPool pool;
+    byte data[];
+    int offset;
+    int length;
+    volatile int refcount = 1;
+
+    /** Wrap an array. If pool is non-null, the array is returned to it
+     * once the last reference is released. The new buffer holds one
+     * reference.
+     **/
+    public LCMBuffer(BufferPool pool, byte data[], int offset, int length)
+    {
+        this.pool = pool;
+        this.data = data;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    public byte[] getData()
+    {
+        return data;
+    }
+
+    public int getOffset()
+    {
+        return offset;
+    }
+
+    public int getLength()
+    {
+        return length;
+    }
+
+    /** Set the number of valid bytes, for providers that lease a
+     * buffer before they know the exact message size.
+     **/
+    public void setLength(int length)
+    {
+        this.length = length;
+    }
+
+    /** Take an additional reference. **/
+    public LCMBuffer retain()
+    {
+        while (true) {
+            int c = refcount;
+            if (c <= 0)
+                throw new IllegalStateException("LCMBuffer: retain() after final release()");
+            if (REFCOUNT.compareAndSet(this, c, c + 1))
+                return this;
+        }
+    }
+
+    /** Drop a reference. The buffer must not be used by the caller
+     * afterwards.
+     **/
+    public void release()
+    {
+        int c = REFCOUNT.decrementAndGet(this);
+        if (c == 0) {
+            byte b[] = data;
+            data = null;
+            if (pool != null)
+                pool.put(b);
+        } else if (c < 0) {
+            throw new IllegalStateException("LCMBuffer: release() called too many times");
+        }
+    }
+
+    /** A stream over the message bytes, through which subscribers can
+     * retain this buffer.
+     **/
+    public LCMDataInputStream getInputStream()
+    {
+        LCMDataInputStream ins = new LCMDataInputStream(data, offset, length);
+        ins.lcmbuf = this;
+        return ins;
+    }
+}
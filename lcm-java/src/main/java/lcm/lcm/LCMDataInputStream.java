@@ -1,8 +1,16 @@
 package lcm.lcm;
 
 import java.io.*;
+import java.nio.*;
 
-/** Will not throw EOF. **/
+/** Will not throw EOF.
+ *
+ * Arrays of primitives are best read with the bulk methods
+ * (readFloats() and friends), which convert them through a big-endian
+ * ByteBuffer view of the array instead of one byte at a time.
+ * Generated types call the static forms, which fall back to one
+ * element at a time for other DataInputs.
+ **/
 public final class LCMDataInputStream implements DataInput
 {
     byte buf[];
@@ -11,6 +19,9 @@ public final class LCMDataInputStream implements DataInput
     int startpos;  // index of first valid byte
     int endpos;    // index of byte after last valid byte
 
+    LCMBuffer  lcmbuf; // pooled buffer backing this stream, if any
+    BufferPool pool;   // where retainBuffer() copies to otherwise
+
     public LCMDataInputStream(byte buf[])
     {
         this.buf = buf;
@@ -31,6 +42,21 @@ public final class LCMDataInputStream implements DataInput
             throw new EOFException("LCMDataInputStream needed "+need+" bytes, only "+available()+" available.");
     }
 
+    // make sure n elements of 'size' bytes each remain
+    void needElements(int n, int size) throws EOFException
+    {
+        if (n < 0 || n > available() / size)
+            throw new EOFException("LCMDataInputStream needed "+n+" elements of "+size+" bytes, only "+available()+" bytes available.");
+    }
+
+    // a view of the next nbytes, which are consumed, for a bulk read
+    ByteBuffer view(int nbytes)
+    {
+        ByteBuffer b = ByteBuffer.wrap(buf, pos, nbytes);
+        pos += nbytes;
+        return b;
+    }
+
     public int available()
     {
         return endpos - pos - 1;
@@ -140,6 +166,94 @@ public final class LCMDataInputStream implements DataInput
         return Double.longBitsToDouble(readLong());
     }
 
+    /** Read len big-endian values into v[off] through v[off+len-1]. **/
+    public void readShorts(short v[], int off, int len) throws IOException
+    {
+        needElements(len, 2);
+        view(2*len).asShortBuffer().get(v, off, len);
+    }
+
+    /** Read len big-endian values into v[off] through v[off+len-1]. **/
+    public void readInts(int v[], int off, int len) throws IOException
+    {
+        needElements(len, 4);
+        view(4*len).asIntBuffer().get(v, off, len);
+    }
+
+    /** Read len big-endian values into v[off] through v[off+len-1]. **/
+    public void readLongs(long v[], int off, int len) throws IOException
+    {
+        needElements(len, 8);
+        view(8*len).asLongBuffer().get(v, off, len);
+    }
+
+    /** Read len big-endian values into v[off] through v[off+len-1]. **/
+    public void readFloats(float v[], int off, int len) throws IOException
+    {
+        needElements(len, 4);
+        view(4*len).asFloatBuffer().get(v, off, len);
+    }
+
+    /** Read len big-endian values into v[off] through v[off+len-1]. **/
+    public void readDoubles(double v[], int off, int len) throws IOException
+    {
+        needElements(len, 8);
+        view(8*len).asDoubleBuffer().get(v, off, len);
+    }
+
+    /** For generated types: bulk read if ins is an
+     * LCMDataInputStream, otherwise one value at a time.
+     **/
+    public static void readShorts(DataInput ins, short v[], int off, int len) throws IOException
+    {
+        if (ins instanceof LCMDataInputStream) {
+            ((LCMDataInputStream) ins).readShorts(v, off, len);
+            return;
+        }
+        for (int i = 0; i < len; i++)
+            v[off + i] = ins.readShort();
+    }
+
+    public static void readInts(DataInput ins, int v[], int off, int len) throws IOException
+    {
+        if (ins instanceof LCMDataInputStream) {
+            ((LCMDataInputStream) ins).readInts(v, off, len);
+            return;
+        }
+        for (int i = 0; i < len; i++)
+            v[off + i] = ins.readInt();
+    }
+
+    public static void readLongs(DataInput ins, long v[], int off, int len) throws IOException
+    {
+        if (ins instanceof LCMDataInputStream) {
+            ((LCMDataInputStream) ins).readLongs(v, off, len);
+            return;
+        }
+        for (int i = 0; i < len; i++)
+            v[off + i] = ins.readLong();
+    }
+
+    public static void readFloats(DataInput ins, float v[], int off, int len) throws IOException
+    {
+        if (ins instanceof LCMDataInputStream) {
+            ((LCMDataInputStream) ins).readFloats(v, off, len);
+            return;
+        }
+        for (int i = 0; i < len; i++)
+            v[off + i] = ins.readFloat();
+    }
+
+    public static void readDoubles(DataInput ins, double v[], int off, int len) throws IOException
+    {
+        if (ins instanceof LCMDataInputStream) {
+            ((LCMDataInputStream) ins).readDoubles(v, off, len);
+            return;
+        }
+        for (int i = 0; i < len; i++)
+            v[off + i] = ins.readDouble();
+    }
+
     public String readLine() throws IOException
     {
         StringBuffer sb = new StringBuffer();
@@ -181,6 +295,30 @@ public final class LCMDataInputStream implements DataInput
         return n;
     }
 
+    /** Keep the message after messageReceived() returns, without
+     * copying it when possible. If the stream is backed by a pooled
+     * {@link LCMBuffer}, a reference to it is taken; otherwise the
+     * message is copied into a newly leased buffer. Either way the
+     * caller must release() the result. The returned buffer always
+     * covers the whole message, regardless of how much of it has
+     * been read.
+     **/
+    public LCMBuffer retainBuffer()
+    {
+        if (lcmbuf != null)
+            return lcmbuf.retain();
+
+        int length = endpos - startpos - 1;
+        LCMBuffer b;
+        if (pool != null)
+            b = pool.lease(length);
+        else
+            b = new LCMBuffer(null, new byte[length], 0, length);
+
+        System.arraycopy(buf, startpos, b.data, 0, length);
+        return b;
+    }
+
     /** Returns the internal buffer representation. **/
     public byte[] getBuffer()
     {
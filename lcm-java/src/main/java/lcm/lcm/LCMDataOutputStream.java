@@ -1,7 +1,14 @@
 package lcm.lcm;
 
 import java.io.*;
+import java.nio.*;
 
+/** Arrays of primitives are best written with the bulk methods
+ * (writeFloats() and friends), which convert them through a big-endian
+ * ByteBuffer view of the array instead of one byte at a time. Generated
+ * types call the static forms, which fall back to one element at a
+ * time for other DataOutputs.
+ **/
 public final class LCMDataOutputStream implements DataOutput
 {
     byte buf[];
@@ -41,6 +48,15 @@ public final class LCMDataOutputStream implements DataOutput
         }
     }
 
+    // a view of the next nbytes, which are consumed, for a bulk write
+    ByteBuffer view(int nbytes)
+    {
+        ensureSpace(nbytes);
+        ByteBuffer b = ByteBuffer.wrap(buf, pos, nbytes);
+        pos += nbytes;
+        return b;
+    }
+
     public void write(byte b[])
     {
         ensureSpace(b.length);
@@ -153,6 +169,89 @@ public final class LCMDataOutputStream implements DataOutput
         buf[pos++] = (byte) (v>>>0);
     }
 
+    /** Write v[off] through v[off+len-1], big-endian. **/
+    public void writeShorts(short v[], int off, int len)
+    {
+        view(2*len).asShortBuffer().put(v, off, len);
+    }
+
+    /** Write v[off] through v[off+len-1], big-endian. **/
+    public void writeInts(int v[], int off, int len)
+    {
+        view(4*len).asIntBuffer().put(v, off, len);
+    }
+
+    /** Write v[off] through v[off+len-1], big-endian. **/
+    public void writeLongs(long v[], int off, int len)
+    {
+        view(8*len).asLongBuffer().put(v, off, len);
+    }
+
+    /** Write v[off] through v[off+len-1], big-endian. **/
+    public void writeFloats(float v[], int off, int len)
+    {
+        view(4*len).asFloatBuffer().put(v, off, len);
+    }
+
+    /** Write v[off] through v[off+len-1], big-endian. **/
+    public void writeDoubles(double v[], int off, int len)
+    {
+        view(8*len).asDoubleBuffer().put(v, off, len);
+    }
+
+    /** For generated types: bulk write if outs is an
+     * LCMDataOutputStream, otherwise one value at a time.
+     **/
+    public static void writeShorts(DataOutput outs, short v[], int off, int len) throws IOException
+    {
+        if (outs instanceof LCMDataOutputStream) {
+            ((LCMDataOutputStream) outs).writeShorts(v, off, len);
+            return;
+        }
+        for (int i = 0; i < len; i++)
+            outs.writeShort(v[off + i]);
+    }
+
+    public static void writeInts(DataOutput outs, int v[], int off, int len) throws IOException
+    {
+        if (outs instanceof LCMDataOutputStream) {
+            ((LCMDataOutputStream) outs).writeInts(v, off, len);
+            return;
+        }
+        for (int i = 0; i < len; i++)
+            outs.writeInt(v[off + i]);
+    }
+
+    public static void writeLongs(DataOutput outs, long v[], int off, int len) throws IOException
+    {
+        if (outs instanceof LCMDataOutputStream) {
+            ((LCMDataOutputStream) outs).writeLongs(v, off, len);
+            return;
+        }
+        for (int i = 0; i < len; i++)
+            outs.writeLong(v[off + i]);
+    }
+
+    public static void writeFloats(DataOutput outs, float v[], int off, int len) throws IOException
+    {
+        if (outs instanceof LCMDataOutputStream) {
+            ((LCMDataOutputStream) outs).writeFloats(v, off, len);
+            return;
+        }
+        for (int i = 0; i < len; i++)
+            outs.writeFloat(v[off + i]);
+    }
+
+    public static void writeDoubles(DataOutput outs, double v[], int off, int len) throws IOException
+    {
+        if (outs instanceof LCMDataOutputStream) {
+            ((LCMDataOutputStream) outs).writeDoubles(v, off, len);
+            return;
+        }
+        for (int i = 0; i < len; i++)
+            outs.writeDouble(v[off + i]);
+    }
+
     public void writeUTF(String s)
     {
         assert(false);
@@ -0,0 +1,526 @@
+package lcm.lcm;
+
+import java.lang.management.*;
+import java.lang.reflect.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import javax.management.*;
+
+import lcm.logging.*;
+import lcm.util.*;
+
+/** Counts what an LCM instance publishes and receives, per channel,
+ * per subscription and per provider, and how long subscribers take.
+ *
+ * Every LCM has one (see LCM.getMetrics()), disabled until
+ * setEnabled(true); while disabled, publishing and dispatch only check
+ * a flag. When enabled, each channel gets a histogram of the time its
+ * subscribers took per message and, for types registered with
+ * addUtimeType(), of end-to-end latency (receive time minus the
+ * message's utime). Each subscription gets histograms of its handler
+ * time and of how long the message waited for earlier subscribers,
+ * and each provider counts what it sent and how long sending took.
+ * Providers' own counters (e.g. udpm fragment drops and lost messages)
+ * are included in getCounters().
+ *
+ * The counters can be read over JMX (registerMBean()) or published
+ * periodically as metrics_t messages (startPublishing()). Setting the
+ * system property lcm.metrics=true enables and registers every LCM's
+ * metrics; lcm.metrics.channel=NAME also publishes them once a second.
+ **/
+public class LCMMetrics implements LCMMetricsMXBean
+{
+    static final long MAX_LATENCY = 60000000; // usecs; beyond this, clocks disagree
+
+    static AtomicInteger nextId = new AtomicInteger();
+
+    /** Counts for one channel. **/
+    public static class ChannelMetrics
+    {
+        public final String channel;
+
+        public final AtomicLong received = new AtomicLong();
+        public final AtomicLong receivedBytes = new AtomicLong();
+        public final AtomicLong published = new AtomicLong();
+        public final AtomicLong publishedBytes = new AtomicLong();
+
+        /** Time all subscribers took to handle a message, in nanoseconds. **/
+        public final Histogram handlerNanos = new Histogram();
+
+        /** Time from a message's utime until it was received, in
+         * microseconds.
+         **/
+        public final Histogram latency = new Histogram();
+
+        ChannelMetrics(String channel)
+        {
+            this.channel = channel;
+        }
+    }
+
+    /** Counts for one subscription, kept in its SubscriptionRecord. **/
+    public static class SubscriptionMetrics
+    {
+        /** Time the subscriber took per message, in nanoseconds. **/
+        public final Histogram handlerNanos = new Histogram();
+
+        /** Time a message waited for the subscribers before this one,
+         * in nanoseconds.
+         **/
+        public final Histogram dispatchNanos = new Histogram();
+    }
+
+    /** Counts for one provider. **/
+    public static class ProviderMetrics
+    {
+        public final Provider provider;
+
+        public final AtomicLong published = new AtomicLong();
+        public final AtomicLong publishedBytes = new AtomicLong();
+
+        /** Time Provider.publish() took, in nanoseconds. **/
+        public final Histogram publishNanos = new Histogram();
+
+        ProviderMetrics(Provider provider)
+        {
+            this.provider = provider;
+        }
+    }
+
+    final LCM lcm;
+    final int id = nextId.getAndIncrement();
+
+    volatile boolean enabled;
+
+    ConcurrentHashMap<String, ChannelMetrics> channels = new ConcurrentHashMap<String, ChannelMetrics>();
+    ProviderMetrics providers[] = new ProviderMetrics[0];
+
+    // fingerprints of types whose first field is utime. Replaced, not
+    // modified, when one is added.
+    volatile long utimeTypes[] = new long[] { metrics_t.LCM_FINGERPRINT };
+
+    ObjectName mbeanName;
+    PublishThread publisher;
+
+    LCMMetrics(LCM lcm)
+    {
+        this.lcm = lcm;
+    }
+
+    /** Called once the LCM has created its providers. **/
+    void init(ArrayList<Provider> providers)
+    {
+        this.providers = new ProviderMetrics[providers.size()];
+        for (int i = 0; i < this.providers.length; i++)
+            this.providers[i] = new ProviderMetrics(providers.get(i));
+
+        if (Boolean.getBoolean("lcm.metrics")) {
+            enabled = true;
+            try {
+                registerMBean();
+            } catch (JMException ex) {
+                System.err.println("ex: "+ex);
+            }
+
+            String channel = System.getProperty("lcm.metrics.channel");
+            if (channel != null)
+                startPublishing(channel, 1.0);
+        }
+    }
+
+    public boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    /** Start or stop counting. Counts are kept while disabled. **/
+    public void setEnabled(boolean enabled)
+    {
+        this.enabled = enabled;
+    }
+
+    /** Measure end-to-end latency for messages of this type, which
+     * must be an lcm-gen class whose first field is "int64_t utime".
+     **/
+    public synchronized void addUtimeType(Class<?> cls)
+    {
+        long fingerprint;
+        try {
+            fingerprint = cls.getField("LCM_FINGERPRINT").getLong(null);
+        } catch (Exception ex) {
+            throw new IllegalArgumentException(cls+" is not an LCM type");
+        }
+
+        // lcm-gen declares fields in message order.
+        Field first = null;
+        for (Field f : cls.getDeclaredFields()) {
+            if (!Modifier.isStatic(f.getModifiers())) {
+                first = f;
+                break;
+            }
+        }
+        if (first == null || !first.getName().equals("utime") || first.getType() != long.class)
+            throw new IllegalArgumentException(cls+" does not start with int64_t utime");
+
+        long types[] = Arrays.copyOf(utimeTypes, utimeTypes.length + 1);
+        types[types.length - 1] = fingerprint;
+        utimeTypes = types;
+    }
+
+    ChannelMetrics getChannelMetrics(String channel)
+    {
+        ChannelMetrics cm = channels.get(channel);
+        if (cm == null) {
+            cm = new ChannelMetrics(channel);
+            ChannelMetrics prev = channels.putIfAbsent(channel, cm);
+            if (prev != null)
+                cm = prev;
+        }
+        return cm;
+    }
+
+    /** The counts for a channel, or null if nothing has been sent or
+     * received on it.
+     **/
+    public ChannelMetrics getChannel(String channel)
+    {
+        return channels.get(channel);
+    }
+
+    /** The counts for every channel seen so far. **/
+    public ArrayList<ChannelMetrics> getChannels()
+    {
+        return new ArrayList<ChannelMetrics>(channels.values());
+    }
+
+    /** The counts for each provider, in the order of LCM.getProviders(). **/
+    public ArrayList<ProviderMetrics> getProviders()
+    {
+        return new ArrayList<ProviderMetrics>(Arrays.asList(providers));
+    }
+
+    public long getMessagesReceived()
+    {
+        long n = 0;
+        for (ChannelMetrics cm : channels.values())
+            n += cm.received.get();
+        return n;
+    }
+
+    public long getBytesReceived()
+    {
+        long n = 0;
+        for (ChannelMetrics cm : channels.values())
+            n += cm.receivedBytes.get();
+        return n;
+    }
+
+    public long getMessagesPublished()
+    {
+        long n = 0;
+        for (ChannelMetrics cm : channels.values())
+            n += cm.published.get();
+        return n;
+    }
+
+    public long getBytesPublished()
+    {
+        long n = 0;
+        for (ChannelMetrics cm : channels.values())
+            n += cm.publishedBytes.get();
+        return n;
+    }
+
+    static long getLong(byte b[], int pos)
+    {
+        long v = 0;
+        for (int i = 0; i < 8; i++)
+            v = (v << 8) | (b[pos + i] & 0xff);
+        return v;
+    }
+
+    /** Count a received message, before it is dispatched. **/
+    ChannelMetrics received(String channel, byte data[], int offset, int length)
+    {
+        ChannelMetrics cm = getChannelMetrics(channel);
+        cm.received.incrementAndGet();
+        cm.receivedBytes.addAndGet(length);
+
+        if (length >= 16) {
+            long fingerprint = getLong(data, offset);
+            for (long t : utimeTypes) {
+                if (t == fingerprint) {
+                    long latency = System.currentTimeMillis()*1000 - getLong(data, offset + 8);
+                    if (latency <= MAX_LATENCY)
+                        cm.latency.record(latency);
+                    break;
+                }
+            }
+        }
+        return cm;
+    }
+
+    /** Count a subscriber having handled a message. dispatched is when
+     * receiveMessage() was called, started when the subscriber was.
+     * Returns the current time.
+     **/
+    long handled(LCM.SubscriptionRecord srec, long dispatched, long started)
+    {
+        long now = System.nanoTime();
+
+        SubscriptionMetrics sm = srec.metrics;
+        if (sm == null) {
+            synchronized(srec) {
+                if (srec.metrics == null)
+                    srec.metrics = new SubscriptionMetrics();
+                sm = srec.metrics;
+            }
+        }
+
+        sm.dispatchNanos.record(started - dispatched);
+        sm.handlerNanos.record(now - started);
+        return now;
+    }
+
+    /** Count a message about to be published. **/
+    void published(String channel, int length)
+    {
+        ChannelMetrics cm = getChannelMetrics(channel);
+        cm.published.incrementAndGet();
+        cm.publishedBytes.addAndGet(length);
+    }
+
+    /** Count a message sent by provider i. **/
+    void providerPublished(int i, int length, long nanos)
+    {
+        ProviderMetrics pm = providers[i];
+        pm.published.incrementAndGet();
+        pm.publishedBytes.addAndGet(length);
+        pm.publishNanos.record(nanos);
+    }
+
+    static void putHistogram(Map<String, Long> counters, String name, Histogram h)
+    {
+        if (h.getTotalCount() == 0)
+            return;
+        counters.put(name+"_p50", h.getValueAtPercentile(50));
+        counters.put(name+"_p99", h.getValueAtPercentile(99));
+        counters.put(name+"_max", h.getMax());
+    }
+
+    // anonymous classes have no simple name.
+    static String className(Object o)
+    {
+        String name = o.getClass().getSimpleName();
+        if (name.isEmpty()) {
+            name = o.getClass().getName();
+            name = name.substring(name.lastIndexOf('.') + 1);
+        }
+        return name;
+    }
+
+    // name, or name#2, name#3, ... if it's taken.
+    static String unique(HashSet<String> names, String name)
+    {
+        String unique = name;
+        for (int i = 2; !names.add(unique); i++)
+            unique = name+"#"+i;
+        return unique;
+    }
+
+    /** A snapshot of every counter, by name:
+     *
+     *   received, received_bytes, published, published_bytes
+     *   channel.NAME.{received,received_bytes,published,published_bytes}
+     *   channel.NAME.handler_ns_{p50,p99,max}, channel.NAME.latency_us_{p50,p99,max}
+     *   subscription.REGEX/CLASS.{messages,handler_ns_*,dispatch_ns_*}
+     *   provider.CLASS.{published,published_bytes,publish_ns_*}
+     *
+     * plus whatever the provider or (asynchronous) subscriber counts
+     * itself. Histograms are left out until they have a value.
+     **/
+    public TreeMap<String, Long> getCounters()
+    {
+        TreeMap<String, Long> counters = new TreeMap<String, Long>();
+        HashSet<String> names = new HashSet<String>();
+
+        counters.put("received", getMessagesReceived());
+        counters.put("received_bytes", getBytesReceived());
+        counters.put("published", getMessagesPublished());
+        counters.put("published_bytes", getBytesPublished());
+
+        for (ChannelMetrics cm : channels.values()) {
+            String name = "channel."+cm.channel;
+            counters.put(name+".received", cm.received.get());
+            counters.put(name+".received_bytes", cm.receivedBytes.get());
+            counters.put(name+".published", cm.published.get());
+            counters.put(name+".published_bytes", cm.publishedBytes.get());
+            putHistogram(counters, name+".handler_ns", cm.handlerNanos);
+            putHistogram(counters, name+".latency_us", cm.latency);
+        }
+
+        ChannelIndex<LCM.SubscriptionRecord> subscriptions = lcm.subscriptions;
+        for (int i = 0; i < subscriptions.size(); i++) {
+            LCM.SubscriptionRecord srec = subscriptions.getValue(i);
+            SubscriptionMetrics sm = srec.metrics;
+
+            String name = unique(names, "subscription."+srec.regex+"/"+className(srec.lcsub));
+            counters.put(name+".messages", sm == null ? 0 : sm.handlerNanos.getTotalCount());
+            if (sm != null) {
+                putHistogram(counters, name+".handler_ns", sm.handlerNanos);
+                putHistogram(counters, name+".dispatch_ns", sm.dispatchNanos);
+            }
+
+            if (srec.lcsub instanceof AsyncSubscriber) {
+                AsyncSubscriber async = (AsyncSubscriber) srec.lcsub;
+                counters.put(name+".delivered", async.getNumDelivered());
+                counters.put(name+".dropped", async.getNumDropped());
+                counters.put(name+".queue_length", (long) async.getQueueLength());
+            }
+        }
+
+        for (ProviderMetrics pm : providers) {
+            String name = unique(names, "provider."+className(pm.provider));
+            counters.put(name+".published", pm.published.get());
+            counters.put(name+".published_bytes", pm.publishedBytes.get());
+            putHistogram(counters, name+".publish_ns", pm.publishNanos);
+            putProviderCounters(counters, name, pm.provider);
+        }
+
+        return counters;
+    }
+
+    static void putProviderCounters(Map<String, Long> counters, String name, Provider p)
+    {
+        if (p instanceof UDPMulticastProvider) {
+            UDPMulticastProvider udpm = (UDPMulticastProvider) p;
+            FragmentReassembler fr = udpm.getFragmentReassembler();
+            counters.put(name+".fragmented_completed", fr.getNumCompleted());
+            counters.put(name+".fragmented_expired", fr.getNumExpired());
+            counters.put(name+".fragmented_corrupted", fr.getNumCorrupted());
+
+            SequenceTracker st = udpm.getSequenceTracker();
+            counters.put(name+".received", st.getNumReceived());
+            counters.put(name+".lost", st.getNumLost());
+            counters.put(name+".reordered", st.getNumReordered());
+            counters.put(name+".duplicates", st.getNumDuplicates());
+        } else if (p instanceof MemqProvider) {
+            MemqProvider memq = (MemqProvider) p;
+            counters.put(name+".received", memq.getNumReceived());
+            counters.put(name+".dropped", memq.getNumDropped());
+        } else if (p instanceof ShmProvider) {
+            ShmProvider shm = (ShmProvider) p;
+            counters.put(name+".received", shm.getNumReceived());
+            counters.put(name+".lapped", shm.getNumLapped());
+        } else if (p instanceof LogFileProvider) {
+            LogFileProvider file = (LogFileProvider) p;
+            putHistogram(counters, name+".late_us", file.getTimingError());
+
+            AsyncLogWriter writer = file.getAsyncWriter();
+            if (writer != null) {
+                counters.put(name+".written", writer.getNumWritten());
+                counters.put(name+".dropped", writer.getNumDropped());
+                counters.put(name+".queue_depth", writer.getQueueDepth());
+            }
+        }
+    }
+
+    /** The counters as a message. **/
+    public metrics_t toMessage()
+    {
+        TreeMap<String, Long> counters = getCounters();
+
+        metrics_t msg = new metrics_t();
+        msg.utime = System.currentTimeMillis()*1000;
+        msg.ncounters = counters.size();
+        msg.names = new String[msg.ncounters];
+        msg.values = new long[msg.ncounters];
+
+        int i = 0;
+        for (Map.Entry<String, Long> e : counters.entrySet()) {
+            msg.names[i] = e.getKey();
+            msg.values[i] = e.getValue();
+            i++;
+        }
+        return msg;
+    }
+
+    /** Register with the platform MBean server, as
+     * lcm.lcm:type=LCMMetrics,id=N.
+     **/
+    public synchronized ObjectName registerMBean() throws JMException
+    {
+        if (mbeanName == null) {
+            ObjectName name = new ObjectName("lcm.lcm:type=LCMMetrics,id="+id);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+            mbeanName = name;
+        }
+        return mbeanName;
+    }
+
+    public synchronized void unregisterMBean()
+    {
+        if (mbeanName == null)
+            return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+        } catch (JMException ex) {
+            System.err.println("ex: "+ex);
+        }
+        mbeanName = null;
+    }
+
+    /** Publish a metrics_t on channel (through this LCM) every period
+     * seconds, until stopPublishing() or LCM.close().
+     **/
+    public synchronized void startPublishing(String channel, double period)
+    {
+        stopPublishing();
+        publisher = new PublishThread(channel, (long) (period * 1000));
+        publisher.start();
+    }
+
+    public synchronized void stopPublishing()
+    {
+        // not joined: the thread may be waiting to publish on an LCM
+        // that is closing.
+        if (publisher != null)
+            publisher.interrupt();
+        publisher = null;
+    }
+
+    void close()
+    {
+        stopPublishing();
+        unregisterMBean();
+    }
+
+    class PublishThread extends Thread
+    {
+        String channel;
+        long periodMillis;
+
+        PublishThread(String channel, long periodMillis)
+        {
+            this.channel = channel;
+            this.periodMillis = periodMillis;
+            setDaemon(true);
+            setName("LCM metrics");
+        }
+
+        public void run()
+        {
+            while (!isInterrupted()) {
+                try {
+                    Thread.sleep(periodMillis);
+                    lcm.publish(channel, toMessage());
+                } catch (InterruptedException ex) {
+                    return;
+                } catch (IllegalStateException ex) {
+                    return; // closed
+                }
+            }
+        }
+    }
+}
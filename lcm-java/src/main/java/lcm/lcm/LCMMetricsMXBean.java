@@ -0,0 +1,22 @@
+package lcm.lcm;
+
+import java.util.*;
+
+/** JMX view of an LCM instance's metrics; see LCMMetrics. **/
+public interface LCMMetricsMXBean
+{
+    public boolean isEnabled();
+
+    public void setEnabled(boolean enabled);
+
+    public long getMessagesReceived();
+
+    public long getBytesReceived();
+
+    public long getMessagesPublished();
+
+    public long getBytesPublished();
+
+    /** Every counter, by name; see LCMMetrics.getCounters(). **/
+    public Map<String, Long> getCounters();
+}
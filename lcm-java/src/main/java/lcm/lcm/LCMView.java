@@ -0,0 +1,121 @@
+package lcm.lcm;
+
+import java.io.*;
+import java.nio.*;
+
+/**
+ * A read-only view of an encoded message that decodes fields where
+ * they lie in the buffer, only when they are asked for.
+ * <p>
+ * Subclasses, one per LCM type, know the offset of each field and
+ * provide getters built on the protected accessors here. Array fields
+ * are returned as {@link ByteBuffer} slices of the message rather than
+ * being copied, so reading the timestamp of a camera image or the size
+ * of a scan costs the same as for a small message.
+ * <p>
+ * Offsets are relative to the start of the message, whose first eight
+ * bytes are the type's fingerprint. Like the stream a subscriber is
+ * given, a view is only valid until messageReceived() returns unless
+ * the buffer was retained (see {@link LCMDataInputStream#retainBuffer}).
+ */
+public abstract class LCMView
+{
+    protected final byte buf[];
+    protected final int offset;
+    protected final int length;
+
+    /** View length bytes of buf starting at offset.
+     * @throws IOException if the message is too short or its
+     * fingerprint is not the given one.
+     **/
+    protected LCMView(byte buf[], int offset, int length, long fingerprint) throws IOException
+    {
+        if (offset < 0 || length < 8 || offset + length > buf.length)
+            throw new IOException("LCM Decode error: message too short");
+
+        this.buf = buf;
+        this.offset = offset;
+        this.length = length;
+
+        if (getLong(0) != fingerprint)
+            throw new IOException("LCM Decode error: bad fingerprint");
+    }
+
+    /** View the unread remainder of a subscriber's stream. The stream
+     * is not advanced.
+     **/
+    protected LCMView(LCMDataInputStream ins, long fingerprint) throws IOException
+    {
+        this(ins.getBuffer(), ins.getBufferOffset(), ins.available(), fingerprint);
+    }
+
+    public byte[] getBuffer()
+    {
+        return buf;
+    }
+
+    /** Index of the message's first byte in getBuffer(). **/
+    public int getOffset()
+    {
+        return offset;
+    }
+
+    public int getLength()
+    {
+        return length;
+    }
+
+    /** A stream over the whole message, for decoding it in full. **/
+    public LCMDataInputStream getInputStream()
+    {
+        return new LCMDataInputStream(buf, offset, length);
+    }
+
+    /** Throws unless the message has len bytes at off; subclasses
+     * check their variable-length fields with it when constructed.
+     **/
+    protected void need(int off, int len) throws IOException
+    {
+        if (off < 0 || len < 0 || off > length - len)
+            throw new IOException("LCM Decode error: field at "+off+" of "+len+" bytes overruns "+length+" byte message");
+    }
+
+    protected byte getByte(int off)
+    {
+        return buf[offset + off];
+    }
+
+    protected short getShort(int off)
+    {
+        int i = offset + off;
+        return (short) (((buf[i]&0xff) << 8) | (buf[i+1]&0xff));
+    }
+
+    protected int getInt(int off)
+    {
+        int i = offset + off;
+        return ((buf[i]&0xff) << 24) | ((buf[i+1]&0xff) << 16) |
+            ((buf[i+2]&0xff) << 8) | (buf[i+3]&0xff);
+    }
+
+    protected long getLong(int off)
+    {
+        return ((long) getInt(off) << 32) | (getInt(off + 4) & 0xffffffffL);
+    }
+
+    protected float getFloat(int off)
+    {
+        return Float.intBitsToFloat(getInt(off));
+    }
+
+    protected double getDouble(int off)
+    {
+        return Double.longBitsToDouble(getLong(off));
+    }
+
+    /** A read-only, big-endian slice of len bytes at off. **/
+    protected ByteBuffer slice(int off, int len)
+    {
+        return ByteBuffer.wrap(buf, offset + off, len).slice().asReadOnlyBuffer();
+    }
+}
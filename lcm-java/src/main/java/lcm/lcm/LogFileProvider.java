@@ -1,18 +1,74 @@
 package lcm.lcm;
 
 import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
 
 import lcm.logging.*;
+import lcm.util.*;
 
+/** Plays back a log file, or (with mode=w) records published
+ * messages to one.
+ *
+ * Options for playback: speed=X plays X times as fast as recorded
+ * (<=0: as fast as possible); step=true plays an event only when
+ * step() is called; skip=F starts a fraction F into the file;
+ * delay=S waits S seconds after the first subscription; verbose=true
+ * reports speed and timing error every second.
+ *
+ * Each event is scheduled at a fixed offset from the start of
+ * playback, so timing errors don't accumulate. The player parks
+ * until shortly before the deadline, then spins (spin=USECS, default
+ * 100, or 0 on a single CPU) for the rest. A separate thread reads up
+ * to prefetch=N events (default 1000, and at most 16 MB; 0 to read
+ * inline) ahead, so disk reads don't delay dispatch. How late each
+ * event was dispatched is kept in a histogram; see getTimingError().
+ *
+ * Options for writing: async=true queues messages for an
+ * AsyncLogWriter instead of writing them on the publishing thread;
+ * with async, fsync=SECONDS sets how often the file is synced and
+ * block=true makes publish wait, rather than drop messages, when the
+ * queue is full.
+ **/
 public class LogFileProvider implements Provider
 {
     LCM lcm;
     Log log;
+    AsyncLogWriter asyncWriter;
+    boolean dropWarned = false;
 
     double speed; // how fast do we play? <=0 for "as fast as possible"
     double delay; // how many seconds to delay before starting to play? (crude race-condition hack)
     boolean verbose; // report actual speed periodically
     double skip; // skip a fraction of the log file [0, 1.0]
+    boolean stepping; // play one event per step()
+    long spinNanos;   // spin, rather than park, this close to a deadline
+
+    Semaphore steps = new Semaphore(0);
+    Histogram lateness = new Histogram(); // usecs past each deadline
+    CountDownLatch subscribed = new CountDownLatch(1);
+
+    static final int PREFETCH_BYTES = 16*1024*1024;
+
+    static class Prefetched
+    {
+        long      utime;
+        String    channel;
+        LCMBuffer buf;
+    }
+
+    // filled by the PrefetchThread, drained in batches by the
+    // ReaderThread. Each side only wakes the other when it is waiting
+    // (and the prefetcher only once the queue is half empty), so that
+    // they don't hand over every event.
+    ArrayDeque<Prefetched> prefetched = new ArrayDeque<Prefetched>();
+    int prefetchEvents;
+    long prefetchedBytes;
+    boolean prefetchDone;
+    boolean prefetcherWaiting, readerWaiting;
+    IOException prefetchEx;
+    PrefetchThread prefetcher;
 
     boolean writemode;
     long nanotime_start;
@@ -30,21 +86,37 @@ public class LogFileProvider implements Provider
         delay = up.get("delay", 0.5);
         verbose = up.get("verbose", false);
         skip = up.get("skip", 0.0); // skip this fraction of the log file.
+        stepping = up.get("step", false);
+        // on one CPU, spinning would only hold up the prefetcher.
+        double spin = Runtime.getRuntime().availableProcessors() > 1 ? 100.0 : 0.0;
+        spinNanos = (long) (up.get("spin", spin) * 1000);
+        prefetchEvents = up.get("prefetch", 1000);
         writemode = up.get("mode", "r").equals("w");
 
-        if(writemode) {
+        if(writemode && up.get("async", false)) {
+            asyncWriter = new AsyncLogWriter(logPath);
+            asyncWriter.setFsyncInterval(up.get("fsync", 0.0));
+            asyncWriter.setBlocking(up.get("block", false));
+            nanotime_start = System.nanoTime();
+            utime_start = System.currentTimeMillis() * 1000;
+        } else if(writemode) {
             log = new Log(logPath, "rw");
             nanotime_start = System.nanoTime();
             utime_start = System.currentTimeMillis() * 1000;
         } else {
             log = new Log(logPath, "r");
+            // with no deadlines to meet, reading inline is cheaper.
+            if (speed > 0 && !stepping && prefetchEvents > 0) {
+                prefetcher = new PrefetchThread();
+                prefetcher.start();
+            }
             reader = new ReaderThread();
             reader.start();
         }
     }
 
     boolean publishWarned = false;
-    public synchronized void publish(String channel, byte data[], int offset, int length)
+    public void publish(String channel, byte data[], int offset, int length)
     {
         if(!writemode) {
             if (publishWarned)
@@ -53,6 +125,34 @@ public class LogFileProvider implements Provider
             publishWarned = true;
         }
 
+        if (asyncWriter != null) {
+            long utime = utime_start + (System.nanoTime() - nanotime_start) / 1000;
+            try {
+                if (!asyncWriter.write(utime, channel, data, offset, length) && !dropWarned) {
+                    dropWarned = true;
+                    System.err.println("LogFileProvider: one-time warning: log queue full, dropping messages");
+                }
+            } catch (IOException ex) {
+                System.err.println("ex: "+ex);
+            }
+            return;
+        }
+
+        synchronized(this) {
+            writeEvent(channel, data, offset, length);
+        }
+    }
+
+    /** Returns the async writer, or null if the log is not being
+     * written asynchronously. Useful for its queue statistics.
+     **/
+    public AsyncLogWriter getAsyncWriter()
+    {
+        return asyncWriter;
+    }
+
+    void writeEvent(String channel, byte data[], int offset, int length)
+    {
         Log.Event event = new Log.Event();
         event.utime = utime_start + (System.nanoTime() - nanotime_start) / 1000;
         event.eventNumber = 0;
@@ -66,30 +166,147 @@ public class LogFileProvider implements Provider
         }
     }
 
-    public synchronized void subscribe(String channel) { }
+    /** In step mode, let n more events be played. **/
+    public void step(int n)
+    {
+        steps.release(n);
+    }
+
+    /** How late events were dispatched, in microseconds, when playing
+     * at a fixed speed.
+     **/
+    public Histogram getTimingError()
+    {
+        return lateness.copy();
+    }
+
+    public synchronized void subscribe(String channel)
+    {
+        subscribed.countDown();
+    }
+
     public void unsubscribe(String channel) { }
 
     public synchronized void close() {
-        if (reader != null) {
-            reader.interrupt();
+        for (Thread t : new Thread[] { reader, prefetcher }) {
+            if (t == null)
+                continue;
+            t.interrupt();
             try {
-                reader.join();
+                t.join();
             } catch (InterruptedException ex) {
             }
         }
         reader = null;
+        prefetcher = null;
+
+        synchronized(prefetched) {
+            for (Prefetched p : prefetched)
+                p.buf.release();
+            prefetched.clear();
+        }
+
         try {
-            log.close();
+            if (asyncWriter != null)
+                asyncWriter.close();
+            else
+                log.close();
         } catch (IOException ex) {
         }
         log = null;
     }
 
+    class PrefetchThread extends Thread
+    {
+        PrefetchThread()
+        {
+            setDaemon(true);
+            setName("LCM LogFileProvider prefetch");
+        }
+
+        public void run()
+        {
+            try {
+                log.seekPositionFraction(skip);
+
+                Log.Event ev = new Log.Event();
+                BufferPool pool = lcm.getBufferPool();
+
+                while (true) {
+                    Prefetched p = new Prefetched();
+                    p.buf = log.readNext(ev, pool);
+                    p.utime = ev.utime;
+                    p.channel = ev.channel;
+
+                    synchronized(prefetched) {
+                        // always let one event through, however big.
+                        while (prefetched.size() >= prefetchEvents ||
+                               (prefetched.size() > 0 && prefetchedBytes + p.buf.getLength() > PREFETCH_BYTES)) {
+                            try {
+                                prefetcherWaiting = true;
+                                prefetched.wait();
+                            } catch (InterruptedException ex) {
+                                p.buf.release();
+                                return;
+                            } finally {
+                                prefetcherWaiting = false;
+                            }
+                        }
+                        prefetched.add(p);
+                        prefetchedBytes += p.buf.getLength();
+                        if (readerWaiting)
+                            prefetched.notifyAll();
+                    }
+                }
+            } catch (EOFException ex) {
+            } catch (IOException ex) {
+                prefetchEx = ex;
+            } finally {
+                synchronized(prefetched) {
+                    prefetchDone = true;
+                    prefetched.notifyAll();
+                }
+            }
+        }
+    }
+
+    /** Move every prefetched event to batch, waiting for at least
+     * one. Returns false at the end of the log.
+     **/
+    boolean take(ArrayDeque<Prefetched> batch) throws IOException, InterruptedException
+    {
+        synchronized(prefetched) {
+            while (prefetched.isEmpty()) {
+                if (prefetchDone) {
+                    if (prefetchEx != null)
+                        throw prefetchEx;
+                    return false;
+                }
+                try {
+                    readerWaiting = true;
+                    prefetched.wait();
+                } finally {
+                    readerWaiting = false;
+                }
+            }
+
+            while (!prefetched.isEmpty()) {
+                Prefetched p = prefetched.poll();
+                prefetchedBytes -= p.buf.getLength();
+                batch.add(p);
+            }
+            if (prefetcherWaiting)
+                prefetched.notifyAll();
+            return true;
+        }
+    }
+
     class ReaderThread extends Thread
     {
         ReaderThread()
         {
             setDaemon(true);
+            setName("LCM LogFileProvider");
         }
 
         public void run()
@@ -105,58 +322,104 @@ public class LogFileProvider implements Provider
 
         void runEx() throws IOException, InterruptedException
         {
-            log.seekPositionFraction(skip);
+            boolean prefetching = (prefetcher != null);
+            if (!prefetching)
+                log.seekPositionFraction(skip);
 
-            while (lcm.getNumSubscriptions()==0)
-                Thread.sleep(10);
+            subscribed.await();
 
             Thread.sleep((int) (delay*1000));
 
-            long lastLocalUtime = System.nanoTime()/1000;
-            long lastEventUtime = -1;
-            double delayAccumulator = 0; // how long do we need to delay in real time?
+            // event utime startUtime is due at startNanos; later ones
+            // at the same offsets, divided by speed.
+            long startNanos = 0, startUtime = 0;
+            boolean started = false;
 
-            double verboseAccumulator = 0;
-            long   verboseLastEventUtime = -1;
+            long verboseNanos = System.nanoTime();
+            long verboseUtime = -1;
+            Histogram verboseLateness = lateness.copy();
+
+            ArrayDeque<Prefetched> batch = new ArrayDeque<Prefetched>();
+            Log.Event ev = new Log.Event();
+            BufferPool pool = lcm.getBufferPool();
 
             while (true) {
-                Log.Event ev = log.readNext();
-
-                // how much time elapsed when the log was recorded?
-                // we have to wait some fraction of the time...
-                if (lastEventUtime > 0) {
-                    double dt = (ev.utime - lastEventUtime) / 1000000.0;
-                    if (dt > 0 && speed > 0)
-                        delayAccumulator += dt / speed;
+                if (!prefetching && batch.isEmpty()) {
+                    try {
+                        Prefetched p = new Prefetched();
+                        p.buf = log.readNext(ev, pool);
+                        p.utime = ev.utime;
+                        p.channel = ev.channel;
+                        batch.add(p);
+                    } catch (EOFException ex) {
+                    }
+                }
+
+                if (batch.isEmpty() && (!prefetching || !take(batch))) {
+                    if (verbose)
+                        report(lateness, "end of log");
+                    return;
                 }
-                lastEventUtime = ev.utime;
+                Prefetched p = batch.poll();
 
-                // subtract any clock time that has elapsed.
-                long localUtime = System.nanoTime()/1000;
-                double dt = (localUtime - lastLocalUtime)/1000000.0;
-                lastLocalUtime = localUtime;
-                delayAccumulator -= dt;
-                verboseAccumulator += dt;
+                if (stepping) {
+                    steps.acquire();
+                } else if (speed > 0) {
+                    if (!started) {
+                        startNanos = System.nanoTime();
+                        startUtime = p.utime;
+                        started = true;
+                    }
 
-                // spit out some info at 1Hz
-                if (verboseAccumulator > 1.0 && verbose) {
-                    double eventDt = (lastEventUtime - verboseLastEventUtime)/1000000.0;
-                    verboseLastEventUtime = lastEventUtime;
-                    System.err.printf("LogFile: rate = %8.3f, position = %8.3f %%\n",
-                                      eventDt/verboseAccumulator,
-                                      log.getPositionFraction()*100.0);
-                    verboseAccumulator = 0;
+                    long deadline = startNanos + (long) ((p.utime - startUtime) * 1000 / speed);
+                    long now = waitUntil(deadline);
+                    lateness.record((now - deadline) / 1000);
                 }
 
-                // sleep if necessary.
-                if (delayAccumulator > 0.001) {
-                    int ms = (int) (delayAccumulator*1000);
-                    Thread.sleep(ms);
+                // spit out some info at 1Hz
+                long now = System.nanoTime();
+                if (verbose && now - verboseNanos > 1000000000L) {
+                    double rate = (verboseUtime < 0) ? 0 : (p.utime - verboseUtime) / ((now - verboseNanos) / 1000.0);
+                    report(lateness.since(verboseLateness),
+                           String.format("rate = %8.3f, position = %8.3f %%", rate, log.getPositionFraction()*100.0));
+                    verboseNanos = now;
+                    verboseUtime = p.utime;
+                    verboseLateness = lateness.copy();
                 }
 
                 // dispatch the message
-                lcm.receiveMessage(ev.channel, ev.data, 0, ev.data.length);
+                try {
+                    lcm.receiveMessage(p.channel, p.buf);
+                } finally {
+                    p.buf.release();
+                }
             }
         }
+
+        /** Park until spinNanos before deadline, then spin. Returns
+         * the time at which we stopped waiting.
+         **/
+        long waitUntil(long deadline) throws InterruptedException
+        {
+            long now = System.nanoTime();
+            while (deadline - now > spinNanos) {
+                LockSupport.parkNanos(deadline - now - spinNanos);
+                if (Thread.interrupted())
+                    throw new InterruptedException();
+                now = System.nanoTime();
+            }
+            while (deadline - now > 0)
+                now = System.nanoTime();
+            return now;
+        }
+
+        void report(Histogram h, String what)
+        {
+            if (!stepping && speed > 0 && h.getTotalCount() > 0)
+                System.err.printf("LogFile: %s, late p50 = %d us, p99 = %d us, max = %d us\n", what,
+                                  h.getValueAtPercentile(50), h.getValueAtPercentile(99), h.getMax());
+            else
+                System.err.printf("LogFile: %s\n", what);
+        }
     }
 }
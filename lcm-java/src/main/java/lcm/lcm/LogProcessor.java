@@ -0,0 +1,364 @@
+package lcm.lcm;
+
+import java.io.*;
+import java.util.*;
+import java.util.regex.*;
+
+import lcm.logging.*;
+
+/** Runs a log through subscribers as fast as it can be read, for
+ * offline processing, dispatching on a pool of worker threads.
+ *
+ * Messages on one channel are delivered in log order, one at a time;
+ * different channels are delivered concurrently, so that a log of
+ * several sensors keeps several cores busy. Channels matching a
+ * regex given to addGroup() are delivered in order with respect to
+ * each other, as if they were one channel (addGroup(".*") gives a
+ * single, fully ordered stream). Nothing is guaranteed about the
+ * order of messages in different groups.
+ *
+ * Subscribe to the LCM returned by getLCM(). A subscriber that gets
+ * more than one group must be thread-safe, since it may be called
+ * from several workers at once.
+ *
+ * Each channel or group has its own queue. A queue with messages
+ * waiting is handed to the next free worker, which delivers up to
+ * BATCH of them before giving other queues a turn. The reader stops
+ * when maxQueuedBytes of messages are waiting, so memory use does not
+ * depend on the size of the log.
+ **/
+public class LogProcessor
+{
+    static final int BATCH = 64;
+
+    final LCM lcm;
+    final String path;
+    final int nthreads;
+    long maxQueuedBytes = 4*1024*1024;
+
+    ArrayList<Pattern> groups = new ArrayList<Pattern>();
+    ArrayList<Lane> groupLanes = new ArrayList<Lane>();
+    HashMap<String, Lane> lanes = new HashMap<String, Lane>(); // by channel, used by the reader
+
+    // guarded by this
+    ArrayDeque<Lane> ready = new ArrayDeque<Lane>();
+    long queuedBytes;
+    int nwaiting;
+    boolean readerWaiting;
+    boolean finished;
+    volatile Throwable failure; // an Error thrown by a subscriber
+
+    long nevents, nbytes;
+
+    /** The messages for one channel or group. A lane is in ready, or
+     * owned by a worker, while it has messages waiting (scheduled);
+     * so only one worker delivers its messages at a time.
+     **/
+    static class Lane
+    {
+        String name;
+        ArrayDeque<String> channels = new ArrayDeque<String>();
+        ArrayDeque<LCMBuffer> bufs = new ArrayDeque<LCMBuffer>();
+        boolean scheduled;
+        long ndelivered;
+
+        Lane(String name)
+        {
+            this.name = name;
+        }
+    }
+
+    /** Process the log at path with one worker per processor. **/
+    public LogProcessor(String path)
+    {
+        this(path, Runtime.getRuntime().availableProcessors());
+    }
+
+    public LogProcessor(String path, int nthreads)
+    {
+        this(new LCM(new ArrayList<Provider>()), path, nthreads);
+    }
+
+    /** Deliver through an existing LCM, for subscribers that publish
+     * results through its providers.
+     **/
+    public LogProcessor(LCM lcm, String path, int nthreads)
+    {
+        if (nthreads < 1)
+            throw new IllegalArgumentException("nthreads must be at least 1");
+
+        this.lcm = lcm;
+        this.path = path;
+        this.nthreads = nthreads;
+    }
+
+    /** The LCM whose subscribers receive the log's messages. **/
+    public LCM getLCM()
+    {
+        return lcm;
+    }
+
+    /** Deliver all channels matching regex in order, as one group.
+     * A channel belongs to the first group it matches.
+     **/
+    public void addGroup(String regex)
+    {
+        groups.add(Pattern.compile(regex));
+        groupLanes.add(new Lane(regex));
+    }
+
+    /** How many bytes of messages may be read ahead of the workers
+     * (default 4 MB, so that most are still in cache when handled).
+     **/
+    public void setMaxQueuedBytes(long maxQueuedBytes)
+    {
+        this.maxQueuedBytes = maxQueuedBytes;
+    }
+
+    Lane getLane(String channel)
+    {
+        Lane lane = lanes.get(channel);
+        if (lane != null)
+            return lane;
+
+        for (int i = 0; i < groups.size() && lane == null; i++) {
+            if (groups.get(i).matcher(channel).matches())
+                lane = groupLanes.get(i);
+        }
+        if (lane == null)
+            lane = new Lane(channel);
+
+        lanes.put(channel, lane);
+        return lane;
+    }
+
+    /** Read the whole log, returning once every message has been
+     * delivered. A subscriber's RuntimeException is reported and
+     * processing continues; if a subscriber throws an Error, processing
+     * stops and run() throws it once the workers have finished.
+     **/
+    public void run() throws IOException
+    {
+        Log log = new Log(path, "r");
+        BufferPool pool = lcm.getBufferPool();
+
+        synchronized(this) {
+            finished = false;
+            failure = null;
+        }
+
+        WorkerThread workers[] = new WorkerThread[nthreads];
+        for (int i = 0; i < nthreads; i++) {
+            workers[i] = new WorkerThread(i);
+            workers[i].start();
+        }
+
+        // events are read in batches and handed over with one lock
+        String channels[] = new String[BATCH];
+        LCMBuffer bufs[] = new LCMBuffer[BATCH];
+        Log.Event ev = new Log.Event();
+        boolean eof = false;
+
+        try {
+            while (!eof) {
+                int n = 0;
+                long batchBytes = 0;
+                try {
+                    while (n < BATCH) {
+                        bufs[n] = log.readNext(ev, pool);
+                        channels[n] = ev.channel;
+                        batchBytes += bufs[n].getLength();
+                        n++;
+                    }
+                } catch (EOFException ex) {
+                    eof = true;
+                }
+
+                synchronized(this) {
+                    for (int i = 0; i < n; i++) {
+                        Lane lane = getLane(channels[i]);
+                        lane.channels.add(channels[i]);
+                        lane.bufs.add(bufs[i]);
+                        if (!lane.scheduled) {
+                            lane.scheduled = true;
+                            ready.add(lane);
+                        }
+                        channels[i] = null;
+                        bufs[i] = null;
+                    }
+                    queuedBytes += batchBytes;
+                    nevents += n;
+                    nbytes += batchBytes;
+
+                    if (nwaiting > 0)
+                        notifyAll();
+
+                    while (queuedBytes >= maxQueuedBytes && failure == null) {
+                        readerWaiting = true;
+                        try {
+                            wait();
+                        } catch (InterruptedException ex) {
+                            throw new InterruptedIOException("LogProcessor interrupted");
+                        }
+                    }
+                    readerWaiting = false;
+
+                    if (failure != null)
+                        break;
+                }
+            }
+        } finally {
+            log.close();
+
+            synchronized(this) {
+                finished = true;
+                if (!eof || failure != null) {
+                    // something went wrong: discard what is queued
+                    for (Lane lane : ready)
+                        discard(lane);
+                    ready.clear();
+                }
+                notifyAll();
+            }
+
+            for (WorkerThread w : workers) {
+                try {
+                    w.join();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        Throwable t;
+        synchronized(this) {
+            t = failure;
+        }
+        if (t instanceof Error)
+            throw (Error) t;
+        if (t != null)
+            throw new IOException("LogProcessor: subscriber failed", t);
+    }
+
+    /** Release a lane's waiting messages without delivering them. **/
+    void discard(Lane lane)
+    {
+        for (LCMBuffer buf : lane.bufs)
+            queuedBytes -= buf.getLength();
+        for (LCMBuffer buf : lane.bufs)
+            buf.release();
+        lane.bufs.clear();
+        lane.channels.clear();
+        lane.scheduled = false;
+    }
+
+    /** Number of events read by run(). **/
+    public synchronized long getNumEvents()
+    {
+        return nevents;
+    }
+
+    /** Number of message bytes read by run(). **/
+    public synchronized long getNumBytes()
+    {
+        return nbytes;
+    }
+
+    /** Number of messages delivered, by channel or group. **/
+    public synchronized Map<String, Long> getDelivered()
+    {
+        TreeMap<String, Long> delivered = new TreeMap<String, Long>();
+        for (Lane lane : lanes.values())
+            delivered.put(lane.name, lane.ndelivered);
+        return delivered;
+    }
+
+    class WorkerThread extends Thread
+    {
+        WorkerThread(int idx)
+        {
+            setDaemon(true);
+            setName("LCM LogProcessor "+idx);
+        }
+
+        public void run()
+        {
+            String channels[] = new String[BATCH];
+            LCMBuffer bufs[] = new LCMBuffer[BATCH];
+            Lane lane = null;
+            int n = 0, ndelivered = 0;
+            long batchBytes = 0;
+
+            while (true) {
+                synchronized(LogProcessor.this) {
+                    if (lane != null) {
+                        // done with the last batch; the lane goes back
+                        // in line if more has arrived.
+                        lane.ndelivered += ndelivered;
+                        queuedBytes -= batchBytes;
+                        if (failure != null)
+                            discard(lane);
+                        else if (lane.bufs.isEmpty())
+                            lane.scheduled = false;
+                        else
+                            ready.add(lane);
+
+                        if (readerWaiting && queuedBytes < maxQueuedBytes)
+                            LogProcessor.this.notifyAll();
+                    }
+
+                    if (failure != null) {
+                        for (Lane l : ready)
+                            discard(l);
+                        ready.clear();
+                    }
+
+                    while (ready.isEmpty() && !finished) {
+                        nwaiting++;
+                        try {
+                            LogProcessor.this.wait();
+                        } catch (InterruptedException ex) {
+                        }
+                        nwaiting--;
+                    }
+
+                    lane = ready.poll();
+                    if (lane == null)
+                        return;
+
+                    n = Math.min(BATCH, lane.bufs.size());
+                    for (int i = 0; i < n; i++) {
+                        channels[i] = lane.channels.poll();
+                        bufs[i] = lane.bufs.poll();
+                    }
+                }
+
+                batchBytes = 0;
+                ndelivered = 0;
+                for (int i = 0; i < n; i++) {
+                    batchBytes += bufs[i].getLength();
+                    try {
+                        if (failure == null) {
+                            ndelivered++;
+                            lcm.receiveMessage(channels[i], bufs[i]);
+                        }
+                    } catch (RuntimeException ex) {
+                        System.err.println("LCM LogProcessor ex: "+ex);
+                    } catch (Throwable ex) {
+                        // give up: the reader and the other workers
+                        // stop, and run() throws it
+                        synchronized(LogProcessor.this) {
+                            if (failure == null)
+                                failure = ex;
+                            LogProcessor.this.notifyAll();
+                        }
+                    } finally {
+                        bufs[i].release();
+                        channels[i] = null;
+                        bufs[i] = null;
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package lcm.lcm;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/** LCM provider for the memq: URL. Messages are passed between LCM
+ * instances in the same JVM that use the same URL, without touching
+ * the network or the kernel.
+ *
+ * A published message is copied once into a pooled buffer, which is
+ * shared by every receiving instance. Each instance has a queue and a
+ * dispatch thread that hands messages to LCM.receiveMessage(), so
+ * subscribers run on that thread just as they would on a network
+ * provider's receive thread, and can publish in turn without risking
+ * a deadlock. Instances with no subscription matching the channel are
+ * skipped.
+ *
+ * The name after memq:// selects a bus; "memq://" alone is the default
+ * bus. Like udpm://, the publishing instance receives its own
+ * messages.
+ *
+ * URL options:
+ *   queue=N     messages queued per instance (default 1024)
+ *   block=true  when a queue is full, the publisher waits for room.
+ *               By default the oldest queued message is dropped (and
+ *               counted) instead; waiting can deadlock if subscribers
+ *               on two instances publish to each other.
+ **/
+public class MemqProvider implements Provider
+{
+    static final int DEFAULT_QUEUE = 1024;
+
+    static final ConcurrentHashMap<String, Bus> buses = new ConcurrentHashMap<String, Bus>();
+
+    /** The instances using one memq URL. **/
+    static class Bus
+    {
+        static final MemqProvider NONE[] = new MemqProvider[0];
+
+        // copy-on-write, so publish() does not lock
+        volatile MemqProvider members[] = NONE;
+
+        synchronized void add(MemqProvider p)
+        {
+            MemqProvider m[] = Arrays.copyOf(members, members.length + 1);
+            m[members.length] = p;
+            members = m;
+        }
+
+        synchronized void remove(MemqProvider p)
+        {
+            ArrayList<MemqProvider> m = new ArrayList<MemqProvider>(Arrays.asList(members));
+            m.remove(p);
+            members = m.toArray(new MemqProvider[m.size()]);
+        }
+    }
+
+    LCM lcm;
+    BufferPool pool;
+    Bus bus;
+    boolean block;
+
+    // circular queue of messages waiting for the dispatch thread,
+    // guarded by this provider's monitor.
+    final String    channels[];
+    final LCMBuffer bufs[];
+    int head, size;
+    boolean closed;
+
+    long nreceived, ndropped;
+
+    DispatchThread dispatcher;
+
+    public MemqProvider(LCM lcm, URLParser up)
+    {
+        this.lcm = lcm;
+        this.pool = (lcm != null) ? lcm.getBufferPool() : new BufferPool();
+        this.block = up.get("block", false);
+
+        int queue = up.get("queue", DEFAULT_QUEUE);
+        if (queue < 1)
+            throw new IllegalArgumentException("memq: queue must be at least 1");
+        channels = new String[queue];
+        bufs = new LCMBuffer[queue];
+
+        dispatcher = new DispatchThread();
+        dispatcher.start();
+
+        String name = up.get("network", "");
+        Bus b = buses.get(name);
+        if (b == null) {
+            b = new Bus();
+            Bus prev = buses.putIfAbsent(name, b);
+            if (prev != null)
+                b = prev;
+        }
+        bus = b;
+        bus.add(this);
+    }
+
+    public void publish(String channel, byte data[], int offset, int length)
+    {
+        LCMBuffer buf = null;
+
+        for (MemqProvider p : bus.members) {
+            if (!p.isSubscribed(channel))
+                continue;
+
+            if (buf == null) {
+                buf = pool.lease(length);
+                System.arraycopy(data, offset, buf.getData(), 0, length);
+            }
+            p.enqueue(channel, buf.retain());
+        }
+
+        if (buf != null)
+            buf.release();
+    }
+
+    boolean isSubscribed(String channel)
+    {
+        return lcm != null && lcm.subscriptions.get(channel).length > 0;
+    }
+
+    synchronized void enqueue(String channel, LCMBuffer buf)
+    {
+        if (block && Thread.currentThread() != dispatcher) {
+            while (size == bufs.length && !closed) {
+                try {
+                    wait();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    buf.release();
+                    return;
+                }
+            }
+        }
+
+        if (closed) {
+            buf.release();
+            return;
+        }
+
+        if (size == bufs.length) {
+            // drop the oldest
+            bufs[head].release();
+            bufs[head] = null;
+            channels[head] = null;
+            head = (head + 1) % bufs.length;
+            size--;
+            ndropped++;
+        }
+
+        int tail = (head + size) % bufs.length;
+        channels[tail] = channel;
+        bufs[tail] = buf;
+        size++;
+        nreceived++;
+
+        if (size == 1)
+            notifyAll();
+    }
+
+    /** Messages queued for this instance. **/
+    public synchronized long getNumReceived()
+    {
+        return nreceived;
+    }
+
+    /** Messages dropped because this instance's queue was full. **/
+    public synchronized long getNumDropped()
+    {
+        return ndropped;
+    }
+
+    public void subscribe(String channel)
+    {
+    }
+
+    public void unsubscribe(String channel)
+    {
+    }
+
+    public void close()
+    {
+        bus.remove(this);
+
+        synchronized(this) {
+            closed = true;
+            notifyAll();
+        }
+
+        if (Thread.currentThread() != dispatcher) {
+            try {
+                dispatcher.join();
+            } catch (InterruptedException ex) {
+            }
+        }
+    }
+
+    class DispatchThread extends Thread
+    {
+        String    batchChannels[] = new String[channels.length];
+        LCMBuffer batchBufs[] = new LCMBuffer[bufs.length];
+
+        DispatchThread()
+        {
+            setName("LCM memq dispatch");
+            setDaemon(true);
+        }
+
+        public void run()
+        {
+            while (true) {
+                int n;
+
+                // take everything queued at once, so publishers
+                // contend for the lock once per batch.
+                synchronized(MemqProvider.this) {
+                    while (size == 0 && !closed) {
+                        try {
+                            MemqProvider.this.wait();
+                        } catch (InterruptedException ex) {
+                        }
+                    }
+
+                    if (size == 0)
+                        break;
+
+                    n = size;
+                    for (int i = 0; i < n; i++) {
+                        int idx = (head + i) % bufs.length;
+                        batchChannels[i] = channels[idx];
+                        batchBufs[i] = bufs[idx];
+                        channels[idx] = null;
+                        bufs[idx] = null;
+                    }
+                    head = (head + n) % bufs.length;
+                    size = 0;
+
+                    if (block)
+                        MemqProvider.this.notifyAll();
+                }
+
+                for (int i = 0; i < n; i++) {
+                    try {
+                        if (lcm != null && !closed)
+                            lcm.receiveMessage(batchChannels[i], batchBufs[i]);
+                    } catch (Exception ex) {
+                        System.err.println("MemqProvider ex: "+ex);
+                    }
+                    batchBufs[i].release();
+                    batchChannels[i] = null;
+                    batchBufs[i] = null;
+                }
+            }
+
+            // closed: discard anything still queued
+            synchronized(MemqProvider.this) {
+                for (int i = 0; i < size; i++)
+                    bufs[(head + i) % bufs.length].release();
+                size = 0;
+            }
+        }
+    }
+}
@@ -14,6 +14,15 @@ import java.util.*;
  * <p>
  * The aggregator has configurable limits.  If too many messages are aggregated
  * without having been retrieved, then older messages are discarded.
+ * Individual channels can be given limits of their own, e.g. to keep only
+ * the latest message on a channel that is published much faster than it
+ * is read, without losing other channels' messages.
+ * <p>
+ * Any number of threads may retrieve messages; each message goes to one
+ * of them. {@link #drainTo drainTo} retrieves a batch under one lock.
+ * <p>
+ * To keep push-style delivery but move it off the provider's thread, see
+ * {@link LCM#subscribeAsync}.
  */
 public class MessageAggregator
     implements LCMSubscriber
@@ -30,6 +39,9 @@ public class MessageAggregator
          * Channel on which the message was received.
          */
         final public String channel;
+
+        boolean discarded;
+
         public Message(String channel_, byte[] data_)
         {
             data = data_;
@@ -37,36 +49,156 @@ public class MessageAggregator
         }
     }
 
-// Would prefer to use ArrayDequeue for performance reasons, but it's too new
-// (only since Java 1.6)
-//    Deque<Message> messages = new ArrayDeque<Message>();
-    LinkedList<Message> messages = new LinkedList<Message>();
+    /**
+     * Messages in the order received, in a circular array that grows as
+     * needed. A message discarded from the middle, because its channel
+     * has a limit of its own, is only marked as discarded; it stays
+     * until it reaches the head or the array is compacted.
+     */
+    Message ring[] = new Message[16];
+    int head, count; // count includes discarded messages
+    int size;        // messages that can still be retrieved
 
     long queue_data_size = 0;
     long max_queue_data_size = 100 * (1 << 20); // 100 megabytes
     int max_queue_length = Integer.MAX_VALUE;
 
+    long ndiscarded;
+    int nwaiting; // consumers blocked in wait()
+
+    /** A channel's own limit, and its retrievable messages, oldest first. **/
+    static class ChannelQueue
+    {
+        int max_messages;
+        ArrayDeque<Message> messages = new ArrayDeque<Message>();
+    }
+
+    HashMap<String, ChannelQueue> channelQueues = new HashMap<String, ChannelQueue>();
+
     /**
      * Internal method, called by LCM when a message is received.
      */
-    public synchronized void messageReceived(LCM lcm, String channel,
-                                             LCMDataInputStream dins)
+    public void messageReceived(LCM lcm, String channel,
+                                LCMDataInputStream dins)
     {
+        // copy before taking the lock, so consumers aren't held up.
+        byte data[] = new byte[dins.available()];
         try {
-            byte data[] = new byte[dins.available()];
             dins.readFully(data);
+        } catch (IOException xcp) {
+            return;
+        }
+        Message m = new Message(channel, data);
 
-            messages.addLast(new Message(channel, data));
-            queue_data_size += data.length;
+        synchronized(this) {
+            add(m);
+
+            ChannelQueue cq = channelQueues.isEmpty() ? null : channelQueues.get(channel);
+            if (cq != null) {
+                cq.messages.add(m);
+                if (cq.messages.size() > cq.max_messages)
+                    discard(cq.messages.poll());
+            }
 
             while(queue_data_size > max_queue_data_size ||
-                  messages.size() > max_queue_length) {
-                Message to_remove = messages.removeFirst();
-                queue_data_size -= to_remove.data.length;
+                  size > max_queue_length) {
+                poll();
+                ndiscarded++;
             }
 
-            notify();
-        } catch (IOException xcp) {}
+            if (nwaiting > 0)
+                notify();
+        }
+    }
+
+    void add(Message m)
+    {
+        if (count == ring.length) {
+            if (count - size >= count / 2)
+                compact(ring.length);
+            else
+                compact(ring.length * 2);
+        }
+
+        ring[(head + count) % ring.length] = m;
+        count++;
+        size++;
+        queue_data_size += m.data.length;
+    }
+
+    /** Move the messages still retrievable to the start of a new array. **/
+    void compact(int capacity)
+    {
+        Message newRing[] = new Message[capacity];
+        int n = 0;
+        for (int i = 0; i < count; i++) {
+            Message m = ring[(head + i) % ring.length];
+            if (!m.discarded)
+                newRing[n++] = m;
+        }
+        ring = newRing;
+        head = 0;
+        count = n;
+    }
+
+    /** Mark a message as discarded, leaving it in the ring. **/
+    void discard(Message m)
+    {
+        m.discarded = true;
+        size--;
+        queue_data_size -= m.data.length;
+        ndiscarded++;
+    }
+
+    /** Remove and return the oldest retrievable message, or null. **/
+    Message poll()
+    {
+        while (count > 0) {
+            Message m = ring[head];
+            ring[head] = null;
+            head = (head + 1) % ring.length;
+            count--;
+
+            if (m.discarded)
+                continue;
+
+            ChannelQueue cq = channelQueues.isEmpty() ? null : channelQueues.get(m.channel);
+            if (cq != null && cq.messages.peek() == m)
+                cq.messages.poll();
+
+            size--;
+            queue_data_size -= m.data.length;
+            return m;
+        }
+        return null;
+    }
+
+    /**
+     * Waits until a message is available, or for timeout_ms (if
+     * non-negative). Returns false if none is.
+     */
+    boolean await(long timeout_ms)
+    {
+        long deadline = System.currentTimeMillis() + timeout_ms;
+
+        nwaiting++;
+        try {
+            while (size == 0) {
+                if (timeout_ms < 0) {
+                    wait();
+                } else {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0)
+                        return false;
+                    wait(remaining);
+                }
+            }
+            return true;
+        } catch (InterruptedException xcp) {
+            return false;
+        } finally {
+            nwaiting--;
+        }
     }
 
     /**
@@ -105,6 +237,61 @@ public class MessageAggregator
      */
     public synchronized int getMaxMessages() { return max_queue_length; }
 
+    /**
+     * Limits the number of unretrieved messages kept from one channel.
+     *
+     * When a channel has more, its oldest are discarded; messages on
+     * other channels are not affected. This is in addition to the
+     * aggregator's overall limits.
+     *
+     * @param channel the channel name (not a regular expression).
+     * @param val message limit, or 0 to remove the channel's limit.
+     */
+    public synchronized void setMaxMessages(String channel, int val)
+    {
+        if (val < 0)
+            throw new IllegalArgumentException("limit must not be negative");
+
+        if (val == 0) {
+            channelQueues.remove(channel);
+            return;
+        }
+
+        ChannelQueue cq = channelQueues.get(channel);
+        if (cq == null) {
+            cq = new ChannelQueue();
+            for (int i = 0; i < count; i++) {
+                Message m = ring[(head + i) % ring.length];
+                if (!m.discarded && m.channel.equals(channel))
+                    cq.messages.add(m);
+            }
+            channelQueues.put(channel, cq);
+        }
+
+        cq.max_messages = val;
+        while (cq.messages.size() > val)
+            discard(cq.messages.poll());
+    }
+
+    /**
+     * Keeps only the most recent unretrieved message from a channel,
+     * for channels where only the latest value matters. Equivalent to
+     * setMaxMessages(channel, 1).
+     */
+    public void setLatestOnly(String channel)
+    {
+        setMaxMessages(channel, 1);
+    }
+
+    /**
+     * Returns the number of messages discarded, because of either the
+     * aggregator's limits or a channel's.
+     */
+    public synchronized long getNumDiscarded()
+    {
+        return ndiscarded;
+    }
+
     /**
      * Attempt to retrieve the next received LCM message.
      * @param timeout_ms Max # of milliseconds to wait for a message.  If 0,
@@ -113,29 +300,10 @@ public class MessageAggregator
      */
     public synchronized Message getNextMessage(long timeout_ms)
     {
-        if(!messages.isEmpty()) {
-            Message m = messages.removeFirst();
-            queue_data_size -= m.data.length;
-            return m;
-        }
-
-        if(timeout_ms == 0)
+        if (size == 0 && (timeout_ms == 0 || !await(timeout_ms)))
             return null;
 
-        try {
-            if(timeout_ms > 0)
-                wait(timeout_ms);
-            else
-                wait();
-
-            if(!messages.isEmpty()) {
-                Message m = messages.removeFirst();
-                queue_data_size -= m.data.length;
-                return m;
-            }
-        } catch (InterruptedException xcp) { }
-
-        return null;
+        return poll();
     }
 
     /**
@@ -146,11 +314,41 @@ public class MessageAggregator
         return getNextMessage(-1);
     }
 
+    /**
+     * Retrieves up to max messages at once, oldest first, without
+     * waiting. Cheaper than calling getNextMessage() for each.
+     *
+     * @param c collection to which the messages are added.
+     * @return the number of messages added.
+     */
+    public synchronized int drainTo(Collection<? super Message> c, int max)
+    {
+        int n = 0;
+        while (n < max && size > 0) {
+            c.add(poll());
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * Like drainTo(c, max), but if no message is available, first
+     * waits up to timeout_ms milliseconds for one (indefinitely if
+     * less than 0).
+     */
+    public synchronized int drainTo(Collection<? super Message> c, int max, long timeout_ms)
+    {
+        if (size == 0 && (timeout_ms == 0 || !await(timeout_ms)))
+            return 0;
+
+        return drainTo(c, max);
+    }
+
     /**
      * Returns the number of received messages waiting to be retrieved.
      */
     public synchronized int numMessagesAvailable()
     {
-        return messages.size();
+        return size;
     }
 }
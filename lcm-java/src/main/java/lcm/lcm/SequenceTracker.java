@@ -0,0 +1,239 @@
+package lcm.lcm;
+
+import java.net.*;
+import java.util.*;
+
+/** Detects lost, reordered and duplicated udpm messages from their
+ * sequence numbers.
+ *
+ * A publisher numbers every message it sends, on any channel, one
+ * after another, so gaps can only be counted per sender: a message
+ * that never arrives doesn't say which channel it was on. Messages
+ * that do arrive are also counted per (sender, channel), along with
+ * any that arrive late (after a later message) or twice. A message
+ * first counted as lost and then arriving late is moved from lost to
+ * reordered, if it is within WINDOW messages of the newest.
+ *
+ * Fragmented messages are counted when they are completed, so one
+ * that loses a fragment counts as lost.
+ *
+ * Updated by the provider's reader thread; getSenders() may be called
+ * from any thread.
+ **/
+public class SequenceTracker
+{
+    static final int WINDOW = 1024; // a power of two
+    static final int MAX_SENDERS = 1024;
+
+    /** Counts for one channel from one sender. **/
+    public static class ChannelCounts
+    {
+        public long received, reordered, duplicates;
+
+        ChannelCounts copy()
+        {
+            ChannelCounts c = new ChannelCounts();
+            c.received = received;
+            c.reordered = reordered;
+            c.duplicates = duplicates;
+            return c;
+        }
+    }
+
+    /** Counts for one sender, identified by its address and port. **/
+    public static class Sender
+    {
+        public final SocketAddress address;
+
+        public long received, lost, reordered, duplicates;
+
+        /** Times the sequence numbers jumped backwards too far to be
+         * reordering, e.g. because the sender restarted. **/
+        public long restarts;
+
+        public long last_nanos;
+        public HashMap<String, ChannelCounts> channels = new HashMap<String, ChannelCounts>();
+
+        int  first;                 // sequence number of the first message
+        int  expected;              // sequence number of the next message
+        long seen[];                // bit (seq % WINDOW): seq was received
+
+        Sender(SocketAddress address)
+        {
+            this.address = address;
+        }
+
+        /** Fraction of this sender's messages that were lost. **/
+        public double getLossRate()
+        {
+            long total = received + lost;
+            return total == 0 ? 0 : lost / (double) total;
+        }
+
+        Sender copy()
+        {
+            Sender s = new Sender(address);
+            s.received = received;
+            s.lost = lost;
+            s.reordered = reordered;
+            s.duplicates = duplicates;
+            s.restarts = restarts;
+            s.last_nanos = last_nanos;
+            for (Map.Entry<String, ChannelCounts> e : channels.entrySet())
+                s.channels.put(e.getKey(), e.getValue().copy());
+            return s;
+        }
+
+        public String toString()
+        {
+            return String.format("%s: %d received, %d lost (%.3f%%), %d reordered, %d duplicates, %d restarts",
+                                 address, received, lost, getLossRate()*100, reordered, duplicates, restarts);
+        }
+    }
+
+    HashMap<SocketAddress, Sender> senders = new HashMap<SocketAddress, Sender>();
+    Sender last; // most messages come from the same sender as the last one
+
+    long nreceived, nlost, nreordered, nduplicates;
+
+    /** Count a message with sequence number seq on channel from a
+     * sender.
+     **/
+    public synchronized void record(SocketAddress from, int seq, String channel)
+    {
+        Sender s = last;
+        if (s == null || !s.address.equals(from)) {
+            s = senders.get(from);
+            if (s == null)
+                s = addSender(from, seq);
+            last = s;
+        }
+
+        s.last_nanos = System.nanoTime();
+
+        ChannelCounts c = s.channels.get(channel);
+        if (c == null) {
+            c = new ChannelCounts();
+            s.channels.put(channel, c);
+        }
+
+        int diff = seq - s.expected; // wraps correctly
+
+        if (diff >= 0) {
+            if (diff > 0) {
+                s.lost += diff;
+                nlost += diff;
+                clearSeen(s, s.expected, diff);
+            }
+            s.expected = seq + 1;
+        } else if (diff >= -WINDOW) {
+            if (isSeen(s, seq)) {
+                s.duplicates++;
+                c.duplicates++;
+                nduplicates++;
+                return;
+            }
+            // counted as lost when we skipped over it, unless it was
+            // sent before the first one we saw.
+            if (seq - s.first > 0) {
+                s.lost--;
+                nlost--;
+            }
+            s.reordered++;
+            c.reordered++;
+            nreordered++;
+        } else {
+            s.restarts++;
+            Arrays.fill(s.seen, 0);
+            s.first = seq;
+            s.expected = seq + 1;
+        }
+
+        setSeen(s, seq);
+        s.received++;
+        c.received++;
+        nreceived++;
+    }
+
+    Sender addSender(SocketAddress from, int seq)
+    {
+        if (senders.size() >= MAX_SENDERS) {
+            // forget whoever we heard from least recently
+            Sender oldest = null;
+            for (Sender s : senders.values()) {
+                if (oldest == null || s.last_nanos - oldest.last_nanos < 0)
+                    oldest = s;
+            }
+            senders.remove(oldest.address);
+        }
+
+        Sender s = new Sender(from);
+        s.first = seq;
+        s.expected = seq;
+        s.seen = new long[WINDOW / 64];
+        senders.put(from, s);
+        return s;
+    }
+
+    static boolean isSeen(Sender s, int seq)
+    {
+        int i = seq & (WINDOW - 1);
+        return (s.seen[i >> 6] & (1L << i)) != 0;
+    }
+
+    static void setSeen(Sender s, int seq)
+    {
+        int i = seq & (WINDOW - 1);
+        s.seen[i >> 6] |= 1L << i;
+    }
+
+    // forget n sequence numbers from seq on, which haven't arrived.
+    static void clearSeen(Sender s, int seq, int n)
+    {
+        if (n >= WINDOW) {
+            Arrays.fill(s.seen, 0);
+            return;
+        }
+        for (int k = 0; k < n; k++) {
+            int i = (seq + k) & (WINDOW - 1);
+            s.seen[i >> 6] &= ~(1L << i);
+        }
+    }
+
+    /** A copy of the counts for every sender heard from. **/
+    public synchronized ArrayList<Sender> getSenders()
+    {
+        ArrayList<Sender> copy = new ArrayList<Sender>();
+        for (Sender s : senders.values())
+            copy.add(s.copy());
+        return copy;
+    }
+
+    public synchronized long getNumReceived()
+    {
+        return nreceived;
+    }
+
+    /** Messages that never arrived (net of those that arrived late). **/
+    public synchronized long getNumLost()
+    {
+        return nlost;
+    }
+
+    public synchronized long getNumReordered()
+    {
+        return nreordered;
+    }
+
+    public synchronized long getNumDuplicates()
+    {
+        return nduplicates;
+    }
+
+    /** Fraction of all messages that were lost. **/
+    public synchronized double getLossRate()
+    {
+        long total = nreceived + nlost;
+        return total == 0 ? 0 : nlost / (double) total;
+    }
+}
@@ -0,0 +1,504 @@
+package lcm.lcm;
+
+import java.io.*;
+import java.lang.invoke.*;
+import java.lang.reflect.*;
+import java.util.*;
+import java.util.concurrent.locks.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+
+/** LCM provider for the shm: URL. Messages are exchanged between
+ * processes on the same host through a ring buffer in a memory-mapped
+ * file, normally under /dev/shm, so they never pass through the
+ * network stack.
+ *
+ * The ring is a broadcast log: publishers append messages, and each
+ * reader follows them at its own position, starting with the first
+ * message published after its first subscribe(); a provider that is
+ * only used to publish has no reader. Publishers never wait
+ * for readers. A reader that falls more than a ring's worth of bytes
+ * behind loses the overwritten messages (they are counted) and skips
+ * ahead, much as a slow udpm:// reader loses datagrams.
+ *
+ * Publishers in different processes take turns through a lock on the
+ * file. Readers poll: they spin briefly after each message, then sleep
+ * between checks, starting with the poll interval and doubling it up
+ * to maxpoll while nothing arrives. So a busy reader adds little
+ * latency, and an idle one wakes up rarely.
+ *
+ * Other processes see the ring through plain memory accesses, which
+ * the Java memory model says nothing about. Publishers and readers
+ * order a message against the header positions with the hardware
+ * fences of sun.misc.Unsafe (storeFence and loadFence). If those
+ * cannot be found, a warning is printed and only a volatile access
+ * is used, which is enough on x86 but not on weaker hardware such as
+ * ARM.
+ *
+ * URL: shm://PATH?options, e.g. shm:///dev/shm/lcm. Every process must
+ * use the same path. The path defaults to /dev/shm/lcm.
+ *
+ * URL options:
+ *   size=N     ring size in bytes (default 16 MB). Only used by the
+ *              process that creates the file; the largest message is
+ *              half this size.
+ *   poll=N     microseconds a reader first sleeps between checks
+ *              once it has run out of messages (default 50)
+ *   maxpoll=N  microseconds a reader that stays idle backs off to
+ *              (default 5000)
+ **/
+public class ShmProvider implements Provider
+{
+    static final int MAGIC = 0x4c435348; // ascii of "LCSH"
+    static final int VERSION = 1;
+
+    static final String DEFAULT_PATH = "/dev/shm/lcm";
+    static final int DEFAULT_SIZE = 16*1024*1024;
+    static final int DEFAULT_POLL_US = 50;
+    static final int DEFAULT_MAX_POLL_US = 5000;
+
+    // file header: magic, version, capacity, then the positions below.
+    // Positions count bytes ever written to the ring and never wrap.
+    static final int HEADER_SIZE = 64;
+    static final int OFFSET_CAPACITY = 8;
+    static final int OFFSET_WRITE_POS = 16;   // end of the last complete message
+    static final int OFFSET_RESERVE_POS = 24; // end of the message being written
+
+    // each message: long position, int channel length (-1 for padding
+    // to the end of the ring), int data length, channel, data; padded
+    // to a multiple of 16 bytes.
+    static final int RECORD_HEADER_SIZE = 16;
+    static final int MAX_CHANNEL_LENGTH = 256;
+
+    // spins through Thread.yield() before a reader goes to sleep
+    static final int SPIN_COUNT = 100;
+
+    // channel names a reader keeps decoded; a power of two
+    static final int CHANNEL_CACHE_SIZE = 256;
+
+    static final Charset ASCII = Charset.forName("US-ASCII");
+
+    // sun.misc.Unsafe's fences, looked up reflectively since that
+    // class is not part of the platform API. null if unavailable.
+    static final MethodHandle STORE_FENCE, LOAD_FENCE;
+
+    static {
+        MethodHandle store = null, load = null;
+        try {
+            Class<?> cls = Class.forName("sun.misc.Unsafe");
+            Field f = cls.getDeclaredField("theUnsafe");
+            f.setAccessible(true);
+            Object unsafe = f.get(null);
+            MethodType type = MethodType.methodType(void.class);
+            store = MethodHandles.lookup().findVirtual(cls, "storeFence", type).bindTo(unsafe);
+            load = MethodHandles.lookup().findVirtual(cls, "loadFence", type).bindTo(unsafe);
+        } catch (Exception ex) {
+            System.err.println("shm: memory fences unavailable, ordering is only guaranteed on x86: "+ex);
+            store = load = null;
+        }
+        STORE_FENCE = store;
+        LOAD_FENCE = load;
+    }
+
+    static volatile int fallbackBarrier;
+
+    /** Earlier loads and stores to the ring become visible to other
+     * processes before later stores.
+     **/
+    static void storeFence()
+    {
+        if (STORE_FENCE == null) {
+            fallbackBarrier = 0;
+            return;
+        }
+        try {
+            STORE_FENCE.invokeExact();
+        } catch (Throwable t) {
+            throw new RuntimeException(t);
+        }
+    }
+
+    /** Earlier loads from the ring complete before later loads and
+     * stores.
+     **/
+    static void loadFence()
+    {
+        if (LOAD_FENCE == null) {
+            int b = fallbackBarrier;
+            return;
+        }
+        try {
+            LOAD_FENCE.invokeExact();
+        } catch (Throwable t) {
+            throw new RuntimeException(t);
+        }
+    }
+
+    /** One mapping of a ring file, shared by all the providers in this
+     * JVM that use it: a file lock is held per process, so they must
+     * also share the lock.
+     **/
+    static class Ring
+    {
+        final String path;
+        final RandomAccessFile raf;
+        final FileChannel fc;
+        final MappedByteBuffer buf;
+        final long capacity;
+        int refs;
+
+        // publish state, guarded by the ring's monitor
+        final ByteBuffer writeView;
+
+        Ring(String path, int size) throws IOException
+        {
+            this.path = path;
+            raf = new RandomAccessFile(path, "rw");
+            fc = raf.getChannel();
+
+            // the first process to get here creates the ring
+            FileLock lock = fc.lock(0, HEADER_SIZE, false);
+            try {
+                ByteBuffer hdr = ByteBuffer.allocate(HEADER_SIZE);
+                boolean valid = fc.size() >= HEADER_SIZE &&
+                    fc.read(hdr, 0) == HEADER_SIZE &&
+                    hdr.getInt(0) == MAGIC && hdr.getInt(4) == VERSION &&
+                    fc.size() >= HEADER_SIZE + hdr.getLong(OFFSET_CAPACITY);
+
+                if (!valid) {
+                    long cap = (Math.max(size, 4096) + 15) & ~15L;
+                    raf.setLength(HEADER_SIZE + cap);
+                    hdr.clear();
+                    hdr.putInt(0, MAGIC);
+                    hdr.putInt(4, VERSION);
+                    hdr.putLong(OFFSET_CAPACITY, cap);
+                    fc.write(hdr, 0);
+                }
+
+                hdr.clear();
+                fc.read(hdr, 0);
+                capacity = hdr.getLong(OFFSET_CAPACITY);
+                if (capacity > Integer.MAX_VALUE - HEADER_SIZE)
+                    throw new IOException("shm: ring too large: "+capacity);
+
+                buf = fc.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + capacity);
+            } finally {
+                lock.release();
+            }
+
+            writeView = buf.duplicate();
+        }
+
+        int maxRecordSize()
+        {
+            return (int) (capacity / 2);
+        }
+
+        synchronized void publish(byte channel[], byte data[], int offset, int length) throws IOException
+        {
+            int size = recordSize(channel.length, length);
+            if (size > maxRecordSize())
+                throw new IOException("shm: message too large for ring: "+length);
+
+            FileLock lock = fc.lock(0, HEADER_SIZE, false);
+            try {
+                long pos = buf.getLong(OFFSET_WRITE_POS);
+                int off = (int) (pos % capacity);
+
+                // messages don't wrap; pad out the end of the ring.
+                if (size > capacity - off) {
+                    long end = pos + capacity - off;
+                    reserve(end);
+                    writeView.putLong(HEADER_SIZE + off, pos);
+                    writeView.putInt(HEADER_SIZE + off + 8, -1);
+                    writeView.putInt(HEADER_SIZE + off + 12, 0);
+                    pos = end;
+                    off = 0;
+                }
+
+                reserve(pos + size);
+
+                writeView.position(HEADER_SIZE + off);
+                writeView.putLong(pos);
+                writeView.putInt(channel.length);
+                writeView.putInt(length);
+                writeView.put(channel);
+                writeView.put(data, offset, length);
+
+                // readers must see the whole message before the new
+                // write position.
+                storeFence();
+                buf.putLong(OFFSET_WRITE_POS, pos + size);
+            } finally {
+                lock.release();
+            }
+        }
+
+        // tell readers which bytes are about to be overwritten, before
+        // overwriting any of them.
+        void reserve(long end)
+        {
+            buf.putLong(OFFSET_RESERVE_POS, end);
+            storeFence();
+        }
+    }
+
+    static final HashMap<String, Ring> rings = new HashMap<String, Ring>();
+
+    static Ring openRing(String path, int size) throws IOException
+    {
+        String key = new File(path).getCanonicalPath();
+
+        synchronized(rings) {
+            Ring ring = rings.get(key);
+            if (ring == null) {
+                ring = new Ring(key, size);
+                rings.put(key, ring);
+            }
+            ring.refs++;
+            return ring;
+        }
+    }
+
+    static void closeRing(Ring ring)
+    {
+        synchronized(rings) {
+            if (--ring.refs > 0)
+                return;
+            rings.remove(ring.path);
+        }
+
+        // the mapping itself stays valid until it is garbage collected
+        try {
+            ring.raf.close();
+        } catch (IOException ex) {
+        }
+    }
+
+    static int recordSize(int channelLength, int dataLength)
+    {
+        return (RECORD_HEADER_SIZE + channelLength + dataLength + 15) & ~15;
+    }
+
+    LCM lcm;
+    BufferPool pool;
+    Ring ring;
+    ReaderThread reader;
+    long pollNanos, maxPollNanos;
+
+    volatile boolean exit;
+
+    // statistics, written by the reader thread only
+    volatile long nreceived, nlapped;
+
+    HashMap<String, byte[]> channelBytesCache = new HashMap<String, byte[]>();
+    static final int MAX_CACHED_CHANNELS = 1024;
+
+    public ShmProvider(LCM lcm, URLParser up) throws IOException
+    {
+        this.lcm = lcm;
+        this.pool = (lcm != null) ? lcm.getBufferPool() : new BufferPool();
+        this.pollNanos = up.get("poll", DEFAULT_POLL_US) * 1000L;
+        this.maxPollNanos = Math.max(pollNanos, up.get("maxpoll", DEFAULT_MAX_POLL_US) * 1000L);
+
+        ring = openRing(up.get("network", DEFAULT_PATH), up.get("size", DEFAULT_SIZE));
+    }
+
+    public synchronized void publish(String channel, byte data[], int offset, int length)
+    {
+        try {
+            byte channelBytes[] = channelBytesCache.get(channel);
+            if (channelBytes == null) {
+                channelBytes = channel.getBytes("US-ASCII");
+                if (channelBytes.length > MAX_CHANNEL_LENGTH)
+                    throw new IOException("shm: channel name too long: "+channel);
+                if (channelBytesCache.size() < MAX_CACHED_CHANNELS)
+                    channelBytesCache.put(channel, channelBytes);
+            }
+
+            ring.publish(channelBytes, data, offset, length);
+        } catch (IOException ex) {
+            System.err.println("ShmProvider ex: "+ex);
+        }
+    }
+
+    /** Messages received from the ring. **/
+    public long getNumReceived()
+    {
+        return nreceived;
+    }
+
+    /** Times this reader fell a whole ring behind and skipped the
+     * messages it had missed.
+     **/
+    public long getNumLapped()
+    {
+        return nlapped;
+    }
+
+    public synchronized void subscribe(String channel)
+    {
+        if (reader == null && !exit) {
+            reader = new ReaderThread();
+            reader.start();
+        }
+    }
+
+    public void unsubscribe(String channel)
+    {
+    }
+
+    public synchronized void close()
+    {
+        if (exit)
+            return;
+
+        exit = true;
+        if (reader != null) {
+            LockSupport.unpark(reader);
+
+            try {
+                reader.join();
+            } catch (InterruptedException ex) {
+            }
+            reader = null;
+        }
+
+        closeRing(ring);
+    }
+
+    class ReaderThread extends Thread
+    {
+        ByteBuffer view = ring.buf.duplicate();
+        byte channelBuf[] = new byte[MAX_CHANNEL_LENGTH];
+
+        // decoded channel names, by a hash of their bytes, so that a
+        // message on a known channel does not allocate a String.
+        byte cachedBytes[][] = new byte[CHANNEL_CACHE_SIZE][];
+        String cachedChannels[] = new String[CHANNEL_CACHE_SIZE];
+
+        long readPos;
+
+        ReaderThread()
+        {
+            setName("LCM shm reader");
+            setDaemon(true);
+            readPos = ring.buf.getLong(OFFSET_WRITE_POS);
+        }
+
+        public void run()
+        {
+            int idle = 0;
+            long sleepNanos = pollNanos;
+
+            while (!exit) {
+                long writePos = ring.buf.getLong(OFFSET_WRITE_POS);
+                loadFence(); // read the messages after the position
+
+                if (writePos == readPos) {
+                    if (++idle < SPIN_COUNT) {
+                        Thread.yield();
+                    } else {
+                        LockSupport.parkNanos(sleepNanos);
+                        sleepNanos = Math.min(2*sleepNanos, maxPollNanos);
+                    }
+                    continue;
+                }
+                idle = 0;
+                sleepNanos = pollNanos;
+
+                while (readPos != writePos && !exit) {
+                    if (!readMessage()) {
+                        // overwritten before we got to it
+                        nlapped++;
+                        readPos = ring.buf.getLong(OFFSET_WRITE_POS);
+                        break;
+                    }
+                }
+            }
+        }
+
+        // read the message at readPos and advance past it. Returns
+        // false if the writers have lapped us.
+        boolean readMessage()
+        {
+            long capacity = ring.capacity;
+            if (ring.buf.getLong(OFFSET_RESERVE_POS) - readPos > capacity)
+                return false;
+
+            int off = HEADER_SIZE + (int) (readPos % capacity);
+            long pos = view.getLong(off);
+            int channelLength = view.getInt(off + 8);
+            int dataLength = view.getInt(off + 12);
+
+            if (pos != readPos)
+                return false;
+
+            if (channelLength == -1) {
+                readPos += capacity - (off - HEADER_SIZE);
+                return true;
+            }
+
+            if (channelLength < 0 || channelLength > MAX_CHANNEL_LENGTH ||
+                dataLength < 0 || recordSize(channelLength, dataLength) > ring.maxRecordSize())
+                return false;
+
+            view.position(off + RECORD_HEADER_SIZE);
+            view.get(channelBuf, 0, channelLength);
+            String channel = getChannel(channelLength);
+
+            LCMBuffer buf = null;
+            if (lcm != null && lcm.subscriptions.get(channel).length > 0) {
+                buf = pool.lease(dataLength);
+                view.get(buf.getData(), 0, dataLength);
+            }
+
+            // if a writer reached this message while we copied it,
+            // the copy may be torn.
+            loadFence();
+            if (ring.buf.getLong(OFFSET_RESERVE_POS) - readPos > capacity) {
+                if (buf != null)
+                    buf.release();
+                return false;
+            }
+
+            readPos += recordSize(channelLength, dataLength);
+            nreceived++;
+
+            if (buf != null) {
+                try {
+                    lcm.receiveMessage(channel, buf);
+                } catch (Exception ex) {
+                    System.err.println("ShmProvider ex: "+ex);
+                }
+                buf.release();
+            }
+            return true;
+        }
+
+        // the channel name of length bytes in channelBuf
+        String getChannel(int length)
+        {
+            int h = length;
+            for (int i = 0; i < length; i++)
+                h = 31*h + channelBuf[i];
+            int idx = (h ^ (h >>> 16)) & (CHANNEL_CACHE_SIZE - 1);
+
+            byte b[] = cachedBytes[idx];
+            if (b != null && b.length == length) {
+                int i = 0;
+                while (i < length && b[i] == channelBuf[i])
+                    i++;
+                if (i == length)
+                    return cachedChannels[idx];
+            }
+
+            b = Arrays.copyOf(channelBuf, length);
+            String channel = new String(b, ASCII);
+            cachedBytes[idx] = b;
+            cachedChannels[idx] = channel;
+            return channel;
+        }
+    }
+}
@@ -15,6 +15,15 @@ import java.nio.*;
  * traffic.  It is specifically designed for playing back a log file in a
  * post-processing context (i.e., play back the log as fast as possible, but
  * without dropping anything).
+ *
+ * Outgoing messages are framed straight into a send buffer, which a
+ * writer thread hands to the socket. While one batch is being
+ * written the next one accumulates, so at high rates many messages go
+ * out in a single write, while a lone message is sent immediately.
+ * Messages are sent in the order they were published; if the send
+ * buffer is full, publish() waits. close() sends everything published
+ * so far before disconnecting; pending messages are only discarded if
+ * the connection to the hub is lost.
  **/
 public class TCPProvider implements Provider
 {
@@ -34,6 +43,11 @@ public class TCPProvider implements Provider
     public static final int MESSAGE_TYPE_SUBSCRIBE = 2;
     public static final int MESSAGE_TYPE_UNSUBSCRIBE = 3;
 
+    static final int MAX_PENDING = 4*1024*1024; // send buffer limit, bytes
+    static final int MAX_CACHED_CHANNELS = 1024;
+
+    HashMap<String, byte[]> channelBytesCache = new HashMap<String, byte[]>();
+
     HashSet<String> subscriptions = new HashSet<String>();
 
     public TCPProvider(LCM lcm, URLParser up) throws IOException
@@ -128,25 +142,22 @@ public class TCPProvider implements Provider
 
     void publishEx(String channel, byte data[], int offset, int length) throws Exception
     {
-        byte[] channel_bytes = stringToBytes(channel);
-
-        int payload_size = channel_bytes.length + length;
-
-        ByteArrayOutputStream bouts = new ByteArrayOutputStream(length + channel.length() + 32);
-        DataOutputStream outs = new DataOutputStream(bouts);
-
-        outs.writeInt(MESSAGE_TYPE_PUBLISH);
-
-        outs.writeInt(channel_bytes.length);
-        outs.write(channel_bytes, 0, channel_bytes.length);
-
-        outs.writeInt(length);
-        outs.write(data, offset, length);
+        tcp.enqueue(MESSAGE_TYPE_PUBLISH, getChannelBytes(channel), data, offset, length);
+    }
 
-        tcp.write(bouts.toByteArray());
+    byte[] getChannelBytes(String channel)
+    {
+        byte b[] = channelBytesCache.get(channel);
+        if (b == null) {
+            b = stringToBytes(channel);
+            if (channelBytesCache.size() < MAX_CACHED_CHANNELS)
+                channelBytesCache.put(channel, b);
+        }
+        return b;
     }
 
-    // synchronize on writes and to changes in subscription state.
+    // synchronize on changes in subscription state. The send buffer
+    // is protected by sendLock.
     class TCPThread extends Thread
     {
         Socket sock;
@@ -155,54 +166,140 @@ public class TCPProvider implements Provider
         boolean exit = false;
         int serverVersion;
 
+        // messages framed but not yet handed to the writer thread.
+        Object sendLock = new Object();
+        byte pending[] = new byte[65536];
+        int npending;
+        boolean writerWaiting;
+        boolean writing; // the writer has a batch out on the socket
+        WriterThread writer;
+
         TCPThread()
         {
+            writer = new WriterThread();
+            writer.start();
         }
 
-        synchronized void write(byte b[]) throws IOException
+        /** Frame a message into the send buffer. data may be null for
+         * messages that carry only a channel.
+         **/
+        void enqueue(int type, byte channel_bytes[], byte data[], int offset, int length)
         {
-            // if our connection is dead or not yet up, we just drop
-            // this message.  (subscribes will be setup again when the
-            // connection comes back up).
-            if (outs == null)
-                return;
-
-            outs.write(b);
-            outs.flush();
-        }
+            int framelen = 8 + channel_bytes.length + (data != null ? 4 + length : 0);
+
+            synchronized(sendLock) {
+                // if our connection is dead or not yet up, we just drop
+                // this message.  (subscribes will be setup again when the
+                // connection comes back up).
+                if (outs == null)
+                    return;
+
+                // wait for the writer if the buffer is full. (an
+                // oversized message is accepted into an empty buffer.)
+                while (npending > 0 && npending + framelen > MAX_PENDING) {
+                    try {
+                        sendLock.wait();
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                    if (outs == null)
+                        return;
+                }
 
-        synchronized void sendSubscribe(String channel)
-        {
-            byte channel_bytes[] = stringToBytes(channel);
+                if (pending.length < npending + framelen)
+                    pending = Arrays.copyOf(pending, Math.max(npending + framelen, pending.length*2));
+
+                int pos = npending;
+                pos = UDPMulticastProvider.putInt(pending, pos, type);
+                pos = UDPMulticastProvider.putInt(pending, pos, channel_bytes.length);
+                System.arraycopy(channel_bytes, 0, pending, pos, channel_bytes.length);
+                pos += channel_bytes.length;
+                if (data != null) {
+                    pos = UDPMulticastProvider.putInt(pending, pos, length);
+                    System.arraycopy(data, offset, pending, pos, length);
+                    pos += length;
+                }
+                npending = pos;
 
-            try {
-                ByteArrayOutputStream bouts = new ByteArrayOutputStream(channel.length() + 8);
-                DataOutputStream outs = new DataOutputStream(bouts);
+                if (writerWaiting)
+                    sendLock.notifyAll();
+            }
+        }
 
-                outs.writeInt(MESSAGE_TYPE_SUBSCRIBE);
-                outs.writeInt(channel_bytes.length);
-                outs.write(channel_bytes, 0, channel_bytes.length);
+        /** Called with sendLock held: attach the send buffer to a new
+         * connection (or detach it, if outs is null), discarding
+         * anything meant for the old one.
+         **/
+        void setOutputStream(OutputStream outs)
+        {
+            this.outs = outs;
+            npending = 0;
+            sendLock.notifyAll();
+        }
 
-                write(bouts.toByteArray());
-            } catch (IOException ex) {
-                System.out.println("ex: "+ex);
-            }
+        synchronized void sendSubscribe(String channel)
+        {
+            enqueue(MESSAGE_TYPE_SUBSCRIBE, stringToBytes(channel), null, 0, 0);
         }
 
         synchronized void sendUnsubscribe(String channel)
         {
-            byte channel_bytes[] = stringToBytes(channel);
+            enqueue(MESSAGE_TYPE_UNSUBSCRIBE, stringToBytes(channel), null, 0, 0);
+        }
 
-            try {
-                ByteArrayOutputStream bouts = new ByteArrayOutputStream(channel.length() + 8);
-                DataOutputStream outs = new DataOutputStream(bouts);
+        class WriterThread extends Thread
+        {
+            byte batch[] = new byte[65536];
 
-                outs.writeInt(MESSAGE_TYPE_UNSUBSCRIBE);
-                outs.writeInt(channel_bytes.length);
-                outs.write(channel_bytes, 0, channel_bytes.length);
+            WriterThread()
+            {
+                setDaemon(true);
+                setName("LCM TCPProvider writer");
+            }
 
-                write(bouts.toByteArray());
-            } catch (IOException ex) {
+            public void run()
+            {
+                while (true) {
+                    OutputStream out;
+                    int n;
+
+                    synchronized(sendLock) {
+                        writing = false;
+                        sendLock.notifyAll();
+
+                        while (npending == 0 && !exit) {
+                            writerWaiting = true;
+                            try {
+                                sendLock.wait();
+                            } catch (InterruptedException ex) {
+                            }
+                        }
+                        writerWaiting = false;
+
+                        // on close, finish sending what was published
+                        if (npending == 0)
+                            return;
+
+                        // take everything queued so far as one batch
+                        byte tmp[] = batch;
+                        batch = pending;
+                        pending = tmp;
+                        n = npending;
+                        npending = 0;
+                        out = outs;
+                        writing = true;
+
+                        // wake up publishers waiting for room
+                        sendLock.notifyAll();
+                    }
+
+                    try {
+                        out.write(batch, 0, n);
+                    } catch (IOException ex) {
+                        // the read loop will notice and reconnect.
+                    }
+                }
             }
         }
 
@@ -215,12 +312,15 @@ public class TCPProvider implements Provider
                     // reconnect
                     try {
                         sock = new Socket(inetAddr, inetPort);
+                        sock.setTcpNoDelay(true); // we do our own batching
                         OutputStream _outs = sock.getOutputStream();
                         DataOutputStream _douts = new DataOutputStream(_outs);
                         _douts.writeInt(MAGIC_CLIENT);
                         _douts.writeInt(VERSION);
                         _douts.flush();
-                        outs = _outs;
+                        synchronized(sendLock) {
+                            setOutputStream(_outs);
+                        }
                         ins = new DataInputStream(new BufferedInputStream(sock.getInputStream()));
 
                         int magic = ins.readInt();
@@ -254,26 +354,60 @@ public class TCPProvider implements Provider
                         byte channel[] = new byte[channellen];
                         ins.readFully(channel);
                         int datalen = ins.readInt();
-                        byte data[] = new byte[datalen];
-                        ins.readFully(data);
-
-                        lcm.receiveMessage(new String(channel), data, 0, data.length);
+                        LCMBuffer buf = lcm.getBufferPool().lease(datalen);
+                        try {
+                            ins.readFully(buf.getData(), 0, datalen);
+                            lcm.receiveMessage(new String(channel), buf);
+                        } finally {
+                            buf.release();
+                        }
                     }
 
                 } catch (IOException ex) {
                     // exit read loop so we'll create a new connection.
+                    synchronized(sendLock) {
+                        setOutputStream(null);
+                    }
                 }
             }
         }
 
+        /** Sends whatever has been published (unless the connection
+         * is down), then disconnects.
+         **/
         void close()
         {
+            synchronized(sendLock) {
+                exit = true;
+                sendLock.notifyAll();
+
+                // the read loop detaches the stream if the connection
+                // fails, which discards anything pending.
+                while (outs != null && (npending > 0 || writing)) {
+                    try {
+                        sendLock.wait();
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+            }
+
+            try {
+                writer.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+
             try {
-                sock.close();
+                if (sock != null)
+                    sock.close();
             } catch (IOException ex) {
             }
 
-            exit = true;
+            synchronized(sendLock) {
+                setOutputStream(null);
+            }
         }
 
         OutputStream getOutputStream()
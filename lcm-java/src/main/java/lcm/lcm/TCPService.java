@@ -5,186 +5,505 @@ import java.io.*;
 import java.util.*;
 import java.util.regex.*;
 import java.nio.*;
+import java.nio.channels.*;
 
+/** The hub process for the tcpq:// provider (see TCPProvider). Every
+ * message published by a client is relayed to each client with a
+ * matching subscription.
+ *
+ * All clients are served by a single selector thread. Each client has
+ * its own queue of outgoing messages; messages relayed in the same
+ * pass are sent with a single gathering write, so a client receiving
+ * many small messages costs few system calls. A client that reads
+ * slowly only fills its own queue. Once a queue holds more than the
+ * high-water mark, the Policy decides what happens:
+ *
+ *   BLOCK: stop reading from all clients until the queue drains to
+ *          half the mark. Nothing is lost, but the slow client
+ *          throttles the publishers, as tcpq:// has always done.
+ *   DROP:  discard messages for that client (they are counted).
+ *   DISCONNECT: close the connection to that client.
+ *
+ * usage: java lcm.lcm.TCPService [port] [--high-water BYTES] [--policy block|drop|disconnect]
+ **/
 public class TCPService
 {
-    ServerSocket serverSocket;
+    /** What to do with a client whose queue is over the high-water mark. **/
+    public enum Policy { BLOCK, DROP, DISCONNECT };
 
-    AcceptThread acceptThread;
-    ArrayList<ClientThread> clients = new ArrayList<ClientThread>();
+    static final int DEFAULT_HIGH_WATER = 4*1024*1024;
+    static final int READ_BUFFER_SIZE = 65536;
+    static final int MAX_GATHER = 64;
 
-    int bytesCount = 0;
+    ServerSocketChannel serverChannel;
+    Selector selector;
+    ServiceThread serviceThread;
+
+    final int highWater;
+    final Policy policy;
+
+    ArrayList<Client> clients = new ArrayList<Client>();
+
+    // every client's subscriptions; maps a channel to the clients that
+    // receive it. Only used on the service thread.
+    ChannelIndex<Client> subscriptions = new ChannelIndex<Client>(Client.class);
+    boolean paused; // BLOCK policy: not reading from clients
+
+    // statistics, written by the service thread only
+    volatile int  nclients;
+    volatile long bytesIn, bytesOut, ndropped, ndisconnected;
+
+    volatile boolean exit;
 
     public TCPService(int port) throws IOException
     {
-        serverSocket = new ServerSocket(port);
-        //	sock.setReuseAddress(true);
-        //	sock.setLoopbackMode(false); // true *disables* loopback
+        this(port, DEFAULT_HIGH_WATER, Policy.BLOCK);
+    }
 
-        acceptThread = new AcceptThread();
-        acceptThread.start();
+    /**
+     * @param port port to listen on, or 0 for any free port.
+     * @param highWater number of bytes that may be queued for a client
+     * before the policy applies.
+     */
+    public TCPService(int port, int highWater, Policy policy) throws IOException
+    {
+        this.highWater = highWater;
+        this.policy = policy;
 
-        long inittime = System.currentTimeMillis();
-        long starttime = System.currentTimeMillis();
-        while (true) {
-            try {
-                Thread.sleep(1000);
-            } catch (InterruptedException ex) {
-            }
-            long endtime = System.currentTimeMillis();
-            double dt = (endtime - starttime) / 1000.0;
-            starttime = endtime;
-            System.out.printf("%10.3f : %10.1f kB/s, %d clients\n",(endtime - inittime)/1000.0, bytesCount/1024.0/dt, clients.size());
-            bytesCount = 0;
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+        serviceThread = new ServiceThread();
+        serviceThread.start();
+    }
+
+    /** The port we are listening on. **/
+    public int getPort()
+    {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    public int getNumClients()
+    {
+        return nclients;
+    }
+
+    /** Bytes of messages received from publishers. **/
+    public long getBytesIn()
+    {
+        return bytesIn;
+    }
+
+    /** Bytes sent to subscribers. **/
+    public long getBytesOut()
+    {
+        return bytesOut;
+    }
+
+    /** Messages not delivered to a client because its queue was full (DROP). **/
+    public long getNumDropped()
+    {
+        return ndropped;
+    }
+
+    /** Clients disconnected because their queue was full (DISCONNECT). **/
+    public long getNumDisconnected()
+    {
+        return ndisconnected;
+    }
+
+    public void close()
+    {
+        exit = true;
+        selector.wakeup();
+
+        try {
+            serviceThread.join();
+        } catch (InterruptedException ex) {
         }
     }
 
-    public void relay(byte channel[], byte data[])
+    /** Queue a message for every client subscribed to its channel.
+     * Called on the service thread.
+     **/
+    void relay(byte channel[], ByteBuffer data)
     {
-        // synchronously send to all clients.
         String chanstr = new String(channel);
-        synchronized(clients) {
-            for (ClientThread client : clients) {
-                client.send(chanstr, channel, data);
+        ByteBuffer frame = null;
+
+        for (Client client : subscriptions.get(chanstr)) {
+            if (frame == null) {
+                // encode once, shared by every client.
+                frame = ByteBuffer.allocate(12 + channel.length + data.remaining());
+                frame.putInt(TCPProvider.MESSAGE_TYPE_PUBLISH);
+                frame.putInt(channel.length);
+                frame.put(channel);
+                frame.putInt(data.remaining());
+                frame.put(data);
+                frame.flip();
+            }
+
+            if (client.queuedBytes > highWater) {
+                if (policy == Policy.DROP) {
+                    client.ndropped++;
+                    ndropped++;
+                    continue;
+                }
+                if (policy == Policy.DISCONNECT) {
+                    ndisconnected++;
+                    client.close();
+                    continue;
+                }
             }
+
+            client.enqueue(frame.duplicate());
         }
     }
 
-    class AcceptThread extends Thread
+    class ServiceThread extends Thread
     {
+        ServiceThread()
+        {
+            setName("LCM TCPService");
+        }
+
         public void run()
         {
-            while (true) {
+            while (!exit) {
                 try {
-                    Socket clientSock = serverSocket.accept();
+                    selector.select();
+                } catch (IOException ex) {
+                    System.err.println("TCPService ex: "+ex);
+                    break;
+                }
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
 
-                    ClientThread client = new ClientThread(clientSock);
-                    client.start();
+                    if (!key.isValid())
+                        continue;
 
-                    synchronized(clients) {
-                        clients.add(client);
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
                     }
-                } catch (IOException ex) {
+
+                    Client client = (Client) key.attachment();
+                    if (key.isReadable())
+                        client.read();
+                    if (key.isValid() && key.isWritable())
+                        client.write();
                 }
+
+                // send everything relayed during this pass. (backwards,
+                // since a failed write removes the client.)
+                for (int i = clients.size() - 1; i >= 0; i--) {
+                    Client client = clients.get(i);
+                    if (client.queue.size() > 0 && !client.writePending)
+                        client.write();
+                }
+
+                if (policy == Policy.BLOCK)
+                    updateFlowControl();
+
+                nclients = clients.size();
             }
-        }
-    }
 
-    class ClientThread extends Thread
-    {
-        Socket sock;
-        DataInputStream ins;
-        DataOutputStream outs;
+            for (Client client : new ArrayList<Client>(clients))
+                client.close();
+            try {
+                serverChannel.close();
+                selector.close();
+            } catch (IOException ex) {
+            }
+        }
 
-        class SubscriptionRecord
+        void accept()
         {
-            String  regex;
-            Pattern pat;
-            SubscriptionRecord(String regex) {
-                this.regex = regex;
-                this.pat = Pattern.compile(regex);
+            try {
+                SocketChannel sc = serverChannel.accept();
+                if (sc == null)
+                    return;
+
+                sc.configureBlocking(false);
+                sc.socket().setTcpNoDelay(true);
+
+                Client client = new Client(sc);
+                client.key = sc.register(selector, paused ? 0 : SelectionKey.OP_READ, client);
+                clients.add(client);
+            } catch (IOException ex) {
+                System.err.println("TCPService ex: "+ex);
             }
         }
 
-        ArrayList<SubscriptionRecord> subscriptions = new ArrayList<SubscriptionRecord>();
+        // BLOCK policy: stop reading while any client is over the
+        // high-water mark; resume below half of it.
+        void updateFlowControl()
+        {
+            long maxQueued = 0;
+            for (Client client : clients)
+                maxQueued = Math.max(maxQueued, client.queuedBytes);
+
+            boolean pause = paused ? maxQueued > highWater / 2 : maxQueued > highWater;
+            if (pause == paused)
+                return;
 
-        public ClientThread(Socket sock) throws IOException
+            paused = pause;
+            for (Client client : clients)
+                client.updateInterest();
+        }
+    }
+
+    class Client
+    {
+        SocketChannel sc;
+        SelectionKey key;
+
+        ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        boolean handshakeDone;
+
+        ArrayDeque<ByteBuffer> queue = new ArrayDeque<ByteBuffer>();
+        long queuedBytes;
+        boolean writePending; // waiting for OP_WRITE
+        ByteBuffer gather[] = new ByteBuffer[MAX_GATHER];
+
+        long ndropped;
+
+        Client(SocketChannel sc) throws IOException
         {
-            this.sock = sock;
+            this.sc = sc;
 
-            ins = new DataInputStream(sock.getInputStream());
-            outs = new DataOutputStream(sock.getOutputStream());
+            ByteBuffer hello = ByteBuffer.allocate(8);
+            hello.putInt(TCPProvider.MAGIC_SERVER);
+            hello.putInt(TCPProvider.VERSION);
+            hello.flip();
+            enqueue(hello);
+        }
 
-            outs.writeInt(TCPProvider.MAGIC_SERVER);
-            outs.writeInt(TCPProvider.VERSION);
+        void enqueue(ByteBuffer bb)
+        {
+            queue.addLast(bb);
+            queuedBytes += bb.remaining();
         }
 
-        public void run()
+        void read()
         {
-            ///////////////////////
-            // read messages until something bad happens.
+            int n;
             try {
-                while (true) {
-                    int type = ins.readInt();
-                    if (type == TCPProvider.MESSAGE_TYPE_PUBLISH) {
-                        int channellen = ins.readInt();
-                        byte channel[] = new byte[channellen];
-                        ins.readFully(channel);
-
-                        int datalen = ins.readInt();
-                        byte data[] = new byte[datalen];
-                        ins.readFully(data);
-
-                        TCPService.this.relay(channel, data);
-
-                        bytesCount += channellen + datalen + 8;
-                    } else if(type == TCPProvider.MESSAGE_TYPE_SUBSCRIBE) {
-                        int channellen = ins.readInt();
-                        byte channel[] = new byte[channellen];
-                        ins.readFully(channel);
-                        synchronized(subscriptions) {
-                            subscriptions.add(new SubscriptionRecord(new String(channel)));
-                        }
-                    } else if(type == TCPProvider.MESSAGE_TYPE_UNSUBSCRIBE) {
-                        int channellen = ins.readInt();
-                        byte channel[] = new byte[channellen];
-                        ins.readFully(channel);
-                        String re = new String(channel);
-                        synchronized(subscriptions) {
-                            for(int i=0, n=subscriptions.size(); i<n; i++) {
-                                if(subscriptions.get(i).regex.equals(re)) {
-                                    subscriptions.remove(i);
-                                    break;
-                                }
-                            }
-                        }
-                    }
-                }
+                n = sc.read(readBuffer);
             } catch (IOException ex) {
+                n = -1;
+            }
+
+            if (n < 0) {
+                close();
+                return;
             }
 
-            ///////////////////////
-            // Something bad happened, close this connection.
+            readBuffer.flip();
             try {
-                sock.close();
+                while (parseMessage())
+                    ;
             } catch (IOException ex) {
+                close();
+                return;
+            }
+            readBuffer.compact();
+        }
+
+        // Handle one complete message at the front of readBuffer.
+        // Returns false if more data is needed.
+        boolean parseMessage() throws IOException
+        {
+            ByteBuffer bb = readBuffer;
+            int start = bb.position();
+
+            if (!handshakeDone) {
+                if (bb.remaining() < 8)
+                    return false;
+                if (bb.getInt() != TCPProvider.MAGIC_CLIENT)
+                    throw new IOException("bad client magic");
+                bb.getInt(); // client version
+                handshakeDone = true;
+                return true;
             }
 
-            synchronized(clients) {
-                clients.remove(this);
+            if (bb.remaining() < 8)
+                return false;
+
+            int type = bb.getInt();
+            int channellen = bb.getInt();
+
+            if (channellen < 0 || channellen > 1024)
+                throw new IOException("bad channel length");
+
+            int needed = channellen + (type == TCPProvider.MESSAGE_TYPE_PUBLISH ? 4 : 0);
+            if (bb.remaining() < needed) {
+                bb.position(start);
+                ensureCapacity(8 + needed);
+                return false;
+            }
+
+            byte channel[] = new byte[channellen];
+            bb.get(channel);
+
+            if (type == TCPProvider.MESSAGE_TYPE_PUBLISH) {
+                int datalen = bb.getInt();
+                if (datalen < 0)
+                    throw new IOException("bad data length");
+
+                if (bb.remaining() < datalen) {
+                    bb.position(start);
+                    ensureCapacity(12 + channellen + datalen);
+                    return false;
+                }
+
+                ByteBuffer data = bb.slice();
+                data.limit(datalen);
+                bb.position(bb.position() + datalen);
+
+                bytesIn += 12 + channellen + datalen;
+                relay(channel, data);
+            } else if (type == TCPProvider.MESSAGE_TYPE_SUBSCRIBE) {
+                try {
+                    subscriptions = subscriptions.add(new String(channel), this);
+                } catch (PatternSyntaxException ex) {
+                    System.err.println("TCPService ex: "+ex);
+                }
+            } else if (type == TCPProvider.MESSAGE_TYPE_UNSUBSCRIBE) {
+                String re = new String(channel);
+                for (int i = 0; i < subscriptions.size(); i++) {
+                    if (subscriptions.getValue(i) == this && subscriptions.getRegex(i).equals(re)) {
+                        subscriptions = subscriptions.remove(i);
+                        break;
+                    }
+                }
             }
+
+            return true;
         }
 
-        public void send(String chanstr, byte channel[], byte data[])
+        // make sure a message of 'size' bytes fits in readBuffer. The
+        // buffer is flipped (ready for reading) when this is called.
+        void ensureCapacity(int size)
+        {
+            if (readBuffer.capacity() >= size)
+                return;
+
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(size, readBuffer.capacity()*2));
+            bigger.put(readBuffer);
+            bigger.flip();
+            readBuffer = bigger;
+        }
+
+        // send as much of the queue as the socket will take.
+        void write()
         {
             try {
-                synchronized(subscriptions) {
-                    for(SubscriptionRecord sr : subscriptions) {
-                        if(sr.pat.matcher(chanstr).matches()) {
-                            outs.writeInt(TCPProvider.MESSAGE_TYPE_PUBLISH);
-                            outs.writeInt(channel.length);
-                            outs.write(channel);
-                            outs.writeInt(data.length);
-                            outs.write(data);
-                            outs.flush();
-                            return;
-                        }
+                while (!queue.isEmpty()) {
+                    int n = 0;
+                    for (ByteBuffer bb : queue) {
+                        gather[n++] = bb;
+                        if (n == gather.length)
+                            break;
                     }
+
+                    long written = sc.write(gather, 0, n);
+                    queuedBytes -= written;
+                    bytesOut += written;
+
+                    while (!queue.isEmpty() && !queue.peekFirst().hasRemaining())
+                        queue.removeFirst();
+
+                    if (written == 0 || !queue.isEmpty() && queue.peekFirst().position() > 0)
+                        break;
                 }
+                Arrays.fill(gather, null);
             } catch (IOException ex) {
+                close();
+                return;
+            }
+
+            writePending = !queue.isEmpty();
+            updateInterest();
+        }
+
+        void updateInterest()
+        {
+            if (!key.isValid())
+                return;
+
+            int ops = (paused ? 0 : SelectionKey.OP_READ) | (writePending ? SelectionKey.OP_WRITE : 0);
+            if (key.interestOps() != ops)
+                key.interestOps(ops);
+        }
+
+        void close()
+        {
+            try {
+                sc.close();
+            } catch (IOException ex) {
+            }
+
+            key.cancel();
+            queue.clear();
+            queuedBytes = 0;
+            clients.remove(this);
+
+            for (int i = subscriptions.size() - 1; i >= 0; i--) {
+                if (subscriptions.getValue(i) == this)
+                    subscriptions = subscriptions.remove(i);
             }
         }
     }
 
     public static void main(String args[])
     {
+        int port = 7700;
+        int highWater = DEFAULT_HIGH_WATER;
+        Policy policy = Policy.BLOCK;
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--high-water") && i + 1 < args.length)
+                highWater = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--policy") && i + 1 < args.length)
+                policy = Policy.valueOf(args[++i].toUpperCase());
+            else
+                port = Integer.parseInt(args[i]);
+        }
+
+        TCPService service;
         try {
-            int port = 7700;
-            if (args.length > 0)
-                port = Integer.parseInt(args[0]);
-            new TCPService(port);
+            service = new TCPService(port, highWater, policy);
         } catch (IOException ex) {
             System.out.println("Ex: "+ex);
+            return;
+        }
+
+        long inittime = System.currentTimeMillis();
+        long starttime = inittime;
+        long lastIn = 0, lastOut = 0;
+
+        while (true) {
+            try {
+                Thread.sleep(1000);
+            } catch (InterruptedException ex) {
+            }
+            long endtime = System.currentTimeMillis();
+            double dt = (endtime - starttime) / 1000.0;
+            starttime = endtime;
+
+            long in = service.getBytesIn(), out = service.getBytesOut();
+            System.out.printf("%10.3f : %10.1f kB/s in, %10.1f kB/s out, %d clients, %d dropped, %d disconnected\n",
+                              (endtime - inittime)/1000.0, (in - lastIn)/1024.0/dt, (out - lastOut)/1024.0/dt,
+                              service.getNumClients(), service.getNumDropped(), service.getNumDisconnected());
+            lastIn = in;
+            lastOut = out;
         }
     }
 }
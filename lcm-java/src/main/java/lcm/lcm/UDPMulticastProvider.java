@@ -5,6 +5,7 @@ import java.io.*;
 import java.util.*;
 import java.util.regex.*;
 import java.nio.*;
+import java.nio.channels.*;
 
 /** LCM provider for the udpm: URL. All messages are broadcast over a
  * pre-arranged UDP multicast address. Subscription operations are a
@@ -13,10 +14,34 @@ import java.nio.*;
  * This mechanism is very simple, low-latency, and efficient due to
  * not having to transmit messages more than once when there are
  * multiple subscribers. Since it uses UDP, it is lossy.
+ *
+ * URL options:
+ *   ttl=N            multicast time-to-live (default 0, host only)
+ *   recv_buf_size=N  requested kernel receive buffer (SO_RCVBUF), bytes
+ *   nio=true         use a non-blocking java.nio DatagramChannel. The
+ *                    reader drains every queued datagram into a direct
+ *                    buffer each time it wakes up, which keeps up
+ *                    better with bursts of fragments.
+ *   iface=NAME       network interface to join on (nio only)
+ *   max_msg_size=N   largest fragmented message to reassemble, bytes
+ *                    (default 64 MB); larger ones are discarded
+ *
+ * Messages are sent from a separate socket on an ephemeral port, so
+ * each provider has its own source address. Receivers use it to tell
+ * senders apart: fragments are reassembled, and sequence numbers
+ * checked for lost messages (see getSequenceTracker()), per sender.
  **/
 public class UDPMulticastProvider implements Provider
 {
     MulticastSocket sock;
+    MulticastSocket sendSock;
+
+    // nio variant: used instead of 'sock' when nio=true
+    DatagramChannel nioChannel;
+    DatagramChannel nioSendChannel;
+    Selector selector;
+    InetSocketAddress group;
+    ByteBuffer sendByteBuffer;
 
     static final String DEFAULT_NETWORK = "239.255.76.67:7667";
     static final int    DEFAULT_TTL     = 0;
@@ -24,12 +49,22 @@ public class UDPMulticastProvider implements Provider
     static final int    MAGIC_SHORT = 0x4c433032; // ascii of "LC02"
     static final int    MAGIC_LONG  = 0x4c433033; // ascii of "LC03"
     static final int    FRAGMENTATION_THRESHOLD = 64000;
+    static final int    MAX_DATAGRAM_SIZE = 65536;
 
     ReaderThread reader;
 
     int		msgSeqNumber=0;
 
-    HashMap<SocketAddress, FragmentBuffer> fragBufs = new HashMap<SocketAddress, FragmentBuffer>();
+    // publish state, guarded by the provider's monitor. The send
+    // buffer holds one complete datagram, including headers.
+    byte sendBuf[] = new byte[FRAGMENTATION_THRESHOLD + 1024];
+    DatagramPacket sendPacket;
+    HashMap<String, byte[]> channelBytesCache = new HashMap<String, byte[]>();
+
+    static final int    MAX_CACHED_CHANNELS = 1024;
+
+    FragmentReassembler reassembler;
+    SequenceTracker tracker = new SequenceTracker();
 
     LCM lcm;
 
@@ -45,17 +80,15 @@ public class UDPMulticastProvider implements Provider
     public UDPMulticastProvider(LCM lcm, URLParser up) throws IOException
     {
         this.lcm = lcm;
+        this.reassembler = new FragmentReassembler(lcm, (lcm != null) ? lcm.getBufferPool() : new BufferPool());
+        this.reassembler.setSequenceTracker(tracker);
+        this.reassembler.setMaxMessageSize(up.get("max_msg_size", FragmentReassembler.DEFAULT_MAX_MESSAGE_SIZE));
 
         String addrport[] = up.get("network", DEFAULT_NETWORK).split(":");
 
         inetAddr = InetAddress.getByName(addrport[0]);
         inetPort = Integer.valueOf(addrport[1]);
 
-        sock = new MulticastSocket(inetPort);
-
-        sock.setReuseAddress(true);
-        sock.setLoopbackMode(false); // true *disables* loopback
-
         int ttl = up.get("ttl", DEFAULT_TTL);
         if (ttl == 0)
             System.err.println("LCM: TTL set to zero, traffic will not leave localhost.");
@@ -64,9 +97,91 @@ public class UDPMulticastProvider implements Provider
         else
             System.err.println("LCM: TTL set to 1.");
 
-        sock.setTimeToLive(up.get("ttl", DEFAULT_TTL));
+        int recvBufSize = up.get("recv_buf_size", 0);
+
+        if (up.get("nio", false)) {
+            openChannel(ttl, recvBufSize, up.get("iface", null));
+        } else {
+            sock = new MulticastSocket(inetPort);
+
+            sock.setReuseAddress(true);
+
+            if (recvBufSize > 0)
+                sock.setReceiveBufferSize(recvBufSize);
+
+            sock.joinGroup(inetAddr);
+
+            sendSock = new MulticastSocket();
+            sendSock.setLoopbackMode(false); // true *disables* loopback
+            sendSock.setTimeToLive(ttl);
+
+            sendPacket = new DatagramPacket(sendBuf, 0, inetAddr, inetPort);
+        }
+
+        if (recvBufSize > 0) {
+            int actual = (sock != null) ? sock.getReceiveBufferSize() :
+                nioChannel.getOption(StandardSocketOptions.SO_RCVBUF);
+            if (actual < recvBufSize)
+                System.err.printf("LCM: requested receive buffer of %d bytes, kernel granted %d. "+
+                                  "(Check net.core.rmem_max.)\n", recvBufSize, actual);
+        }
+    }
+
+    void openChannel(int ttl, int recvBufSize, String ifaceName) throws IOException
+    {
+        NetworkInterface iface = findMulticastInterface(ifaceName);
+
+        nioChannel = DatagramChannel.open(StandardProtocolFamily.INET);
+        nioChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        if (recvBufSize > 0)
+            nioChannel.setOption(StandardSocketOptions.SO_RCVBUF, recvBufSize);
+
+        nioChannel.bind(new InetSocketAddress(inetPort));
+        nioChannel.join(inetAddr, iface);
+
+        nioChannel.configureBlocking(false);
+        selector = Selector.open();
+        nioChannel.register(selector, SelectionKey.OP_READ);
+
+        // sends block; only the receiving channel is non-blocking.
+        nioSendChannel = DatagramChannel.open(StandardProtocolFamily.INET);
+        nioSendChannel.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true);
+        nioSendChannel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, ttl);
+        nioSendChannel.setOption(StandardSocketOptions.IP_MULTICAST_IF, iface);
+        nioSendChannel.bind(new InetSocketAddress(0));
+
+        group = new InetSocketAddress(inetAddr, inetPort);
+        sendByteBuffer = ByteBuffer.wrap(sendBuf);
+    }
+
+    /** DatagramChannel.join() needs an explicit interface. Use the
+     * named one if given, otherwise the first interface that is up
+     * and supports multicast, preferring non-loopback interfaces.
+     **/
+    static NetworkInterface findMulticastInterface(String name) throws IOException
+    {
+        if (name != null) {
+            NetworkInterface iface = NetworkInterface.getByName(name);
+            if (iface == null)
+                throw new IOException("LCM: no such network interface: "+name);
+            return iface;
+        }
+
+        NetworkInterface loopback = null;
+        for (NetworkInterface iface : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+            if (!iface.isUp())
+                continue;
+            if (iface.isLoopback()) {
+                loopback = iface;
+                continue;
+            }
+            if (iface.supportsMulticast())
+                return iface;
+        }
 
-        sock.joinGroup(inetAddr);
+        if (loopback == null)
+            throw new IOException("LCM: no multicast-capable network interface");
+        return loopback;
     }
 
     public synchronized void publish(String channel, byte data[], int offset, int length)
@@ -81,7 +196,7 @@ public class UDPMulticastProvider implements Provider
     public synchronized void subscribe(String channel)
     {
         if (null == reader) {
-            reader = new ReaderThread();
+            reader = (nioChannel != null) ? new NIOReaderThread() : new ReaderThread();
             reader.start();
         }
     }
@@ -92,35 +207,116 @@ public class UDPMulticastProvider implements Provider
     {
         if (null != reader) {
             reader.interrupt();
+            // a blocked receive() only returns once the socket is closed
+            if (sock != null)
+                sock.close();
             try {
                 reader.join();
             } catch (InterruptedException ex) {
             }
         }
         reader = null;
-        sock.close();
-        sock = null;
-        fragBufs = null;
+        if (sock != null) {
+            sock.close();
+            sendSock.close();
+            sock = null;
+        }
+        if (nioChannel != null) {
+            try {
+                selector.close();
+                nioChannel.close();
+                nioSendChannel.close();
+            } catch (IOException ex) {
+            }
+            nioChannel = null;
+        }
+    }
+
+    /** Returns the reassembler for fragmented messages, whose
+     * counters report completed, expired and corrupted messages.
+     **/
+    public FragmentReassembler getFragmentReassembler()
+    {
+        return reassembler;
+    }
+
+    /** Returns the tracker of received sequence numbers, which counts
+     * lost, reordered and duplicated messages per sender.
+     **/
+    public SequenceTracker getSequenceTracker()
+    {
+        return tracker;
+    }
+
+    /** Returns the US-ASCII encoding of a channel name, caching the
+     * result so that repeated publishes on a channel don't allocate.
+     **/
+    byte[] getChannelBytes(String channel) throws UnsupportedEncodingException
+    {
+        byte channel_bytes[] = channelBytesCache.get(channel);
+        if (channel_bytes == null) {
+            if (channelBytesCache.size() >= MAX_CACHED_CHANNELS)
+                channelBytesCache.clear();
+
+            channel_bytes = channel.getBytes("US-ASCII");
+            channelBytesCache.put(channel, channel_bytes);
+        }
+        return channel_bytes;
+    }
+
+    /** Send the first len bytes of sendBuf as one datagram. **/
+    void send(int len) throws IOException
+    {
+        if (nioChannel != null) {
+            sendByteBuffer.clear();
+            sendByteBuffer.limit(len);
+            nioSendChannel.send(sendByteBuffer, group);
+        } else {
+            sendPacket.setData(sendBuf, 0, len);
+            sendSock.send(sendPacket);
+        }
+    }
+
+    static final int putInt(byte b[], int pos, int v)
+    {
+        b[pos++] = (byte) (v>>>24);
+        b[pos++] = (byte) (v>>>16);
+        b[pos++] = (byte) (v>>>8);
+        b[pos++] = (byte) (v>>>0);
+        return pos;
+    }
+
+    static final int putShort(byte b[], int pos, int v)
+    {
+        b[pos++] = (byte) (v>>>8);
+        b[pos++] = (byte) (v>>>0);
+        return pos;
     }
 
+    /** Assemble datagrams directly in sendBuf and send them from
+     * there. Apart from the cached channel name, this allocates
+     * nothing per message.
+     **/
     void publishEx(String channel, byte data[], int offset, int length) throws Exception
     {
-        byte[] channel_bytes = channel.getBytes("US-ASCII");
+        byte[] channel_bytes = getChannelBytes(channel);
 
         int payload_size = channel_bytes.length + length;
 
         if (payload_size <= FRAGMENTATION_THRESHOLD) {
 
-            LCMDataOutputStream outs = new LCMDataOutputStream(length + channel.length() + 32);
+            int pos = 0;
+            pos = putInt(sendBuf, pos, MAGIC_SHORT);
+            pos = putInt(sendBuf, pos, this.msgSeqNumber);
 
-            outs.writeInt(MAGIC_SHORT);
-            outs.writeInt(this.msgSeqNumber);
+            System.arraycopy(channel_bytes, 0, sendBuf, pos, channel_bytes.length);
+            pos += channel_bytes.length;
+            sendBuf[pos++] = 0;
 
-            outs.writeStringZ(channel);
+            System.arraycopy(data, offset, sendBuf, pos, length);
+            pos += length;
 
-            outs.write(data, offset, length);
-
-            sock.send(new DatagramPacket(outs.getBuffer(), 0, outs.size(), inetAddr, inetPort));
+            send(pos);
 
         } else {
             int nfragments = payload_size / FRAGMENTATION_THRESHOLD;
@@ -131,46 +327,33 @@ public class UDPMulticastProvider implements Provider
                 return;
             }
 
-            // first fragment is special.  insert channel before data
-            ByteArrayOutputStream bouts = new ByteArrayOutputStream(10 + FRAGMENTATION_THRESHOLD);
-            DataOutputStream outs = new DataOutputStream(bouts);
-
             int fragment_offset = 0;
-            int frag_no = 0;
-
-            outs.writeInt(MAGIC_LONG);
-            outs.writeInt(this.msgSeqNumber);
-            outs.writeInt(length);
-            outs.writeInt(fragment_offset);
-            outs.writeShort(frag_no);
-            outs.writeShort(nfragments);
-            outs.write(channel_bytes, 0, channel_bytes.length);
-            outs.writeByte(0);
-            int firstfrag_datasize = FRAGMENTATION_THRESHOLD -
-                (channel_bytes.length + 1);
-
-            outs.write(data, offset, firstfrag_datasize);
-
-            byte[] b = bouts.toByteArray();
-            sock.send(new DatagramPacket(b, 0, b.length, inetAddr, inetPort));
-
-            fragment_offset += firstfrag_datasize;
-
-            for (frag_no=1; frag_no < nfragments; frag_no++) {
-                bouts = new ByteArrayOutputStream(10 + FRAGMENTATION_THRESHOLD);
-                outs = new DataOutputStream(bouts);
-
-                outs.writeInt(MAGIC_LONG);
-                outs.writeInt(this.msgSeqNumber);
-                outs.writeInt(length);
-                outs.writeInt(fragment_offset);
-                outs.writeShort(frag_no);
-                outs.writeShort(nfragments);
-                int fraglen = java.lang.Math.min(FRAGMENTATION_THRESHOLD, length - fragment_offset);
-                outs.write(data, offset+fragment_offset, fraglen);
-
-                b = bouts.toByteArray();
-                sock.send(new DatagramPacket(b, 0, b.length, inetAddr, inetPort));
+
+            for (int frag_no = 0; frag_no < nfragments; frag_no++) {
+                int pos = 0;
+                pos = putInt(sendBuf, pos, MAGIC_LONG);
+                pos = putInt(sendBuf, pos, this.msgSeqNumber);
+                pos = putInt(sendBuf, pos, length);
+                pos = putInt(sendBuf, pos, fragment_offset);
+                pos = putShort(sendBuf, pos, frag_no);
+                pos = putShort(sendBuf, pos, nfragments);
+
+                int fraglen;
+                if (frag_no == 0) {
+                    // first fragment is special.  insert channel before data
+                    System.arraycopy(channel_bytes, 0, sendBuf, pos, channel_bytes.length);
+                    pos += channel_bytes.length;
+                    sendBuf[pos++] = 0;
+
+                    fraglen = FRAGMENTATION_THRESHOLD - (channel_bytes.length + 1);
+                } else {
+                    fraglen = java.lang.Math.min(FRAGMENTATION_THRESHOLD, length - fragment_offset);
+                }
+
+                System.arraycopy(data, offset + fragment_offset, sendBuf, pos, fraglen);
+                pos += fraglen;
+
+                send(pos);
 
                 fragment_offset += fraglen;
             }
@@ -179,29 +362,6 @@ public class UDPMulticastProvider implements Provider
         this.msgSeqNumber++;
     }
 
-    class FragmentBuffer
-    {
-        SocketAddress from = null;
-        String channel = null;
-        int msgSeqNumber = 0;
-        int data_size = 0;
-        int fragments_remaining = 0;
-        byte[] data = null;
-        boolean frag_received[];
-
-        FragmentBuffer(SocketAddress from, String channel, int msgSeqNumber, int data_size,
-                       int fragments_remaining)
-        {
-            this.from = from;
-            this.channel = channel;
-            this.msgSeqNumber = msgSeqNumber;
-            this.data_size = data_size;
-            this.fragments_remaining = fragments_remaining;
-            this.data = new byte[data_size];
-            this.frag_received = new boolean[fragments_remaining];
-        }
-    }
-
     class ReaderThread extends Thread
     {
         ReaderThread()
@@ -211,113 +371,95 @@ public class UDPMulticastProvider implements Provider
 
         public void run()
         {
-            DatagramPacket packet = new DatagramPacket(new byte[65536], 65536);
+            DatagramPacket packet = new DatagramPacket(new byte[MAX_DATAGRAM_SIZE], MAX_DATAGRAM_SIZE);
+            MulticastSocket sock = UDPMulticastProvider.this.sock;
 
             while (true) {
                 try {
                     sock.receive(packet);
-                    handlePacket(packet);
+                    handlePacket(packet.getSocketAddress(), packet.getData(),
+                                 packet.getOffset(), packet.getLength());
                 } catch (IOException ex) {
+                    if (sock.isClosed())
+                        return;
+                    System.err.println("ex: "+ex);
+                    continue;
+                } catch (RuntimeException ex) {
+                    // a bad packet or a throwing subscriber must not
+                    // stop this LCM from receiving.
                     System.err.println("ex: "+ex);
                     continue;
                 }
             }
         }
 
-        void handleShortMessage(DatagramPacket packet, LCMDataInputStream ins) throws IOException
+        void handleShortMessage(SocketAddress from, LCMDataInputStream ins) throws IOException
         {
             int msgSeqNumber = ins.readInt();
             String channel = ins.readStringZ();
 
+            tracker.record(from, msgSeqNumber, channel);
             lcm.receiveMessage(channel, ins.getBuffer(), ins.getBufferOffset(), ins.available());
         }
 
-        void handleFragment (DatagramPacket packet, LCMDataInputStream ins) throws IOException
+        void handlePacket(SocketAddress from, byte buf[], int offset, int length) throws IOException
         {
-            int msgSeqNumber = ins.readInt();
-            int msg_size = ins.readInt() & 0xffffffff;
-            int fragment_offset = ins.readInt() & 0xffffffff;
-            int fragment_id = ins.readShort() & 0xffff;
-            int fragments_in_msg = ins.readShort() & 0xffff;
-
-            // read entire packet payload
-            byte payload[] = new byte[ins.available()];
-            ins.readFully(payload);
-
-            if (ins.available() > 0) {
-                System.err.println("Unread data! "+ins.available());
-            }
-
-            int data_start = 0;
-            int frag_size = payload.length;
-
-            SocketAddress from = packet.getSocketAddress();
-            FragmentBuffer fbuf = fragBufs.get(from);
-
-            if (fbuf != null && ((fbuf.msgSeqNumber != msgSeqNumber) ||
-                                 (fbuf.data_size != msg_size))) {
-                fragBufs.remove(fbuf.from);
-                fbuf = null;
-            }
-
-            if (null == fbuf && 0 == fragment_id) {
-
-                // extract channel name
-                int channel_len = 0;
-                for (; channel_len < payload.length; channel_len++) {
-                    if (0 == payload[channel_len]) {
-                        break;
-                    }
-                }
-                data_start = channel_len + 1;
-                frag_size -= channel_len + 1;
-                String channel = new String(payload, 0, channel_len, "US-ASCII");
-
-                fbuf = new FragmentBuffer (from, channel, msgSeqNumber, msg_size, fragments_in_msg);
-
-                fragBufs.put (fbuf.from, fbuf);
-            }
-
-            if (null == fbuf) {
-                // TODO
-                return;
-            }
-
-            if (fragment_offset + frag_size > fbuf.data_size) {
-                System.err.println ("LC: dropping invalid fragment");
-                fragBufs.remove (fbuf.from);
-                return;
-            }
-
-            if (!fbuf.frag_received[fragment_id]) {
-                fbuf.frag_received[fragment_id] = true;
-
-                System.arraycopy(payload, data_start, fbuf.data, fragment_offset, frag_size);
-
-                fbuf.fragments_remaining --;
-            }
-
-            if (0 == fbuf.fragments_remaining) {
-                lcm.receiveMessage(fbuf.channel, fbuf.data, 0, fbuf.data_size);
-                fragBufs.remove (fbuf.from);
-            }
-        }
-
-        void handlePacket(DatagramPacket packet) throws IOException
-        {
-            LCMDataInputStream ins = new LCMDataInputStream(packet.getData(),
-                                                            packet.getOffset(),
-                                                            packet.getLength());
+            LCMDataInputStream ins = new LCMDataInputStream(buf, offset, length);
 
             int magic = ins.readInt();
             if (magic == MAGIC_SHORT) {
-                handleShortMessage(packet, ins);
+                handleShortMessage(from, ins);
             } else if (magic == MAGIC_LONG) {
-                handleFragment(packet, ins);
+                reassembler.handleFragment(from, ins);
             } else {
                 System.err.println("bad magic: " + Integer.toHexString(magic));
                 return;
             }
         }
     }
+
+    /** Reader for the nio variant. Each wakeup drains every datagram
+     * the kernel has queued, so bursts are pulled out of the socket
+     * buffer as quickly as possible.
+     **/
+    class NIOReaderThread extends ReaderThread
+    {
+        public void run()
+        {
+            ByteBuffer rbuf = ByteBuffer.allocateDirect(MAX_DATAGRAM_SIZE);
+            byte packetBuf[] = new byte[MAX_DATAGRAM_SIZE];
+
+            while (!isInterrupted()) {
+                try {
+                    selector.select();
+                    selector.selectedKeys().clear();
+
+                    while (true) {
+                        rbuf.clear();
+                        SocketAddress from = nioChannel.receive(rbuf);
+                        if (from == null)
+                            break;
+
+                        rbuf.flip();
+                        int len = rbuf.remaining();
+                        rbuf.get(packetBuf, 0, len);
+
+                        try {
+                            handlePacket(from, packetBuf, 0, len);
+                        } catch (RuntimeException ex) {
+                            // as in ReaderThread, keep receiving.
+                            System.err.println("ex: "+ex);
+                        }
+                    }
+                } catch (ClosedChannelException ex) {
+                    return;
+                } catch (ClosedSelectorException ex) {
+                    return;
+                } catch (IOException ex) {
+                    System.err.println("ex: "+ex);
+                    continue;
+                }
+            }
+        }
+    }
 }
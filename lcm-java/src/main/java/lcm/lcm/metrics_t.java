@@ -0,0 +1,123 @@
+package lcm.lcm;
+
+import java.io.*;
+import java.util.*;
+
+/** Counters published periodically by LCMMetrics. Written to match
+ * lcm-gen's output for:
+ *
+ * <pre>
+ * struct metrics_t
+ * {
+ *     int64_t utime;
+ *     int32_t ncounters;
+ *     string  names[ncounters];
+ *     int64_t values[ncounters];
+ * }
+ * </pre>
+ **/
+public final class metrics_t implements lcm.lcm.LCMEncodable
+{
+    public long utime;
+    public int ncounters;
+    public String names[];
+    public long values[];
+
+    public metrics_t()
+    {
+    }
+
+    public static final long LCM_FINGERPRINT;
+    public static final long LCM_FINGERPRINT_BASE = 0x50b83dfd3dd3e6acL;
+
+    static {
+        LCM_FINGERPRINT = _hashRecursive(new ArrayList<Class<?>>());
+    }
+
+    public static long _hashRecursive(ArrayList<Class<?>> classes)
+    {
+        if (classes.contains(lcm.lcm.metrics_t.class))
+            return 0L;
+
+        classes.add(lcm.lcm.metrics_t.class);
+        long hash = LCM_FINGERPRINT_BASE;
+        classes.remove(classes.size() - 1);
+        return (hash<<1) + ((hash>>63)&1);
+    }
+
+    public void encode(DataOutput outs) throws IOException
+    {
+        outs.writeLong(LCM_FINGERPRINT);
+        _encodeRecursive(outs);
+    }
+
+    public void _encodeRecursive(DataOutput outs) throws IOException
+    {
+        byte[] __strbuf = null;
+        outs.writeLong(this.utime);
+
+        outs.writeInt(this.ncounters);
+
+        for (int a = 0; a < this.ncounters; a++) {
+            __strbuf = this.names[a].getBytes("UTF-8"); outs.writeInt(__strbuf.length+1); outs.write(__strbuf, 0, __strbuf.length); outs.writeByte(0);
+        }
+
+        for (int a = 0; a < this.ncounters; a++) {
+            outs.writeLong(this.values[a]);
+        }
+    }
+
+    public metrics_t(byte[] data) throws IOException
+    {
+        this(new LCMDataInputStream(data));
+    }
+
+    public metrics_t(DataInput ins) throws IOException
+    {
+        if (ins.readLong() != LCM_FINGERPRINT)
+            throw new IOException("LCM Decode error: bad fingerprint");
+
+        _decodeRecursive(ins);
+    }
+
+    public static lcm.lcm.metrics_t _decodeRecursiveFactory(DataInput ins) throws IOException
+    {
+        lcm.lcm.metrics_t o = new lcm.lcm.metrics_t();
+        o._decodeRecursive(ins);
+        return o;
+    }
+
+    public void _decodeRecursive(DataInput ins) throws IOException
+    {
+        byte[] __strbuf = null;
+        this.utime = ins.readLong();
+
+        this.ncounters = ins.readInt();
+
+        this.names = new String[ncounters];
+        for (int a = 0; a < this.ncounters; a++) {
+            __strbuf = new byte[ins.readInt()-1]; ins.readFully(__strbuf); ins.readByte(); this.names[a] = new String(__strbuf, "UTF-8");
+        }
+
+        this.values = new long[ncounters];
+        for (int a = 0; a < this.ncounters; a++) {
+            this.values[a] = ins.readLong();
+        }
+    }
+
+    public lcm.lcm.metrics_t copy()
+    {
+        lcm.lcm.metrics_t outobj = new lcm.lcm.metrics_t();
+        outobj.utime = this.utime;
+
+        outobj.ncounters = this.ncounters;
+
+        outobj.names = new String[ncounters];
+        if (this.ncounters > 0)
+            System.arraycopy(this.names, 0, outobj.names, 0, this.ncounters);
+        outobj.values = new long[ncounters];
+        if (this.ncounters > 0)
+            System.arraycopy(this.values, 0, outobj.values, 0, this.ncounters);
+        return outobj;
+    }
+}
@@ -0,0 +1,459 @@
+package lcm.logging;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * Writes an LCM log file from a background thread.
+ * <p>
+ * {@link Log#write} formats each event and writes it on the caller's
+ * thread, holding the log's lock, so a slow disk stalls every thread
+ * that logs. An AsyncLogWriter instead copies each event into a
+ * bounded ring of slots and returns. Producers claim slots with a
+ * compare-and-set and never take a lock. A writer thread drains the
+ * ring in order and commits the events with large sequential writes,
+ * optionally calling fsync at a fixed interval.
+ * <p>
+ * When the ring is full (too many events, or roughly too many bytes,
+ * are queued) an event is either dropped and counted, or, if
+ * {@link #setBlocking} is on, the producer waits for room. An event
+ * larger than the byte limit is accepted once the queue is empty.
+ * <p>
+ * Event numbers are assigned in the order events are written, starting
+ * at zero. Dropped events do not use up event numbers.
+ * <p>
+ * Inspired by april.util.ThreadedOutputStream, but it queues whole
+ * events, so a full queue never leaves a partial event in the log.
+ */
+public class AsyncLogWriter
+{
+    static final int DEFAULT_MAX_EVENTS = 4096;
+    static final int DEFAULT_MAX_BYTES = 64*1024*1024;
+    static final int BATCH_SIZE = 1024*1024;
+
+    // slots keep their array between events unless it is bigger than
+    // this, or than 4*maxBytes/nslots, so that what idle slots hold
+    // stays within a few times the queue limit.
+    static final int SLOT_RETAIN_SIZE = 64*1024;
+
+    static final int MAX_CACHED_CHANNELS = 1024;
+
+    static class Slot
+    {
+        // the sequence number of the event in this slot; the slot may
+        // be read by the writer once this has been set.
+        volatile long sequence = -1;
+
+        long   utime;
+        byte   channel[];
+        byte   data[];
+        int    length;
+    }
+
+    final Slot slots[];
+    final int mask;
+    final int maxBytes;
+    final int retainSize;
+
+    // sequence numbers below 'claimed' have been handed to producers;
+    // below 'consumed' they have been copied out by the writer (and
+    // the slot is free again); below 'committed' they have been written
+    // to the file.
+    final AtomicLong claimed = new AtomicLong();
+    volatile long consumed, committed;
+    final AtomicLong queuedBytes = new AtomicLong();
+
+    volatile boolean blocking;
+    volatile long fsyncInterval_ns;
+
+    final AtomicLong ndropped = new AtomicLong();
+    volatile long nbytesWritten, nbatches, nfsyncs;
+    volatile long maxQueueDepth;
+
+    ConcurrentHashMap<String, byte[]> channelBytesCache = new ConcurrentHashMap<String, byte[]>();
+
+    String path;
+    FileOutputStream fouts;
+    FileChannel fc;
+
+    volatile boolean closed;
+    volatile boolean sealed; // the writer thread has finished
+    volatile boolean writerWaiting;
+    volatile IOException ex; // thrown by the writer thread, reported to producers
+
+    WriterThread writer;
+
+    /** Create (or truncate) a log file, with default queue limits. **/
+    public AsyncLogWriter(String path) throws IOException
+    {
+        this(path, DEFAULT_MAX_EVENTS, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * @param maxEvents number of events that may be queued; rounded up
+     * to a power of two.
+     * @param maxBytes approximate limit on the number of message bytes
+     * queued.
+     */
+    public AsyncLogWriter(String path, int maxEvents, int maxBytes) throws IOException
+    {
+        int nslots = Integer.highestOneBit(Math.max(1, maxEvents - 1)) << 1;
+
+        this.path = path;
+        this.slots = new Slot[nslots];
+        for (int i = 0; i < nslots; i++)
+            slots[i] = new Slot();
+        this.mask = nslots - 1;
+        this.maxBytes = maxBytes;
+        this.retainSize = (int) Math.min(SLOT_RETAIN_SIZE, 4L*maxBytes/nslots);
+
+        fouts = new FileOutputStream(path);
+        fc = fouts.getChannel();
+
+        writer = new WriterThread();
+        writer.start();
+    }
+
+    public String getPath()
+    {
+        return path;
+    }
+
+    /** If true, write() waits for room when the queue is full instead
+     * of dropping the event. Default is false.
+     **/
+    public void setBlocking(boolean blocking)
+    {
+        this.blocking = blocking;
+    }
+
+    /** Call fsync at most this often while events are being written;
+     * zero (the default) means only when the writer is closed.
+     **/
+    public void setFsyncInterval(double seconds)
+    {
+        fsyncInterval_ns = (long) (seconds * 1E9);
+    }
+
+    /**
+     * Queue an event. The data is copied before this method returns.
+     *
+     * @return false if the event was dropped because the queue was full.
+     * @throws IOException if the writer thread has failed, the writer
+     * has been closed, or the channel name is too long to be logged.
+     */
+    public boolean write(long utime, String channel, byte data[], int offset, int length) throws IOException
+    {
+        long seq;
+
+        // readers reject longer channels as corrupt, and the writer's
+        // header buffer is sized for them.
+        byte channelb[] = getChannelBytes(channel);
+        if (channelb.length >= LogIndex.MAX_CHANNEL_LENGTH)
+            throw new IOException("AsyncLogWriter: channel name too long: "+channel);
+
+        while (true) {
+            if (ex != null)
+                throw ex;
+            if (closed)
+                throw new IOException("AsyncLogWriter: closed");
+
+            seq = claimed.get();
+
+            // an event bigger than maxBytes is let into an empty
+            // queue, or a blocking producer would wait forever.
+            long queued = queuedBytes.get();
+            if (seq - consumed > mask || (queued > 0 && queued + length > maxBytes)) {
+                if (!blocking) {
+                    ndropped.incrementAndGet();
+                    return false;
+                }
+                LockSupport.unpark(writer);
+                LockSupport.parkNanos(100000);
+                continue;
+            }
+
+            if (claimed.compareAndSet(seq, seq + 1))
+                break;
+        }
+
+        queuedBytes.addAndGet(length);
+
+        Slot s = slots[(int) seq & mask];
+        if (s.data == null || s.data.length < length)
+            s.data = new byte[length];
+        System.arraycopy(data, offset, s.data, 0, length);
+        s.utime = utime;
+        s.channel = channelb;
+        s.length = length;
+        s.sequence = seq;
+
+        if (writerWaiting)
+            LockSupport.unpark(writer);
+
+        return true;
+    }
+
+    /** Queue an event. Its eventNumber field is ignored. **/
+    public boolean write(Log.Event e) throws IOException
+    {
+        return write(e.utime, e.channel, e.data, 0, e.data.length);
+    }
+
+    byte[] getChannelBytes(String channel)
+    {
+        byte b[] = channelBytesCache.get(channel);
+        if (b == null) {
+            b = channel.getBytes();
+            if (channelBytesCache.size() < MAX_CACHED_CHANNELS)
+                channelBytesCache.put(channel, b);
+        }
+        return b;
+    }
+
+    /** Wait until every event queued so far has been written to the
+     * file (but not necessarily synced to disk).
+     **/
+    public void flush() throws IOException
+    {
+        long target = claimed.get();
+
+        while (committed < target) {
+            if (ex != null)
+                throw ex;
+            if (!writer.isAlive())
+                break;
+            LockSupport.unpark(writer);
+            LockSupport.parkNanos(100000);
+        }
+
+        if (ex != null)
+            throw ex;
+    }
+
+    /** Write out all queued events, sync them to disk, and close the
+     * file. An event queued concurrently with close() is either
+     * written, or refused by write().
+     **/
+    public void close() throws IOException
+    {
+        if (closed)
+            return;
+
+        closed = true;
+        LockSupport.unpark(writer);
+
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+        }
+
+        try {
+            if (ex == null)
+                fc.force(true);
+        } finally {
+            fouts.close();
+        }
+
+        if (ex != null)
+            throw ex;
+    }
+
+    /** Number of events queued but not yet written. **/
+    public long getQueueDepth()
+    {
+        if (sealed)
+            return 0;
+        return claimed.get() - consumed;
+    }
+
+    /** Largest queue depth the writer has seen. **/
+    public long getMaxQueueDepth()
+    {
+        return maxQueueDepth;
+    }
+
+    /** Number of message bytes queued but not yet written. **/
+    public long getQueuedBytes()
+    {
+        return queuedBytes.get();
+    }
+
+    /** Number of events written to the file. **/
+    public long getNumWritten()
+    {
+        return committed;
+    }
+
+    /** Number of events dropped because the queue was full. **/
+    public long getNumDropped()
+    {
+        return ndropped.get();
+    }
+
+    /** Number of bytes (including event headers) written to the file. **/
+    public long getBytesWritten()
+    {
+        return nbytesWritten;
+    }
+
+    /** Number of write calls made to the file. **/
+    public long getNumBatches()
+    {
+        return nbatches;
+    }
+
+    public long getNumFsyncs()
+    {
+        return nfsyncs;
+    }
+
+    class WriterThread extends Thread
+    {
+        ByteBuffer batch = ByteBuffer.allocate(BATCH_SIZE);
+        ByteBuffer header = ByteBuffer.allocate(LogIndex.EVENT_HEADER_SIZE + LogIndex.MAX_CHANNEL_LENGTH);
+        ByteBuffer gather[] = new ByteBuffer[2];
+
+        long next;        // next sequence number to write
+        long batchEnd;    // sequence number after the last event in 'batch'
+        long lastFsync = System.nanoTime();
+
+        WriterThread()
+        {
+            setDaemon(true);
+            setName("LCM AsyncLogWriter");
+        }
+
+        public void run()
+        {
+            try {
+                runEx();
+            } catch (IOException e) {
+                System.err.println("AsyncLogWriter ex: "+e);
+                ex = e;
+            } catch (RuntimeException e) {
+                System.err.println("AsyncLogWriter ex: "+e);
+                ex = new IOException("AsyncLogWriter: writer thread failed", e);
+            } catch (Error e) {
+                // still let producers, and flush(), see that we stopped
+                ex = new IOException("AsyncLogWriter: writer thread failed", e);
+                throw e;
+            }
+        }
+
+        void runEx() throws IOException
+        {
+            while (true) {
+                Slot s = slots[(int) next & mask];
+
+                if (s.sequence != next) {
+                    // nothing more to copy right now: commit what we have.
+                    commit();
+
+                    // once closed, seal the ring so that no producer can
+                    // claim a slot after we stop: it finds the ring full,
+                    // then closed.
+                    if (closed && claimed.compareAndSet(next, next + slots.length)) {
+                        sealed = true;
+                        return;
+                    }
+
+                    writerWaiting = true;
+                    if (s.sequence != next)
+                        LockSupport.parkNanos(1000000);
+                    writerWaiting = false;
+                    continue;
+                }
+
+                long depth = claimed.get() - next;
+                if (depth > maxQueueDepth)
+                    maxQueueDepth = depth;
+
+                append(next, s);
+
+                int length = s.length;
+                if (s.data.length > retainSize)
+                    s.data = null;
+                s.channel = null;
+
+                next++;
+                consumed = next;
+                queuedBytes.addAndGet(-length);
+            }
+        }
+
+        // copy one event into the batch, writing the batch out when it
+        // is full.
+        void append(long eventNumber, Slot s) throws IOException
+        {
+            int eventlen = LogIndex.EVENT_HEADER_SIZE + s.channel.length + s.length;
+
+            if (batch.remaining() < eventlen)
+                commit();
+
+            if (batch.remaining() < eventlen) {
+                // larger than a batch: write it directly from the slot
+                putHeader(header, eventNumber, s);
+                header.flip();
+                gather[0] = header;
+                gather[1] = ByteBuffer.wrap(s.data, 0, s.length);
+                while (gather[1].hasRemaining())
+                    fc.write(gather);
+                header.clear();
+                nbatches++;
+                nbytesWritten += eventlen;
+                committed = eventNumber + 1;
+                batchEnd = eventNumber + 1;
+                commit();
+                return;
+            }
+
+            putHeader(batch, eventNumber, s);
+            batch.put(s.data, 0, s.length);
+            batchEnd = eventNumber + 1;
+        }
+
+        void putHeader(ByteBuffer bb, long eventNumber, Slot s)
+        {
+            bb.putInt(Log.LOG_MAGIC);
+            bb.putLong(eventNumber);
+            bb.putLong(s.utime);
+            bb.putInt(s.channel.length);
+            bb.putInt(s.length);
+            bb.put(s.channel);
+        }
+
+        void writeBatch() throws IOException
+        {
+            if (batch.position() == 0)
+                return;
+
+            batch.flip();
+            int len = batch.remaining();
+            while (batch.hasRemaining())
+                fc.write(batch);
+            batch.clear();
+
+            nbatches++;
+            nbytesWritten += len;
+            committed = batchEnd;
+        }
+
+        void commit() throws IOException
+        {
+            writeBatch();
+
+            long interval = fsyncInterval_ns;
+            long now = System.nanoTime();
+            if (interval > 0 && now - lastFsync >= interval) {
+                fc.force(false);
+                nfsyncs++;
+                lastFsync = now;
+            }
+        }
+    }
+}
@@ -10,6 +10,10 @@ import lcm.lcm.*;
 
 /**
  * A class for reading and writing LCM log files.
+ * <p>
+ * Logs compressed with {@link #createCompressed} (or
+ * {@link LogCompress}) are read transparently: opening one in "r"
+ * mode decompresses it block by block, and seeking remains cheap.
  */
 public class Log
 {
@@ -57,10 +61,38 @@ public class Log
     public Log(String path, String mode) throws IOException
     {
         this.path = path;
-        raf = new BufferedRandomAccessFile(path, mode);
+        if (mode.equals("r") && BlockCompressedFile.isCompressed(path))
+            raf = new BlockCompressedFile(path);
+        else
+            raf = new BufferedRandomAccessFile(path, mode);
         //raf = new RandomAccessFile(path, mode);
     }
 
+    Log(String path, BufferedRandomAccessFile raf)
+    {
+        this.path = path;
+        this.raf = raf;
+    }
+
+    /**
+     * Creates (or truncates) a block-compressed log file for writing.
+     * Such logs are written sequentially, so only the write methods,
+     * flush() and close() may be used. flush() ends the current block
+     * early, which costs some compression.
+     *
+     * @param level Deflate compression level, 1 (fastest) to 9 (smallest).
+     */
+    public static Log createCompressed(String path, int level) throws IOException
+    {
+        return new Log(path, new BlockCompressedFile(path, BlockCompressedFile.DEFAULT_BLOCK_SIZE, level));
+    }
+
+    /** Returns true if this is a block-compressed log. **/
+    public boolean isCompressed()
+    {
+        return raf instanceof BlockCompressedFile;
+    }
+
     /**
      * Retrieves the path to the log file.
      * @return the path to the log file
@@ -85,8 +117,45 @@ public class Log
      */
     public synchronized Event readNext() throws IOException
     {
-        int magic = 0;
         Event e = new Event();
+        int datalen = readHeader(e);
+
+        e.data = new byte[datalen];
+        raf.readFully(e.data);
+
+        return e;
+    }
+
+    /**
+     * Reads the next event into a buffer leased from the pool rather
+     * than a new byte array. The utime, eventNumber and channel fields
+     * of e are filled in; e.data is set to null. The caller must
+     * release() the returned buffer.
+     *
+     * @throws java.io.EOFException if the end of the file has been reached.
+     */
+    public synchronized LCMBuffer readNext(Event e, BufferPool pool) throws IOException
+    {
+        int datalen = readHeader(e);
+
+        LCMBuffer buf = pool.lease(datalen);
+        try {
+            raf.readFully(buf.getData(), 0, datalen);
+        } catch (IOException ex) {
+            buf.release();
+            throw ex;
+        }
+
+        e.data = null;
+        return buf;
+    }
+
+    /** Scan to the next event header and read it, and the channel name,
+     * into e. Returns the length of the data that follows.
+     **/
+    int readHeader(Event e) throws IOException
+    {
+        int magic = 0;
         int channellen = 0, datalen = 0;
 
         while (true)
@@ -113,13 +182,11 @@ public class Log
 	    }
 
         byte bchannel[] = new byte[channellen];
-        e.data = new byte[datalen];
 
         raf.readFully(bchannel);
         e.channel = new String(bchannel);
-        raf.readFully(e.data);
 
-        return e;
+        return datalen;
     }
 
     public synchronized double getPositionFraction() throws IOException
@@ -127,6 +194,21 @@ public class Log
         return raf.getFilePointer()/((double) raf.length());
     }
 
+    /** Returns the current byte offset in the log file. **/
+    public synchronized long getPosition() throws IOException
+    {
+        return raf.getFilePointer();
+    }
+
+    /**
+     * Seek to a byte offset in the log file, such as one returned by
+     * {@link LogIndex#getOffset}.
+     */
+    public synchronized void seekPosition(long offset) throws IOException
+    {
+        raf.seek(offset);
+    }
+
     /**
      * Seek to a position in the log file, specified by a fraction.
      *
@@ -0,0 +1,108 @@
+package lcm.logging;
+
+import java.io.*;
+
+import lcm.util.*;
+
+/**
+ * Converts LCM log files to and from the block-compressed format read
+ * by {@link Log}.
+ * <p>
+ * Conversion works on the raw bytes of the log rather than on events,
+ * so a round trip reproduces the original file exactly, including any
+ * corrupt data it contains.
+ * <p>
+ * usage: java lcm.logging.LogCompress [-d] [-l level] [-b blocksize] input output
+ * <p>
+ * -d decompresses; the default level is 1 (fastest) and the default
+ * block size is 256 KB.
+ */
+public class LogCompress
+{
+    static final int COPY_SIZE = 1024*1024;
+
+    /** Compress the log at inpath into outpath. **/
+    public static void compress(String inpath, String outpath, int level, int blockSize) throws IOException
+    {
+        InputStream ins = new FileInputStream(inpath);
+        BlockCompressedFile out = new BlockCompressedFile(outpath, blockSize, level);
+
+        try {
+            byte buf[] = new byte[COPY_SIZE];
+            int n;
+            while ((n = ins.read(buf)) > 0)
+                out.write(buf, 0, n);
+        } finally {
+            ins.close();
+            out.close();
+        }
+    }
+
+    /** Decompress the log at inpath into outpath. **/
+    public static void decompress(String inpath, String outpath) throws IOException
+    {
+        BlockCompressedFile in = new BlockCompressedFile(inpath);
+        OutputStream outs = new FileOutputStream(outpath);
+
+        try {
+            byte buf[] = new byte[COPY_SIZE];
+            long remaining = in.length();
+            while (remaining > 0) {
+                int n = (int) Math.min(buf.length, remaining);
+                in.readFully(buf, 0, n);
+                outs.write(buf, 0, n);
+                remaining -= n;
+            }
+        } finally {
+            in.close();
+            outs.close();
+        }
+    }
+
+    public static void main(String args[])
+    {
+        boolean decompress = false;
+        int level = 1;
+        int blockSize = BlockCompressedFile.DEFAULT_BLOCK_SIZE;
+        String paths[] = new String[2];
+        int npaths = 0;
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-d"))
+                decompress = true;
+            else if (args[i].equals("-l") && i + 1 < args.length)
+                level = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-b") && i + 1 < args.length)
+                blockSize = Integer.parseInt(args[++i]);
+            else if (npaths < 2)
+                paths[npaths++] = args[i];
+            else
+                npaths = 3;
+        }
+
+        if (npaths != 2) {
+            System.err.println("usage: lcm.logging.LogCompress [-d] [-l level] [-b blocksize] input output");
+            System.exit(1);
+        }
+
+        try {
+            long t0 = System.nanoTime();
+            if (decompress)
+                decompress(paths[0], paths[1]);
+            else
+                compress(paths[0], paths[1], level, blockSize);
+            double dt = (System.nanoTime() - t0) / 1.0E9;
+
+            long inlen = new File(paths[0]).length();
+            long outlen = new File(paths[1]).length();
+            long rawlen = decompress ? outlen : inlen;
+
+            System.out.printf("%s -> %s: %.1f MB -> %.1f MB (ratio %.2f), %.2f s, %.1f MB/s uncompressed\n",
+                              paths[0], paths[1], inlen / 1.0E6, outlen / 1.0E6,
+                              decompress ? outlen / (double) inlen : inlen / (double) outlen,
+                              dt, rawlen / 1.0E6 / dt);
+        } catch (IOException ex) {
+            System.out.println("ex: "+ex);
+        }
+    }
+}
@@ -0,0 +1,327 @@
+package lcm.logging;
+
+import java.io.*;
+import java.util.*;
+
+import lcm.util.*;
+
+/**
+ * An index of the events in an LCM log file, stored in a sidecar file
+ * next to the log (the log's path plus ".idx").
+ * <p>
+ * The index holds one fixed-size record per event: file offset, utime,
+ * event number, channel and data length. The sidecar is memory mapped
+ * rather than loaded, so even an index of tens of millions of events
+ * costs little heap, and lookups by timestamp or event number are
+ * binary searches.
+ * <p>
+ * The sidecar records the length and modification time of the log it
+ * describes; a stale index is rebuilt.
+ * <p>
+ * To build the index for a log ahead of time:
+ * <pre>java lcm.logging.LogIndex logfile...</pre>
+ */
+public class LogIndex
+{
+    static final long INDEX_MAGIC = 0x4c434d4944583031L; // "LCMIDX01"
+
+    // record layout
+    static final int RECORD_SIZE = 32;
+    static final int REC_OFFSET = 0, REC_UTIME = 8, REC_EVENTNUMBER = 16, REC_CHANNEL = 24, REC_DATALEN = 28;
+
+    static final int TRAILER_SIZE = 40;
+
+    // size of the largest possible log event
+    static final int EVENT_HEADER_SIZE = 28;
+    static final int MAX_CHANNEL_LENGTH = 256;
+    static final int MAX_DATA_LENGTH = 16*1024*1024;
+    static final long MAX_EVENT_SIZE = EVENT_HEADER_SIZE + MAX_CHANNEL_LENGTH + MAX_DATA_LENGTH;
+
+    String logPath;
+    MappedFile records;
+    long nevents;
+    String channels[];
+
+    LogIndex(String logPath, File indexFile) throws IOException
+    {
+        this.logPath = logPath;
+
+        MappedFile mf = new MappedFile(indexFile, RECORD_SIZE);
+        long trailer = mf.length() - TRAILER_SIZE;
+
+        long channelTableOffset = mf.getLong(trailer);
+        nevents = mf.getLong(trailer + 8);
+
+        DataInputStream ins = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+        try {
+            ins.skip(channelTableOffset);
+            channels = new String[ins.readInt()];
+            for (int i = 0; i < channels.length; i++)
+                channels[i] = ins.readUTF();
+        } finally {
+            ins.close();
+        }
+
+        records = mf;
+    }
+
+    /** Returns the sidecar index file used for a log. **/
+    public static File getIndexFile(String logPath)
+    {
+        return new File(logPath + ".idx");
+    }
+
+    /** Load the index for a log if an up-to-date sidecar exists,
+     * otherwise return null.
+     **/
+    public static LogIndex load(String logPath) throws IOException
+    {
+        File logFile = new File(logPath);
+        File indexFile = getIndexFile(logPath);
+
+        if (!indexFile.exists() || indexFile.length() < TRAILER_SIZE)
+            return null;
+
+        RandomAccessFile raf = new RandomAccessFile(indexFile, "r");
+        try {
+            raf.seek(raf.length() - TRAILER_SIZE + 16);
+            long logLength = raf.readLong();
+            long logModified = raf.readLong();
+            long magic = raf.readLong();
+
+            if (magic != INDEX_MAGIC || logLength != logFile.length() ||
+                logModified != logFile.lastModified())
+                return null;
+        } finally {
+            raf.close();
+        }
+
+        return new LogIndex(logPath, indexFile);
+    }
+
+    /** Load the index for a log, building (and saving) it first if
+     * necessary. If the sidecar cannot be written next to the log, a
+     * temporary file is used instead.
+     **/
+    public static LogIndex open(String logPath) throws IOException
+    {
+        LogIndex index = load(logPath);
+        if (index != null)
+            return index;
+
+        File indexFile = getIndexFile(logPath);
+        File tmp = new File(indexFile.getPath() + ".tmp");
+
+        try {
+            build(logPath, tmp);
+            if (indexFile.exists())
+                indexFile.delete();
+            if (tmp.renameTo(indexFile))
+                return new LogIndex(logPath, indexFile);
+        } catch (IOException ex) {
+            tmp.delete();
+        }
+
+        System.err.println("LogIndex: cannot write "+indexFile+", using a temporary index");
+        tmp = File.createTempFile("lcm-log", ".idx");
+        tmp.deleteOnExit();
+        build(logPath, tmp);
+        return new LogIndex(logPath, tmp);
+    }
+
+    /** Scan a log and write its index to indexFile. Like
+     * Log.readNext(), the scan resynchronizes on LOG_MAGIC after
+     * corrupt data.
+     **/
+    public static void build(String logPath, File indexFile) throws IOException
+    {
+        if (BlockCompressedFile.isCompressed(logPath))
+            throw new IOException("LogIndex: "+logPath+" is compressed; decompress it with LogCompress first");
+
+        File logFile = new File(logPath);
+        long logModified = logFile.lastModified();
+
+        MappedFile log = new MappedFile(logFile, MAX_EVENT_SIZE);
+        long length = log.length();
+
+        HashMap<String, Integer> channelIds = new HashMap<String, Integer>();
+        ArrayList<String> channelNames = new ArrayList<String>();
+        byte bchannel[] = new byte[MAX_CHANNEL_LENGTH];
+
+        DataOutputStream outs = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile), 1 << 20));
+        long nevents = 0;
+
+        try {
+            long pos = 0;
+            while (pos + EVENT_HEADER_SIZE <= length) {
+                int eventlen = eventLength(log, pos);
+                if (eventlen < 0) {
+                    pos++;
+                    continue;
+                }
+
+                long eventNumber = log.getLong(pos + 4);
+                long utime = log.getLong(pos + 12);
+                int channellen = log.getInt(pos + 20);
+                int datalen = log.getInt(pos + 24);
+
+                log.get(pos + EVENT_HEADER_SIZE, bchannel, 0, channellen);
+                String channel = new String(bchannel, 0, channellen);
+
+                Integer id = channelIds.get(channel);
+                if (id == null) {
+                    id = channelNames.size();
+                    channelIds.put(channel, id);
+                    channelNames.add(channel);
+                }
+
+                outs.writeLong(pos);
+                outs.writeLong(utime);
+                outs.writeLong(eventNumber);
+                outs.writeInt(id);
+                outs.writeInt(datalen);
+                nevents++;
+
+                pos += eventlen;
+            }
+
+            long channelTableOffset = nevents * RECORD_SIZE;
+            outs.writeInt(channelNames.size());
+            for (String channel : channelNames)
+                outs.writeUTF(channel);
+
+            outs.writeLong(channelTableOffset);
+            outs.writeLong(nevents);
+            outs.writeLong(length);
+            outs.writeLong(logModified);
+            outs.writeLong(INDEX_MAGIC);
+        } finally {
+            outs.close();
+            log.close();
+        }
+    }
+
+    /** If a valid event header starts at pos, returns the total length
+     * of the event; otherwise returns -1. Applies the same checks as
+     * Log.readNext(), and also requires the event to end within the
+     * file.
+     **/
+    static int eventLength(MappedFile log, long pos)
+    {
+        if (pos + EVENT_HEADER_SIZE > log.length() || log.getInt(pos) != Log.LOG_MAGIC)
+            return -1;
+
+        int channellen = log.getInt(pos + 20);
+        int datalen = log.getInt(pos + 24);
+
+        if (channellen <= 0 || datalen <= 0 || channellen >= MAX_CHANNEL_LENGTH ||
+            datalen >= MAX_DATA_LENGTH ||
+            pos + EVENT_HEADER_SIZE + channellen + datalen > log.length())
+            return -1;
+
+        return EVENT_HEADER_SIZE + channellen + datalen;
+    }
+
+    public String getLogPath()
+    {
+        return logPath;
+    }
+
+    public long getNumEvents()
+    {
+        return nevents;
+    }
+
+    /** All channel names that appear in the log. **/
+    public String[] getChannels()
+    {
+        return channels.clone();
+    }
+
+    /** File offset of the LOG_MAGIC word that starts event i. **/
+    public long getOffset(long i)
+    {
+        return records.getLong(i * RECORD_SIZE + REC_OFFSET);
+    }
+
+    public long getUtime(long i)
+    {
+        return records.getLong(i * RECORD_SIZE + REC_UTIME);
+    }
+
+    public long getEventNumber(long i)
+    {
+        return records.getLong(i * RECORD_SIZE + REC_EVENTNUMBER);
+    }
+
+    public String getChannel(long i)
+    {
+        return channels[records.getInt(i * RECORD_SIZE + REC_CHANNEL)];
+    }
+
+    public int getDataLength(long i)
+    {
+        return records.getInt(i * RECORD_SIZE + REC_DATALEN);
+    }
+
+    /** Returns the index of the first event whose utime is at least
+     * utime, or getNumEvents() if there is none. Assumes utimes are
+     * non-decreasing, as they are in logs recorded by a single
+     * logger.
+     **/
+    public long findEventByUtime(long utime)
+    {
+        long lo = 0, hi = nevents;
+        while (lo < hi) {
+            long mid = (lo + hi) >>> 1;
+            if (getUtime(mid) < utime)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    /** Returns the index of the first event whose event number is at
+     * least eventNumber, or getNumEvents() if there is none.
+     **/
+    public long findEventByNumber(long eventNumber)
+    {
+        long lo = 0, hi = nevents;
+        while (lo < hi) {
+            long mid = (lo + hi) >>> 1;
+            if (getEventNumber(mid) < eventNumber)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    public void close() throws IOException
+    {
+        records.close();
+    }
+
+    public static void main(String args[])
+    {
+        if (args.length == 0) {
+            System.err.println("usage: lcm.logging.LogIndex logfile...");
+            System.exit(1);
+        }
+
+        for (String path : args) {
+            try {
+                long t0 = System.nanoTime();
+                LogIndex index = open(path);
+                double dt = (System.nanoTime() - t0) / 1E9;
+
+                System.out.printf("%s: %d events, %d channels (%.2f s)\n",
+                                  path, index.getNumEvents(), index.channels.length, dt);
+                index.close();
+            } catch (IOException ex) {
+                System.out.println("ex: "+ex);
+            }
+        }
+    }
+}
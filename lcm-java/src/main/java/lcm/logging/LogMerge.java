@@ -0,0 +1,507 @@
+package lcm.logging;
+
+import java.io.*;
+import java.util.*;
+import java.util.regex.*;
+
+import lcm.util.*;
+
+/**
+ * Merges, filters and slices LCM logs in a single streaming pass.
+ * <p>
+ * Events from any number of input logs (for example, logs recorded on
+ * different machines) are merged in order of utime; events with equal
+ * utimes keep the order of the inputs. Events can be restricted to
+ * channels matching (or not matching) a regex, and to a range of
+ * utimes.
+ * <p>
+ * Each input is read sequentially through its own large buffer and
+ * only event headers are parsed (and channel names, when filtering by
+ * channel). Events are copied to the output as raw bytes, with only the
+ * event number rewritten, so memory use is bounded by one buffer per
+ * input regardless of the size of the logs. Corrupt data between events
+ * is skipped.
+ * <p>
+ * A start time is found with the log's {@link LogIndex} when an
+ * up-to-date one exists; otherwise the input is read from the
+ * beginning. An input is considered finished at its first event past
+ * the end time.
+ * <p>
+ * usage: java lcm.logging.LogMerge [-c regex] [-x regex] [-s seconds] [-e seconds]
+ * [-S utime] [-E utime] [-k] -o output input...
+ * <p>
+ * -c keeps only channels matching regex, -x drops channels matching
+ * regex. -s and -e are in seconds since the first event of the
+ * earliest input; -S and -E are absolute utimes. -k keeps the
+ * inputs' event numbers rather than numbering the output from 0.
+ */
+public class LogMerge
+{
+    static final int BUFFER_SIZE = 1024*1024;
+
+    ArrayList<Input> inputs = new ArrayList<Input>();
+
+    Pattern include, exclude;
+    HashMap<String, Boolean> channelCache = new HashMap<String, Boolean>();
+
+    long startUtime = Long.MIN_VALUE, endUtime = Long.MAX_VALUE;
+    double startSeconds = Double.NaN, endSeconds = Double.NaN;
+    boolean renumber = true;
+
+    long eventsRead, eventsWritten, bytesWritten, bytesSkipped;
+
+    /** A sequential reader over the events of one input log. The
+     * current event occupies buf[pos, pos+length).
+     **/
+    static class Input
+    {
+        String path;
+        int order;
+        double p0, p1;
+
+        InputStream ins;
+        BlockCompressedFile bcf;
+        long remaining; // bytes not yet read from bcf
+        LogIndex index;
+
+        byte buf[] = new byte[BUFFER_SIZE];
+        int pos, limit;
+        long bufOffset;   // file offset of buf[0]
+        long endOffset;   // no event starting at or past here is read
+        boolean resync;   // the next event must be followed by a valid header
+        long skipped;
+
+        long utime;
+        int length;
+        int channelLength;
+
+        Input(String path, int order, double p0, double p1)
+        {
+            this.path = path;
+            this.order = order;
+            this.p0 = p0;
+            this.p1 = p1;
+        }
+
+        void open() throws IOException
+        {
+            long filelen;
+            if (BlockCompressedFile.isCompressed(path)) {
+                bcf = new BlockCompressedFile(path);
+                filelen = bcf.length();
+            } else {
+                filelen = new File(path).length();
+                index = LogIndex.load(path);
+            }
+
+            endOffset = (long) (filelen * p1);
+            seek((long) (filelen * p0));
+        }
+
+        /** Start reading at an arbitrary file offset. Unless the offset
+         * is 0, the first event must be followed by a valid header, so
+         * that data which merely looks like a header is skipped.
+         **/
+        void seek(long offset) throws IOException
+        {
+            if (bcf != null) {
+                bcf.seek(offset);
+                remaining = bcf.length() - offset;
+            } else {
+                if (ins != null)
+                    ins.close();
+                FileInputStream fins = new FileInputStream(path);
+                fins.getChannel().position(offset);
+                ins = fins;
+            }
+
+            bufOffset = offset;
+            pos = limit = length = 0;
+            resync = offset > 0;
+        }
+
+        /** Start reading at the first event whose utime is at least
+         * utime, if the log's index says where that is.
+         **/
+        void seekUtime(long utime) throws IOException
+        {
+            if (index == null)
+                return;
+
+            long i = index.findEventByUtime(utime);
+            long offset = i < index.getNumEvents() ? index.getOffset(i) : new File(path).length();
+            if (offset > bufOffset + pos) {
+                seek(offset);
+                resync = false; // the index knows where events start
+            }
+        }
+
+        /** Advances to the next valid event, returning false at the end
+         * of the input (or of its region).
+         **/
+        boolean next() throws IOException
+        {
+            pos += length;
+            length = 0;
+
+            while (bufOffset + pos < endOffset && fill(LogIndex.EVENT_HEADER_SIZE)) {
+                int len = eventLength(pos);
+                if (len > 0) {
+                    if (!fill(len))
+                        return false; // truncated by the end of the file
+                    if (!resync || !fill(len + LogIndex.EVENT_HEADER_SIZE) || eventLength(pos + len) > 0) {
+                        resync = false;
+                        length = len;
+                        utime = getLong(pos + 12);
+                        channelLength = getInt(pos + 20);
+                        return true;
+                    }
+                }
+
+                pos++;
+                skipped++;
+            }
+
+            return false;
+        }
+
+        /** Length of the event whose header starts at buf[p], or -1 if
+         * it is not a valid header. Uses the same limits as Log.
+         **/
+        int eventLength(int p)
+        {
+            if (getInt(p) != Log.LOG_MAGIC)
+                return -1;
+
+            int channellen = getInt(p + 20);
+            int datalen = getInt(p + 24);
+            if (channellen <= 0 || datalen <= 0 || channellen >= LogIndex.MAX_CHANNEL_LENGTH ||
+                datalen >= LogIndex.MAX_DATA_LENGTH)
+                return -1;
+
+            return LogIndex.EVENT_HEADER_SIZE + channellen + datalen;
+        }
+
+        /** Make sure at least n bytes are buffered at pos, returning
+         * false if the file ends first.
+         **/
+        boolean fill(int n) throws IOException
+        {
+            if (limit - pos >= n)
+                return true;
+
+            if (n > buf.length) {
+                byte newbuf[] = new byte[Math.max(n, 2*buf.length)];
+                System.arraycopy(buf, pos, newbuf, 0, limit - pos);
+                buf = newbuf;
+            } else {
+                System.arraycopy(buf, pos, buf, 0, limit - pos);
+            }
+            bufOffset += pos;
+            limit -= pos;
+            pos = 0;
+
+            while (limit < n) {
+                int r = read(buf, limit, buf.length - limit);
+                if (r <= 0)
+                    return false;
+                limit += r;
+            }
+            return true;
+        }
+
+        int read(byte b[], int off, int len) throws IOException
+        {
+            if (bcf == null)
+                return ins.read(b, off, len);
+
+            len = (int) Math.min(len, remaining);
+            if (len > 0) {
+                bcf.readFully(b, off, len);
+                remaining -= len;
+            }
+            return len;
+        }
+
+        String getChannel()
+        {
+            return new String(buf, pos + LogIndex.EVENT_HEADER_SIZE, channelLength);
+        }
+
+        int getInt(int p)
+        {
+            return ((buf[p]&0xff)<<24) | ((buf[p+1]&0xff)<<16) | ((buf[p+2]&0xff)<<8) | (buf[p+3]&0xff);
+        }
+
+        long getLong(int p)
+        {
+            return (((long) getInt(p))<<32) | (getInt(p+4)&0xffffffffL);
+        }
+
+        void putLong(int p, long v)
+        {
+            for (int i = 0; i < 8; i++)
+                buf[p+i] = (byte) (v >>> (56 - 8*i));
+        }
+
+        void close() throws IOException
+        {
+            if (ins != null)
+                ins.close();
+            if (bcf != null)
+                bcf.close();
+            if (index != null)
+                index.close();
+        }
+    }
+
+    static final Comparator<Input> UTIME_ORDER = new Comparator<Input>() {
+        public int compare(Input a, Input b)
+        {
+            if (a.utime != b.utime)
+                return a.utime < b.utime ? -1 : 1;
+            return a.order - b.order;
+        }
+    };
+
+    /** Add a log to be merged. **/
+    public void addInput(String path)
+    {
+        addInput(path, 0, 1);
+    }
+
+    /** Add the events of a log that start between fractions p0 and p1
+     * of its length, as with Log.seekPositionFraction().
+     **/
+    public void addInput(String path, double p0, double p1)
+    {
+        inputs.add(new Input(path, inputs.size(), p0, p1));
+    }
+
+    /** Keep only channels matching regex (null for all channels). **/
+    public void setInclude(String regex)
+    {
+        include = regex == null ? null : Pattern.compile(regex);
+        channelCache.clear();
+    }
+
+    /** Drop channels matching regex (null for none). **/
+    public void setExclude(String regex)
+    {
+        exclude = regex == null ? null : Pattern.compile(regex);
+        channelCache.clear();
+    }
+
+    /** Keep only events with start <= utime <= end. **/
+    public void setUtimeRange(long start, long end)
+    {
+        startUtime = start;
+        endUtime = end;
+        startSeconds = endSeconds = Double.NaN;
+    }
+
+    /** Keep only events between start and end seconds after the first
+     * event of the earliest input. Either may be NaN for no limit.
+     **/
+    public void setTimeRange(double start, double end)
+    {
+        startSeconds = start;
+        endSeconds = end;
+        startUtime = Long.MIN_VALUE;
+        endUtime = Long.MAX_VALUE;
+    }
+
+    /** If true (the default), events in the output are numbered from
+     * 0; otherwise they keep the inputs' event numbers.
+     **/
+    public void setRenumber(boolean renumber)
+    {
+        this.renumber = renumber;
+    }
+
+    boolean channelAccepted(String channel)
+    {
+        Boolean b = channelCache.get(channel);
+        if (b == null) {
+            b = (include == null || include.matcher(channel).matches()) &&
+                (exclude == null || !exclude.matcher(channel).matches());
+            channelCache.put(channel, b);
+        }
+        return b;
+    }
+
+    /** Write the merged events to outpath, returning the number of
+     * events written.
+     **/
+    public long run(String outpath) throws IOException
+    {
+        File outfile = new File(outpath);
+        for (Input in : inputs) {
+            if (new File(in.path).getCanonicalPath().equals(outfile.getCanonicalPath()))
+                throw new IOException("LogMerge: "+outpath+" is also an input");
+        }
+
+        eventsRead = eventsWritten = bytesWritten = bytesSkipped = 0;
+        PriorityQueue<Input> queue = new PriorityQueue<Input>(Math.max(1, inputs.size()), UTIME_ORDER);
+        OutputStream outs = null;
+
+        try {
+            for (Input in : inputs) {
+                in.open();
+                if (in.next())
+                    queue.add(in);
+            }
+
+            // times relative to the first event can only be resolved now
+            long start = startUtime, end = endUtime;
+            if (!queue.isEmpty()) {
+                long base = queue.peek().utime;
+                if (!Double.isNaN(startSeconds))
+                    start = base + (long) (startSeconds * 1.0E6);
+                if (!Double.isNaN(endSeconds))
+                    end = base + (long) (endSeconds * 1.0E6);
+            }
+
+            if (start != Long.MIN_VALUE) {
+                ArrayList<Input> seeked = new ArrayList<Input>(queue);
+                queue.clear();
+                for (Input in : seeked) {
+                    if (in.utime < start) {
+                        in.seekUtime(start);
+                        if (!in.next())
+                            continue;
+                    }
+                    queue.add(in);
+                }
+            }
+
+            outs = new BufferedOutputStream(new FileOutputStream(outfile), BUFFER_SIZE);
+            boolean filtering = include != null || exclude != null;
+
+            while (!queue.isEmpty()) {
+                Input in = queue.poll();
+
+                // stay with this input for as long as it is ahead of
+                // the others, which saves a trip through the queue
+                // for most events.
+                while (true) {
+                    eventsRead++;
+
+                    if (in.utime > end)
+                        break; // this input is finished
+
+                    if (in.utime >= start && (!filtering || channelAccepted(in.getChannel()))) {
+                        if (renumber)
+                            in.putLong(in.pos + 4, eventsWritten);
+                        outs.write(in.buf, in.pos, in.length);
+                        eventsWritten++;
+                        bytesWritten += in.length;
+                    }
+
+                    if (!in.next())
+                        break;
+
+                    Input head = queue.peek();
+                    if (head != null && UTIME_ORDER.compare(in, head) > 0) {
+                        queue.add(in);
+                        break;
+                    }
+                }
+            }
+        } finally {
+            for (Input in : inputs) {
+                bytesSkipped += in.skipped;
+                in.close();
+            }
+            if (outs != null)
+                outs.close();
+        }
+
+        return eventsWritten;
+    }
+
+    /** Number of events read by the last run(), including those that
+     * were filtered out.
+     **/
+    public long getNumEventsRead()
+    {
+        return eventsRead;
+    }
+
+    public long getNumEventsWritten()
+    {
+        return eventsWritten;
+    }
+
+    public long getNumBytesWritten()
+    {
+        return bytesWritten;
+    }
+
+    /** Number of bytes of corrupt data skipped by the last run(). **/
+    public long getNumBytesSkipped()
+    {
+        return bytesSkipped;
+    }
+
+    public static void main(String args[])
+    {
+        LogMerge merge = new LogMerge();
+        String outpath = null;
+        double start = Double.NaN, end = Double.NaN;
+        long startUtime = Long.MIN_VALUE, endUtime = Long.MAX_VALUE;
+        boolean absolute = false;
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-c") && i + 1 < args.length)
+                merge.setInclude(args[++i]);
+            else if (args[i].equals("-x") && i + 1 < args.length)
+                merge.setExclude(args[++i]);
+            else if (args[i].equals("-s") && i + 1 < args.length)
+                start = Double.parseDouble(args[++i]);
+            else if (args[i].equals("-e") && i + 1 < args.length)
+                end = Double.parseDouble(args[++i]);
+            else if (args[i].equals("-S") && i + 1 < args.length) {
+                startUtime = Long.parseLong(args[++i]);
+                absolute = true;
+            } else if (args[i].equals("-E") && i + 1 < args.length) {
+                endUtime = Long.parseLong(args[++i]);
+                absolute = true;
+            } else if (args[i].equals("-k"))
+                merge.setRenumber(false);
+            else if (args[i].equals("-o") && i + 1 < args.length)
+                outpath = args[++i];
+            else
+                merge.addInput(args[i]);
+        }
+
+        if (outpath == null || merge.inputs.isEmpty() || (absolute && !(Double.isNaN(start) && Double.isNaN(end)))) {
+            System.err.println("usage: lcm.logging.LogMerge [-c regex] [-x regex] [-s seconds] [-e seconds] [-S utime] [-E utime] [-k] -o output input...");
+            System.exit(1);
+        }
+
+        if (absolute)
+            merge.setUtimeRange(startUtime, endUtime);
+        else
+            merge.setTimeRange(start, end);
+
+        try {
+            long t0 = System.nanoTime();
+            merge.run(outpath);
+            double dt = (System.nanoTime() - t0) / 1.0E9;
+
+            long inlen = 0;
+            for (Input in : merge.inputs)
+                inlen += new File(in.path).length();
+
+            System.out.printf("%d input%s -> %s: %d/%d events, %.1f MB, %.2f s, %.1f MB/s read\n",
+                              merge.inputs.size(), merge.inputs.size() == 1 ? "" : "s", outpath,
+                              merge.getNumEventsWritten(), merge.getNumEventsRead(),
+                              merge.getNumBytesWritten() / 1.0E6, dt, inlen / 1.0E6 / dt);
+            if (merge.getNumBytesSkipped() > 0)
+                System.out.printf("skipped %d bytes of corrupt data\n", merge.getNumBytesSkipped());
+        } catch (IOException ex) {
+            System.out.println("ex: "+ex);
+        }
+    }
+}
@@ -58,6 +58,12 @@ public class LogPlayer extends JComponent
 
     double total_seconds; // an estimate of how many seconds there are in the file
 
+    /** Index of the current log, if one has been built (see LogIndex). **/
+    LogIndex index;
+
+    /** utime of the most recently played or sought-to event **/
+    volatile long currentUtime;
+
     BlockingQueue<QueuedEvent> events = new LinkedBlockingQueue<QueuedEvent>();
 
     Object sync = new Object();
@@ -145,6 +151,42 @@ public class LogPlayer extends JComponent
         }
     }
 
+    // seek by a relative amount of log time, preserving the current
+    // play/pause state. With an index this lands on the exact event;
+    // without one it is estimated from the file position.
+    class SeekTimeEvent implements QueuedEvent
+    {
+        double seconds;
+
+        public SeekTimeEvent(double seconds)
+        {
+            this.seconds = seconds;
+        }
+
+        public void execute(LogPlayer lp)
+        {
+            boolean player_was_running = (player != null);
+
+            if (player_was_running)
+                doStop();
+
+            if (index != null && index.getNumEvents() > 0) {
+                long i = index.findEventByUtime(currentUtime + (long) (seconds*1000000));
+                i = Math.min(i, index.getNumEvents() - 1);
+                doSeekOffset(index.getOffset(i));
+            } else {
+                try {
+                    doSeek(log.getPositionFraction() + seconds/total_seconds);
+                } catch (IOException ex) {
+                    System.out.println("exception: "+ex);
+                }
+            }
+
+            if (player_was_running)
+                doPlay();
+        }
+    }
+
     class StepEvent implements QueuedEvent
     {
         public void execute(LogPlayer lp)
@@ -385,19 +427,18 @@ public class LogPlayer extends JComponent
                 return;
 
             System.out.println("Exporting to "+outpath);
-            try {
-                Log inlog = new Log(log.getPath(), "r");
-                Log outlog = new Log(outpath, "rw");
+            StringBuilder channels = new StringBuilder();
+            for (Filter f : filterMap.values()) {
+                if (f.enabled)
+                    channels.append(channels.length() > 0 ? "|" : "").append(Pattern.quote(f.inchannel));
+            }
 
-                inlog.seekPositionFraction(p0);
-                while (inlog.getPositionFraction() < p1) {
-                    Log.Event e = inlog.readNext();
-                    Filter f = filterMap.get(e.channel);
-                    if (f != null && f.enabled)
-                        outlog.write(e);
-                }
-                inlog.close();
-                outlog.close();
+            try {
+                LogMerge merge = new LogMerge();
+                merge.addInput(log.getPath(), p0, p1);
+                merge.setInclude(channels.toString());
+                merge.setRenumber(false);
+                merge.run(outpath);
                 System.out.printf("Done!\n");
 
             } catch (IOException ex) {
@@ -445,12 +486,10 @@ public class LogPlayer extends JComponent
                         setSpeed(slowerSpeed(speed));
                     } else if (cmd.startsWith("BACK")) {
                         double seconds = Double.parseDouble(cmd.substring(4));
-                        double pos = log.getPositionFraction() - seconds/total_seconds;
-                        events.offer(new SeekEvent(pos));
+                        events.offer(new SeekTimeEvent(-seconds));
                     } else if (cmd.startsWith("FORWARD")) {
                         double seconds = Double.parseDouble(cmd.substring(7));
-                        double pos = log.getPositionFraction() + seconds/total_seconds;
-                        events.offer(new SeekEvent(pos));
+                        events.offer(new SeekTimeEvent(seconds));
                     } else {
                         System.out.println("Unknown remote command: "+cmd);
                     }
@@ -618,19 +657,32 @@ public class LogPlayer extends JComponent
         log = new Log(path, "r");
         logName.setText(new File(path).getName());
 
+        if (index != null)
+            index.close();
+
+        // use an index if one has been built (java lcm.logging.LogIndex);
+        // building one here would delay opening large logs.
+        index = LogIndex.load(path);
+
         try {
             Log.Event e = log.readNext();
             timeOffset = e.utime;
+            currentUtime = e.utime;
             playButton.setEnabled(true);
 
-            log.seekPositionFraction(.10);
-            Log.Event e10 = log.readNext();
+            if (index != null && index.getNumEvents() > 0) {
+                total_seconds = (index.getUtime(index.getNumEvents() - 1) - index.getUtime(0))/1000000.0;
+                System.out.printf("Total seconds: %f (indexed, %d events)\n", total_seconds, index.getNumEvents());
+            } else {
+                log.seekPositionFraction(.10);
+                Log.Event e10 = log.readNext();
 
-            log.seekPositionFraction(.90);
-            Log.Event e90 = log.readNext();
+                log.seekPositionFraction(.90);
+                Log.Event e90 = log.readNext();
 
-            total_seconds = (e90.utime - e10.utime)/1000000.0 / 0.8;
-            System.out.printf("Total seconds: %f\n", total_seconds);
+                total_seconds = (e90.utime - e10.utime)/1000000.0 / 0.8;
+                System.out.printf("Total seconds: %f\n", total_seconds);
+            }
 
             log.seekPositionFraction(0);
 
@@ -710,6 +762,26 @@ public class LogPlayer extends JComponent
             log.seekPositionFraction(ratio);
             js.set(log.getPositionFraction());
 
+            currentUtime = e.utime;
+            lastSystemTime = 0; // reset log-play statistics.
+            updateDisplay(e);
+        } catch (IOException ex) {
+            System.out.println("exception: "+ex);
+        }
+    }
+
+    // seek to the event starting at a byte offset (see LogIndex)
+    void doSeekOffset(long offset)
+    {
+        assert (player == null);
+
+        try {
+            log.seekPosition(offset);
+            Log.Event e = log.readNext();
+            log.seekPosition(offset);
+            js.set(log.getPositionFraction());
+
+            currentUtime = e.utime;
             lastSystemTime = 0; // reset log-play statistics.
             updateDisplay(e);
         } catch (IOException ex) {
@@ -812,6 +884,7 @@ public class LogPlayer extends JComponent
                                       waitms);*/
 
                     last_e_utime = e.utime;
+                    currentUtime = e.utime;
 
                     try {
                         // We might have a very long wait, but
@@ -0,0 +1,349 @@
+package lcm.logging;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import lcm.util.*;
+import lcm.spy.*;
+
+/**
+ * Computes per-channel statistics for an LCM log file, scanning the
+ * file in parallel.
+ * <p>
+ * The log is memory mapped and split into byte ranges. Each range is
+ * scanned by a worker thread, which first resynchronizes on LOG_MAGIC
+ * (requiring two consecutive valid event headers, so that a magic
+ * number inside a message body is not mistaken for an event) and then
+ * processes every event that starts within its range. The per-range
+ * results are merged in file order, so inter-event gaps that span two
+ * ranges are still counted.
+ * <p>
+ * usage: java lcm.logging.LogStats [-j threads] [--no-types] logfile
+ */
+public class LogStats
+{
+    /** Gap histogram bucket upper bounds, in microseconds. Gaps below
+     * zero (timestamps going backwards) get a bucket of their own. **/
+    public static final long GAP_BUCKETS[] = { 100, 1000, 10000, 100000, 1000000, 10000000, Long.MAX_VALUE };
+    static final String GAP_LABELS[] = { "<0", "<100us", "<1ms", "<10ms", "<100ms", "<1s", "<10s", ">=10s" };
+
+    /** Don't bother splitting the log into ranges smaller than this. **/
+    static final long MIN_RANGE_SIZE = 4*1024*1024;
+
+    /** Statistics for one channel. **/
+    public static class ChannelStats
+    {
+        public final String channel;
+
+        public long nevents;
+        public long nbytes;
+        public long first_utime, last_utime;
+        public long min_gap = Long.MAX_VALUE, max_gap = Long.MIN_VALUE;
+
+        /** gap_histogram[0] counts negative gaps; gap_histogram[i+1]
+         * counts gaps below GAP_BUCKETS[i]. **/
+        public long gap_histogram[] = new long[GAP_BUCKETS.length + 1];
+
+        /** Number of events seen with each fingerprint. **/
+        public HashMap<Long, Long> fingerprints = new HashMap<Long, Long>();
+
+        public ChannelStats(String channel)
+        {
+            this.channel = channel;
+        }
+
+        void addEvent(long utime, int datalen, long fingerprint)
+        {
+            if (nevents == 0)
+                first_utime = utime;
+            else
+                addGap(utime - last_utime);
+
+            last_utime = utime;
+            nevents++;
+            nbytes += datalen;
+
+            Long n = fingerprints.get(fingerprint);
+            fingerprints.put(fingerprint, n == null ? 1 : n + 1);
+        }
+
+        void addGap(long gap)
+        {
+            min_gap = Math.min(min_gap, gap);
+            max_gap = Math.max(max_gap, gap);
+
+            if (gap < 0) {
+                gap_histogram[0]++;
+                return;
+            }
+
+            for (int i = 0; i < GAP_BUCKETS.length; i++) {
+                if (gap < GAP_BUCKETS[i]) {
+                    gap_histogram[i+1]++;
+                    return;
+                }
+            }
+        }
+
+        /** Append the statistics of a later part of the log. **/
+        void merge(ChannelStats cs)
+        {
+            if (cs.nevents == 0)
+                return;
+
+            if (nevents == 0)
+                first_utime = cs.first_utime;
+            else
+                addGap(cs.first_utime - last_utime);
+
+            last_utime = cs.last_utime;
+            nevents += cs.nevents;
+            nbytes += cs.nbytes;
+            min_gap = Math.min(min_gap, cs.min_gap);
+            max_gap = Math.max(max_gap, cs.max_gap);
+
+            for (int i = 0; i < gap_histogram.length; i++)
+                gap_histogram[i] += cs.gap_histogram[i];
+
+            for (Map.Entry<Long, Long> e : cs.fingerprints.entrySet()) {
+                Long n = fingerprints.get(e.getKey());
+                fingerprints.put(e.getKey(), n == null ? e.getValue() : n + e.getValue());
+            }
+        }
+
+        /** The most common fingerprint on this channel. **/
+        public long getFingerprint()
+        {
+            long best = 0, bestCount = -1;
+            for (Map.Entry<Long, Long> e : fingerprints.entrySet()) {
+                if (e.getValue() > bestCount) {
+                    best = e.getKey();
+                    bestCount = e.getValue();
+                }
+            }
+            return best;
+        }
+
+        /** Average rate in Hz over the channel's lifetime. **/
+        public double getRate()
+        {
+            if (nevents < 2 || last_utime == first_utime)
+                return 0;
+            return (nevents - 1) / ((last_utime - first_utime) / 1.0E6);
+        }
+    }
+
+    /** Scans one byte range of the log. **/
+    static class RangeScanner implements Callable<LinkedHashMap<String, ChannelStats>>
+    {
+        MappedFile log;
+        long start, end;
+
+        RangeScanner(MappedFile log, long start, long end)
+        {
+            this.log = log;
+            this.start = start;
+            this.end = end;
+        }
+
+        public LinkedHashMap<String, ChannelStats> call()
+        {
+            LinkedHashMap<String, ChannelStats> stats = new LinkedHashMap<String, ChannelStats>();
+            byte bchannel[] = new byte[LogIndex.MAX_CHANNEL_LENGTH];
+            long pos = resync(log, start, end);
+
+            while (pos < end) {
+                int eventlen = LogIndex.eventLength(log, pos);
+                if (eventlen < 0) {
+                    // corrupt data; find the next event
+                    pos = resync(log, pos + 1, end);
+                    continue;
+                }
+
+                long utime = log.getLong(pos + 12);
+                int channellen = log.getInt(pos + 20);
+                int datalen = log.getInt(pos + 24);
+
+                long data = pos + LogIndex.EVENT_HEADER_SIZE + channellen;
+                long fingerprint = datalen >= 8 ? log.getLong(data) : 0;
+
+                log.get(pos + LogIndex.EVENT_HEADER_SIZE, bchannel, 0, channellen);
+                String channel = new String(bchannel, 0, channellen);
+
+                ChannelStats cs = stats.get(channel);
+                if (cs == null) {
+                    cs = new ChannelStats(channel);
+                    stats.put(channel, cs);
+                }
+                cs.addEvent(utime, datalen, fingerprint);
+
+                pos += eventlen;
+            }
+
+            return stats;
+        }
+    }
+
+    /** Returns the offset of the first event that starts in
+     * [pos, end), or end if there is none. An event is only accepted
+     * if it is followed by another valid event or by the end of the
+     * file.
+     **/
+    static long resync(MappedFile log, long pos, long end)
+    {
+        for (; pos < end; pos++) {
+            int eventlen = LogIndex.eventLength(log, pos);
+            if (eventlen < 0)
+                continue;
+
+            long next = pos + eventlen;
+            if (next == log.length() || LogIndex.eventLength(log, next) >= 0)
+                return pos;
+        }
+        return end;
+    }
+
+    /** Scan a log using nthreads worker threads. Returns statistics
+     * per channel, in order of each channel's first appearance.
+     **/
+    public static LinkedHashMap<String, ChannelStats> scan(String path, int nthreads) throws IOException
+    {
+        if (BlockCompressedFile.isCompressed(path))
+            throw new IOException("LogStats: "+path+" is compressed; decompress it with LogCompress first");
+
+        MappedFile log = new MappedFile(path, LogIndex.MAX_EVENT_SIZE);
+        long length = log.length();
+
+        // several ranges per thread, so that a slow range doesn't
+        // leave the other threads idle.
+        long nranges = Math.max(1, Math.min(nthreads * 4L, length / MIN_RANGE_SIZE));
+
+        ExecutorService exec = Executors.newFixedThreadPool(nthreads, new ThreadFactory() {
+            public Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(r, "LogStats scanner");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        ArrayList<Future<LinkedHashMap<String, ChannelStats>>> futures =
+            new ArrayList<Future<LinkedHashMap<String, ChannelStats>>>();
+
+        for (long i = 0; i < nranges; i++)
+            futures.add(exec.submit(new RangeScanner(log, length * i / nranges, length * (i + 1) / nranges)));
+
+        LinkedHashMap<String, ChannelStats> stats = new LinkedHashMap<String, ChannelStats>();
+
+        try {
+            for (Future<LinkedHashMap<String, ChannelStats>> f : futures) {
+                for (ChannelStats part : f.get().values()) {
+                    ChannelStats cs = stats.get(part.channel);
+                    if (cs == null)
+                        stats.put(part.channel, part);
+                    else
+                        cs.merge(part);
+                }
+            }
+        } catch (InterruptedException ex) {
+            throw new InterruptedIOException();
+        } catch (ExecutionException ex) {
+            throw new IOException("LogStats: "+ex.getCause());
+        } finally {
+            exec.shutdownNow();
+            log.close();
+        }
+
+        return stats;
+    }
+
+    public static void main(String args[])
+    {
+        int nthreads = Runtime.getRuntime().availableProcessors();
+        boolean showTypes = true;
+        String path = null;
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-j") && i + 1 < args.length)
+                nthreads = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--no-types"))
+                showTypes = false;
+            else
+                path = args[i];
+        }
+
+        if (path == null || nthreads < 1) {
+            System.err.println("usage: lcm.logging.LogStats [-j threads] [--no-types] logfile");
+            System.exit(1);
+        }
+
+        try {
+            LCMTypeDatabase types = showTypes ? new LCMTypeDatabase() : null;
+
+            long t0 = System.nanoTime();
+            LinkedHashMap<String, ChannelStats> stats = scan(path, nthreads);
+            double dt = (System.nanoTime() - t0) / 1.0E9;
+
+            print(stats, types);
+
+            long length = new File(path).length();
+            System.out.printf("\nScanned %.1f MB in %.2f s (%.1f MB/s, %d threads)\n",
+                              length / 1.0E6, dt, length / 1.0E6 / dt, nthreads);
+        } catch (IOException ex) {
+            System.out.println("ex: "+ex);
+        }
+    }
+
+    static void print(LinkedHashMap<String, ChannelStats> stats, LCMTypeDatabase types)
+    {
+        ArrayList<String> channels = new ArrayList<String>(stats.keySet());
+        Collections.sort(channels);
+
+        System.out.printf("%-24s %-28s %10s %10s %12s %10s %10s %10s\n",
+                          "channel", "type", "events", "rate (Hz)", "bytes", "min gap", "avg gap", "max gap");
+
+        long nevents = 0, nbytes = 0;
+
+        for (String channel : channels) {
+            ChannelStats cs = stats.get(channel);
+            nevents += cs.nevents;
+            nbytes += cs.nbytes;
+
+            long fingerprint = cs.getFingerprint();
+            String type = String.format("%016x", fingerprint);
+            if (types != null) {
+                Class<?> cls = types.getClassByFingerprint(fingerprint);
+                if (cls != null)
+                    type = cls.getName();
+            }
+            if (cs.fingerprints.size() > 1)
+                type += " (+" + (cs.fingerprints.size() - 1) + ")";
+
+            if (cs.nevents > 1)
+                System.out.printf("%-24s %-28s %10d %10.2f %12d %8.3f s %8.3f s %8.3f s\n",
+                                  channel, type, cs.nevents, cs.getRate(), cs.nbytes,
+                                  cs.min_gap / 1.0E6,
+                                  (cs.last_utime - cs.first_utime) / 1.0E6 / (cs.nevents - 1),
+                                  cs.max_gap / 1.0E6);
+            else
+                System.out.printf("%-24s %-28s %10d %10s %12d\n",
+                                  channel, type, cs.nevents, "-", cs.nbytes);
+        }
+
+        System.out.printf("%-24s %-28s %10d %10s %12d\n", "total", "", nevents, "", nbytes);
+
+        System.out.printf("\n%-24s", "gap histogram");
+        for (String label : GAP_LABELS)
+            System.out.printf(" %8s", label);
+        System.out.printf("\n");
+
+        for (String channel : channels) {
+            ChannelStats cs = stats.get(channel);
+            System.out.printf("%-24s", channel);
+            for (long n : cs.gap_histogram)
+                System.out.printf(" %8d", n);
+            System.out.printf("\n");
+        }
+    }
+}
@@ -0,0 +1,418 @@
+package lcm.logging;
+
+import java.io.*;
+import java.text.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.regex.*;
+
+import lcm.lcm.*;
+
+/**
+ * A headless logger: records every message on the channels it
+ * subscribes to into LCM log files.
+ * <p>
+ * Messages are handed to an {@link AsyncLogWriter}, so the receive
+ * thread only copies each message into a queue and goes back to the
+ * socket; falling behind the network costs kernel buffer drops, which
+ * can't be counted, while falling behind the disk costs queue drops,
+ * which can. Channels may be selected with an include regex (the
+ * subscription) and an exclude regex.
+ * <p>
+ * Files are named PREFIX.00, PREFIX.01, ..., skipping names that
+ * already exist, and a new file is started when the current one
+ * reaches a size or age limit. The old file is closed (and synced) on
+ * a background thread.
+ * <p>
+ * usage: java lcm.logging.Logger [options] [prefix]
+ */
+public class Logger implements LCMSubscriber
+{
+    static final int MAX_CACHED_CHANNELS = 1024;
+
+    // enough for 64 MB of 1 KB messages; AsyncLogWriter's own default
+    // of 4096 holds only tens of milliseconds at gigabit rates.
+    static final int DEFAULT_MAX_EVENTS = 65536;
+
+    final String prefix;
+    final int maxEvents, maxBytes;
+
+    Pattern exclude;
+    ConcurrentHashMap<String, Boolean> excludeCache = new ConcurrentHashMap<String, Boolean>();
+
+    volatile long rotateBytes;    // 0: never
+    volatile long rotateInterval; // usecs, 0: never
+    volatile double fsyncInterval;
+
+    volatile AsyncLogWriter writer;
+    volatile long writerUtime;    // when the current file was started
+    int fileIndex;
+
+    // totals from files that have been closed
+    final AtomicLong closedWritten = new AtomicLong(), closedBytes = new AtomicLong(), closedDropped = new AtomicLong();
+    ArrayList<CloseThread> closing = new ArrayList<CloseThread>();
+
+    final AtomicLong nreceived = new AtomicLong(), nexcluded = new AtomicLong(), nerrors = new AtomicLong();
+    int nfiles;
+
+    volatile boolean closed;
+
+    /** Log to files named prefix.NN; if prefix is null, it is
+     * lcmlog-YYYY-MM-DD for the day each file is started.
+     **/
+    public Logger(String prefix) throws IOException
+    {
+        this(prefix, DEFAULT_MAX_EVENTS, AsyncLogWriter.DEFAULT_MAX_BYTES);
+    }
+
+    /** @param maxEvents, maxBytes see AsyncLogWriter. **/
+    public Logger(String prefix, int maxEvents, int maxBytes) throws IOException
+    {
+        this.prefix = prefix;
+        this.maxEvents = maxEvents;
+        this.maxBytes = maxBytes;
+
+        writer = open(now());
+    }
+
+    /** Don't log channels matching regex (in full); null logs every
+     * channel that is subscribed to.
+     **/
+    public void setExclude(String regex)
+    {
+        exclude = (regex == null) ? null : Pattern.compile(regex);
+        excludeCache = new ConcurrentHashMap<String, Boolean>();
+    }
+
+    /** Start a new file once this many bytes have been logged to the
+     * current one; zero (the default) means never.
+     **/
+    public void setRotateSize(long bytes)
+    {
+        rotateBytes = bytes;
+    }
+
+    /** Start a new file when the current one is this old; zero (the
+     * default) means never.
+     **/
+    public void setRotateInterval(double seconds)
+    {
+        rotateInterval = (long) (seconds * 1E6);
+    }
+
+    /** See AsyncLogWriter.setFsyncInterval; applies from the next file. **/
+    public void setFsyncInterval(double seconds)
+    {
+        fsyncInterval = seconds;
+        writer.setFsyncInterval(seconds);
+    }
+
+    static long now()
+    {
+        return System.currentTimeMillis()*1000;
+    }
+
+    String nextPath()
+    {
+        String base = prefix;
+        if (base == null)
+            base = "lcmlog-" + new SimpleDateFormat("yyyy-MM-dd").format(new Date());
+
+        while (true) {
+            String path = String.format("%s.%02d", base, fileIndex++);
+            if (!new File(path).exists())
+                return path;
+        }
+    }
+
+    AsyncLogWriter open(long utime) throws IOException
+    {
+        AsyncLogWriter w = new AsyncLogWriter(nextPath(), maxEvents, maxBytes);
+        w.setFsyncInterval(fsyncInterval);
+        writerUtime = utime;
+        nfiles++;
+        return w;
+    }
+
+    boolean isExcluded(String channel)
+    {
+        Pattern p = exclude;
+        if (p == null)
+            return false;
+
+        Boolean b = excludeCache.get(channel);
+        if (b == null) {
+            b = p.matcher(channel).matches();
+            if (excludeCache.size() < MAX_CACHED_CHANNELS)
+                excludeCache.put(channel, b);
+        }
+        return b;
+    }
+
+    public void messageReceived(LCM lcm, String channel, LCMDataInputStream ins)
+    {
+        if (isExcluded(channel)) {
+            nexcluded.incrementAndGet();
+            return;
+        }
+
+        nreceived.incrementAndGet();
+        long utime = now();
+        int length = ins.available();
+
+        while (true) {
+            AsyncLogWriter w = writer;
+
+            if ((rotateBytes > 0 && w.getBytesWritten() + w.getQueuedBytes() >= rotateBytes) ||
+                (rotateInterval > 0 && utime - writerUtime >= rotateInterval)) {
+                rotate(w, utime);
+                continue;
+            }
+
+            try {
+                // a file being closed refuses the message; then retry.
+                if (w.write(utime, channel, ins.getBuffer(), ins.getBufferOffset(), length) || w == writer)
+                    return;
+            } catch (IOException ex) {
+                if (w != writer)
+                    continue; // rotated while we were writing; try the new file.
+                if (closed)
+                    return;
+
+                if (nerrors.getAndIncrement() == 0)
+                    System.err.println("Logger ex: "+ex);
+                return;
+            }
+        }
+    }
+
+    synchronized void rotate(AsyncLogWriter w, long utime)
+    {
+        if (closed || w != writer)
+            return; // someone else got here first
+
+        try {
+            writer = open(utime);
+        } catch (IOException ex) {
+            // keep writing to the current file rather than lose data.
+            System.err.println("Logger ex: "+ex);
+            writerUtime = utime;
+            return;
+        }
+
+        for (Iterator<CloseThread> it = closing.iterator(); it.hasNext(); ) {
+            if (!it.next().isAlive())
+                it.remove();
+        }
+
+        CloseThread t = new CloseThread(w);
+        closing.add(t);
+        t.start();
+    }
+
+    class CloseThread extends Thread
+    {
+        AsyncLogWriter w;
+
+        CloseThread(AsyncLogWriter w)
+        {
+            this.w = w;
+            setName("LCM Logger close "+w.getPath());
+        }
+
+        public void run()
+        {
+            try {
+                w.close();
+            } catch (IOException ex) {
+                System.err.println("Logger ex: "+ex);
+            }
+
+            closedWritten.addAndGet(w.getNumWritten());
+            closedBytes.addAndGet(w.getBytesWritten());
+            closedDropped.addAndGet(w.getNumDropped());
+        }
+    }
+
+    /** Stop logging, and write out and close every file. **/
+    public void close() throws IOException
+    {
+        ArrayList<CloseThread> threads;
+
+        synchronized(this) {
+            if (closed)
+                return;
+            closed = true;
+            threads = closing;
+            CloseThread t = new CloseThread(writer);
+            threads.add(t);
+            t.start();
+        }
+
+        for (CloseThread t : threads) {
+            try {
+                t.join();
+            } catch (InterruptedException ex) {
+            }
+        }
+    }
+
+    public String getPath()
+    {
+        return writer.getPath();
+    }
+
+    /** Number of files started, including the current one. **/
+    public synchronized int getNumFiles()
+    {
+        return nfiles;
+    }
+
+    /** Messages received for logging (not excluded). **/
+    public long getNumReceived()
+    {
+        return nreceived.get();
+    }
+
+    public long getNumExcluded()
+    {
+        return nexcluded.get();
+    }
+
+    /** Messages written to files so far. **/
+    public long getNumWritten()
+    {
+        return closedWritten.get() + (closed ? 0 : writer.getNumWritten());
+    }
+
+    public long getBytesWritten()
+    {
+        return closedBytes.get() + (closed ? 0 : writer.getBytesWritten());
+    }
+
+    /** Messages dropped because the queue was full, i.e. the disk
+     * could not keep up.
+     **/
+    public long getNumDropped()
+    {
+        return closedDropped.get() + (closed ? 0 : writer.getNumDropped());
+    }
+
+    /** Messages that could not be queued because of an I/O error. **/
+    public long getNumErrors()
+    {
+        return nerrors.get();
+    }
+
+    public long getQueueDepth()
+    {
+        return writer.getQueueDepth();
+    }
+
+    static void usage()
+    {
+        System.err.println("usage: lcm.logging.Logger [options] [prefix]");
+        System.err.println("");
+        System.err.println("Logs to prefix.00, prefix.01, ...; the default prefix is lcmlog-YYYY-MM-DD.");
+        System.err.println("");
+        System.err.println("  -l URL          LCM URL (default: $LCM_DEFAULT_URL or udpm)");
+        System.err.println("  -c REGEX        log channels matching REGEX (default .*)");
+        System.err.println("  -x REGEX        don't log channels matching REGEX");
+        System.err.println("  -s MB           start a new file every MB megabytes");
+        System.err.println("  -t SECONDS      start a new file every SECONDS seconds");
+        System.err.println("  -f SECONDS      fsync every SECONDS seconds (default: only when closing a file)");
+        System.err.println("  -q MB           queue up to MB megabytes before dropping (default 64)");
+        System.err.println("  -r SECONDS      print statistics every SECONDS seconds; 0 for never (default 10)");
+        System.exit(1);
+    }
+
+    public static void main(String args[])
+    {
+        String url = null, include = ".*", exclude = null, prefix = null;
+        double rotateMB = 0, rotateSeconds = 0, fsyncSeconds = 0, queueMB = AsyncLogWriter.DEFAULT_MAX_BYTES / 1.0E6;
+        double reportSeconds = 10;
+
+        for (int i = 0; i < args.length; i++) {
+            String a = args[i];
+            boolean hasArg = i + 1 < args.length;
+
+            if (a.equals("-l") && hasArg)
+                url = args[++i];
+            else if (a.equals("-c") && hasArg)
+                include = args[++i];
+            else if (a.equals("-x") && hasArg)
+                exclude = args[++i];
+            else if (a.equals("-s") && hasArg)
+                rotateMB = Double.parseDouble(args[++i]);
+            else if (a.equals("-t") && hasArg)
+                rotateSeconds = Double.parseDouble(args[++i]);
+            else if (a.equals("-f") && hasArg)
+                fsyncSeconds = Double.parseDouble(args[++i]);
+            else if (a.equals("-q") && hasArg)
+                queueMB = Double.parseDouble(args[++i]);
+            else if (a.equals("-r") && hasArg)
+                reportSeconds = Double.parseDouble(args[++i]);
+            else if (a.startsWith("-") || prefix != null)
+                usage();
+            else
+                prefix = a;
+        }
+
+        try {
+            int queueBytes = (int) (queueMB * 1.0E6);
+            final Logger logger = new Logger(prefix, Math.max(DEFAULT_MAX_EVENTS, queueBytes / 1024), queueBytes);
+            logger.setExclude(exclude);
+            logger.setRotateSize((long) (rotateMB * 1.0E6));
+            logger.setRotateInterval(rotateSeconds);
+            logger.setFsyncInterval(fsyncSeconds);
+
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                public void run()
+                {
+                    try {
+                        logger.close();
+                    } catch (IOException ex) {
+                        System.err.println("ex: "+ex);
+                    }
+                    logger.printStatistics();
+                }
+            });
+
+            LCM lcm = (url == null) ? new LCM() : new LCM(url);
+            lcm.subscribe(include, logger);
+
+            System.out.println("Logging to "+logger.getPath());
+
+            while (true) {
+                if (reportSeconds <= 0) {
+                    Thread.sleep(Long.MAX_VALUE);
+                    continue;
+                }
+                Thread.sleep((long) (reportSeconds * 1000));
+                logger.printStatistics();
+            }
+        } catch (IOException ex) {
+            System.err.println("ex: "+ex);
+            System.exit(1);
+        } catch (InterruptedException ex) {
+        }
+    }
+
+    long lastReportUtime, lastReportBytes;
+
+    synchronized void printStatistics()
+    {
+        long utime = now();
+        long bytes = getBytesWritten();
+        double rate = 0;
+        if (lastReportUtime != 0)
+            rate = (bytes - lastReportBytes) / ((utime - lastReportUtime) / 1.0E6);
+        lastReportUtime = utime;
+        lastReportBytes = bytes;
+
+        System.out.printf("%s: %d msgs written (%.1f MB/s), %d dropped, %d excluded, %d errors, queue %d\n",
+                          closed ? "closed" : getPath(), getNumWritten(), rate / 1.0E6,
+                          getNumDropped(), getNumExcluded(), getNumErrors(), closed ? 0 : getQueueDepth());
+    }
+}
@@ -0,0 +1,136 @@
+package lcm.logging;
+
+import java.io.*;
+import java.nio.*;
+
+import lcm.util.*;
+
+/**
+ * A read-only, random-access view of an LCM log file.
+ * <p>
+ * The log is memory mapped and its events are located through a
+ * {@link LogIndex}, so any event can be reached in constant time and
+ * a timestamp in logarithmic time, without reading the events before
+ * it. {@link #getData} returns the message body as a zero-copy view of
+ * the mapping; {@link #readEvent} copies it into a {@link Log.Event}
+ * for code written against {@link Log}.
+ * <p>
+ * Multiple threads may read from a MappedLog concurrently, except for
+ * the seekEvent()/readNext() cursor, which is synchronized.
+ */
+public class MappedLog
+{
+    MappedFile file;
+    LogIndex index;
+
+    // cursor used by readNext()
+    long next;
+
+    /** Open a log, building its index first if necessary. **/
+    public MappedLog(String path) throws IOException
+    {
+        this(path, LogIndex.open(path));
+    }
+
+    public MappedLog(String path, LogIndex index) throws IOException
+    {
+        this.index = index;
+        this.file = new MappedFile(path, LogIndex.MAX_EVENT_SIZE);
+    }
+
+    public LogIndex getIndex()
+    {
+        return index;
+    }
+
+    public long getNumEvents()
+    {
+        return index.getNumEvents();
+    }
+
+    public long getUtime(long i)
+    {
+        return index.getUtime(i);
+    }
+
+    public long getEventNumber(long i)
+    {
+        return index.getEventNumber(i);
+    }
+
+    public String getChannel(long i)
+    {
+        return index.getChannel(i);
+    }
+
+    /** Returns a read-only view of the message body of event i. The
+     * view shares memory with the mapping and is only valid until
+     * the log is closed.
+     **/
+    public ByteBuffer getData(long i)
+    {
+        return file.slice(dataOffset(i), index.getDataLength(i));
+    }
+
+    /** Copy event i into a new Log.Event. **/
+    public Log.Event readEvent(long i)
+    {
+        Log.Event e = new Log.Event();
+        e.utime = index.getUtime(i);
+        e.eventNumber = index.getEventNumber(i);
+        e.channel = index.getChannel(i);
+        e.data = new byte[index.getDataLength(i)];
+        file.get(dataOffset(i), e.data, 0, e.data.length);
+        return e;
+    }
+
+    long dataOffset(long i)
+    {
+        long offset = index.getOffset(i);
+        int channellen = file.getInt(offset + 20);
+        return offset + LogIndex.EVENT_HEADER_SIZE + channellen;
+    }
+
+    /** See {@link LogIndex#findEventByUtime}. **/
+    public long findEventByUtime(long utime)
+    {
+        return index.findEventByUtime(utime);
+    }
+
+    /** See {@link LogIndex#findEventByNumber}. **/
+    public long findEventByNumber(long eventNumber)
+    {
+        return index.findEventByNumber(eventNumber);
+    }
+
+    /** Position the cursor so that readNext() returns event i. **/
+    public synchronized void seekEvent(long i)
+    {
+        next = Math.max(0, Math.min(i, index.getNumEvents()));
+    }
+
+    /** Index of the event readNext() will return. **/
+    public synchronized long getEventIndex()
+    {
+        return next;
+    }
+
+    /**
+     * Reads the event at the cursor and advances it.
+     *
+     * @throws java.io.EOFException if the end of the file has been reached.
+     */
+    public synchronized Log.Event readNext() throws IOException
+    {
+        if (next >= index.getNumEvents())
+            throw new EOFException();
+
+        return readEvent(next++);
+    }
+
+    public void close() throws IOException
+    {
+        file.close();
+        index.close();
+    }
+}
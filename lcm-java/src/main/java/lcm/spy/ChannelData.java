@@ -7,27 +7,30 @@ public class ChannelData
 {
     public String      name;
     public Class       cls;
+    public LCMTypeDatabase.Decoder decoder; // null if the type is unknown
     public long        fingerprint;   // lcm type fingerprint
     public int         row;
 
-    public long        nreceived;
-    public int         nerrors;
-    public long        last_utime;    // when was last message received?
+    /** Updated by the LCM thread(s) as messages arrive. **/
+    public final ChannelStatistics stats;
 
-    public long        min_interval;  // written periodically by HzThread
-    public long        max_interval;
-    public double      bandwidth;     // bytes per second
+    /** Written periodically by HzThread, for display. **/
+    public volatile ChannelStatistics.Snapshot snapshot;
+    public volatile ChannelStatistics.Snapshot period; // the last second
 
     public JInternalFrame viewerFrame;
     public ObjectPanel viewer;
 
+    public Object      last;         // last decoded object on this channel.
+    public long        last_decode_utime;
+
     // below: used by HzThread
-    public double      hz;
-    public long        hz_last_utime;
-    public long        hz_last_nreceived;
-    public long        hz_min_interval;
-    public long        hz_max_interval;
-    public long        hz_bytes;
-
-    public Object      last;         // last received object on this channel.
+    ChannelStatistics.Snapshot period_start;
+    int                ticks;
+
+    public ChannelData(String name)
+    {
+        this.name = name;
+        this.stats = new ChannelStatistics(name);
+    }
 }
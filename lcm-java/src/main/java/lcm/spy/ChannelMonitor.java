@@ -0,0 +1,138 @@
+package lcm.spy;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import lcm.lcm.*;
+
+/** lcm-spy's channel statistics without the GUI. Every period, prints
+ * what each channel did since the last report, as a table or as CSV
+ * for other tools to collect.
+ * <p>
+ * usage: java lcm.spy.ChannelMonitor [-l url] [-p seconds] [--csv] [--no-types]
+ **/
+public class ChannelMonitor implements LCMSubscriber
+{
+    final LCMTypeDatabase types;
+    final ConcurrentHashMap<String, Channel> channels = new ConcurrentHashMap<String, Channel>();
+
+    static class Channel
+    {
+        final ChannelStatistics stats;
+        volatile LCMTypeDatabase.Decoder decoder;
+        volatile long fingerprint;
+        ChannelStatistics.Snapshot last; // used by the reporting thread only
+
+        Channel(String name)
+        {
+            stats = new ChannelStatistics(name);
+        }
+    }
+
+    /** types may be null, in which case latencies aren't recorded. **/
+    public ChannelMonitor(LCMTypeDatabase types)
+    {
+        this.types = types;
+    }
+
+    public void messageReceived(LCM lcm, String channel, LCMDataInputStream ins)
+    {
+        Channel c = channels.get(channel);
+        if (c == null) {
+            Channel n = new Channel(channel);
+            c = channels.putIfAbsent(channel, n);
+            if (c == null)
+                c = n;
+        }
+
+        try {
+            long fingerprint = (ins.available() >= 8) ? ins.readLong() : -1;
+            ins.reset();
+
+            if (types != null && (c.decoder == null || fingerprint != c.fingerprint)) {
+                c.decoder = types.getDecoder(fingerprint);
+                c.fingerprint = fingerprint;
+            }
+
+            c.stats.record(System.nanoTime()/1000, ins, c.decoder);
+        } catch (IOException ex) {
+            c.stats.recordError();
+        }
+    }
+
+    /** Statistics for every channel seen so far, sorted by channel,
+     * covering the time since the previous call.
+     **/
+    public synchronized ArrayList<ChannelStatistics.Snapshot> report()
+    {
+        ArrayList<String> names = new ArrayList<String>(channels.keySet());
+        Collections.sort(names);
+
+        long utime = System.nanoTime()/1000;
+        ArrayList<ChannelStatistics.Snapshot> report = new ArrayList<ChannelStatistics.Snapshot>();
+        for (String name : names) {
+            Channel c = channels.get(name);
+            ChannelStatistics.Snapshot s = c.stats.snapshot(utime);
+            report.add(c.last == null ? s : s.since(c.last));
+            c.last = s;
+        }
+        return report;
+    }
+
+    static void usage()
+    {
+        System.err.println("usage: lcm.spy.ChannelMonitor [-l url] [-p seconds] [--csv] [--no-types]");
+        System.exit(1);
+    }
+
+    public static void main(String args[])
+    {
+        String url = null;
+        double period = 1.0;
+        boolean csv = false;
+        boolean useTypes = true;
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-l") && i + 1 < args.length)
+                url = args[++i];
+            else if (args[i].equals("-p") && i + 1 < args.length)
+                period = Double.parseDouble(args[++i]);
+            else if (args[i].equals("--csv"))
+                csv = true;
+            else if (args[i].equals("--no-types"))
+                useTypes = false;
+            else
+                usage();
+        }
+
+        if (period <= 0)
+            usage();
+
+        try {
+            ChannelMonitor monitor = new ChannelMonitor(useTypes ? new LCMTypeDatabase() : null);
+            LCM lcm = (url == null) ? new LCM() : new LCM(url);
+            lcm.subscribeAll(monitor);
+
+            if (csv)
+                System.out.println(ChannelStatistics.Snapshot.CSV_HEADER);
+
+            while (true) {
+                Thread.sleep((long) (period * 1000));
+
+                ArrayList<ChannelStatistics.Snapshot> report = monitor.report();
+                for (ChannelStatistics.Snapshot s : report) {
+                    if (csv)
+                        System.out.println(s.toCSV());
+                    else
+                        System.out.println(s);
+                }
+                if (!csv && report.size() > 0)
+                    System.out.println();
+            }
+        } catch (IOException ex) {
+            System.out.println("ex: "+ex);
+        } catch (InterruptedException ex) {
+        }
+    }
+}
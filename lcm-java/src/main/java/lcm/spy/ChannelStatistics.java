@@ -0,0 +1,221 @@
+package lcm.spy;
+
+import java.io.*;
+import java.util.concurrent.atomic.*;
+
+import lcm.lcm.*;
+import lcm.util.*;
+
+/** Message statistics for one channel, safe to update from receive
+ * threads while other threads read them, without locks.
+ * <p>
+ * Totals (messages, bytes, errors) are counters. The message and byte
+ * rates come from a sliding window of WINDOW microseconds, made of
+ * NSLOTS slots, so they can be read at any time rather than once per
+ * period. The gaps between messages and, when the caller can tell,
+ * the messages' latencies (wall clock, with millisecond resolution)
+ * go into {@link Histogram}s.
+ * <p>
+ * Readers take a {@link Snapshot}. The difference of two snapshots
+ * covers just the time between them, e.g. for periodic export.
+ * <p>
+ * Times are in microseconds on the caller's clock; Spy and
+ * ChannelMonitor use System.nanoTime()/1000.
+ **/
+public final class ChannelStatistics
+{
+    public static final long WINDOW = 1000000;
+    static final int NSLOTS = 10;
+    static final long SLOT = WINDOW / NSLOTS;
+
+    static final long NEVER = Long.MIN_VALUE;
+
+    /** Larger latencies from record(utime, ins, decoder) are ignored. **/
+    public static final long MAX_LATENCY = 60000000;
+
+    public final String channel;
+
+    final AtomicLong count = new AtomicLong();
+    final AtomicLong bytes = new AtomicLong();
+    final AtomicLong errors = new AtomicLong();
+
+    final AtomicLong firstUtime = new AtomicLong(NEVER);
+    final AtomicLong lastUtime = new AtomicLong(NEVER);
+
+    // NSLOTS x {slot number, messages, bytes}. A slot is reset by the
+    // first message to reach it in a new slot period; a message racing
+    // that reset may be lost from the rate, never from the totals.
+    final AtomicLongArray slots = new AtomicLongArray(3*NSLOTS);
+
+    final Histogram intervals = new Histogram();
+    final Histogram latencies = new Histogram();
+
+    public ChannelStatistics(String channel)
+    {
+        this.channel = channel;
+        for (int i = 0; i < NSLOTS; i++)
+            slots.set(3*i, NEVER);
+    }
+
+    /** Count a message of size bytes that arrived at utime. **/
+    public void record(long utime, int size)
+    {
+        count.incrementAndGet();
+        bytes.addAndGet(size);
+
+        firstUtime.compareAndSet(NEVER, utime);
+        long prev = lastUtime.getAndSet(utime);
+        if (prev != NEVER)
+            intervals.record(utime - prev);
+
+        long slot = Math.floorDiv(utime, SLOT);
+        int i = 3 * (int) Math.floorMod(slot, (long) NSLOTS);
+        long s = slots.get(i);
+        if (s != slot) {
+            if (s > slot)
+                return; // another thread's clock is ahead; too late for the window
+            if (slots.compareAndSet(i, s, slot)) {
+                slots.set(i+1, 0);
+                slots.set(i+2, 0);
+            }
+        }
+        slots.incrementAndGet(i+1);
+        slots.addAndGet(i+2, size);
+    }
+
+    /** Count a subscriber's message, and record its latency if its
+     * type starts with a utime (see LCMTypeDatabase.Decoder). decoder
+     * may be null. The stream is left where it was.
+     **/
+    public void record(long utime, LCMDataInputStream ins, LCMTypeDatabase.Decoder decoder) throws IOException
+    {
+        int size = ins.available();
+        record(utime, size);
+
+        if (decoder != null && decoder.hasUtime && size >= 16) {
+            long latency = System.currentTimeMillis()*1000 - decoder.readUtime(ins);
+            // anything else is probably not wall-clock time, e.g. a log being played back.
+            if (latency >= 0 && latency <= MAX_LATENCY)
+                recordLatency(latency);
+        }
+    }
+
+    /** Record how long a message took to arrive, if known. **/
+    public void recordLatency(long usecs)
+    {
+        latencies.record(usecs);
+    }
+
+    /** Count a message that could not be decoded. **/
+    public void recordError()
+    {
+        errors.incrementAndGet();
+    }
+
+    public long getCount()
+    {
+        return count.get();
+    }
+
+    public long getErrors()
+    {
+        return errors.get();
+    }
+
+    /** When the last message arrived, or Long.MIN_VALUE if none has. **/
+    public long getLastUtime()
+    {
+        return lastUtime.get();
+    }
+
+    public Snapshot snapshot(long utime)
+    {
+        long slot = Math.floorDiv(utime, SLOT);
+        long nmsgs = 0, nbytes = 0;
+        for (int i = 0; i < NSLOTS; i++) {
+            long s = slots.get(3*i);
+            if (s > slot - NSLOTS && s <= slot) {
+                nmsgs += slots.get(3*i+1);
+                nbytes += slots.get(3*i+2);
+            }
+        }
+
+        // the current slot is only partly over, and a new channel may
+        // not have been around for a whole window.
+        double dt = (NSLOTS - 1) * SLOT + Math.floorMod(utime, SLOT);
+        long first = firstUtime.get();
+        if (first != NEVER)
+            dt = Math.min(dt, utime - first);
+        dt = Math.max(dt, SLOT) / 1.0E6;
+
+        return new Snapshot(channel, utime, count.get(), bytes.get(), errors.get(),
+                            nmsgs / dt, nbytes / dt, intervals.copy(), latencies.copy());
+    }
+
+    /** The statistics of a channel at one time. **/
+    public static final class Snapshot
+    {
+        public final String channel;
+        public final long utime;
+
+        /** Totals, or for since(), the amounts in between. **/
+        public final long count, bytes, errors;
+
+        /** Messages and bytes per second over the last WINDOW. **/
+        public final double rate, bandwidth;
+
+        /** Gaps between messages, and latencies, in usecs. **/
+        public final Histogram intervals, latencies;
+
+        Snapshot(String channel, long utime, long count, long bytes, long errors,
+                 double rate, double bandwidth, Histogram intervals, Histogram latencies)
+        {
+            this.channel = channel;
+            this.utime = utime;
+            this.count = count;
+            this.bytes = bytes;
+            this.errors = errors;
+            this.rate = rate;
+            this.bandwidth = bandwidth;
+            this.intervals = intervals;
+            this.latencies = latencies;
+        }
+
+        /** What happened between prev, an earlier snapshot of the
+         * same channel, and this one. Rates are this snapshot's.
+         **/
+        public Snapshot since(Snapshot prev)
+        {
+            return new Snapshot(channel, utime, count - prev.count, bytes - prev.bytes, errors - prev.errors,
+                                rate, bandwidth, intervals.since(prev.intervals), latencies.since(prev.latencies));
+        }
+
+        /** Spread of the gaps between messages (usecs), or 0 if there
+         * were fewer than two gaps.
+         **/
+        public long getJitter()
+        {
+            if (intervals.getTotalCount() < 2)
+                return 0;
+            return intervals.getMax() - intervals.getMin();
+        }
+
+        public static final String CSV_HEADER =
+            "utime,channel,count,bytes,errors,hz,bytes_per_sec,interval_p50,interval_p99,jitter,latency_p50,latency_p99";
+
+        public String toCSV()
+        {
+            return String.format("%d,%s,%d,%d,%d,%.3f,%.1f,%d,%d,%d,%d,%d",
+                                 utime, channel, count, bytes, errors, rate, bandwidth,
+                                 intervals.getValueAtPercentile(50), intervals.getValueAtPercentile(99),
+                                 getJitter(),
+                                 latencies.getValueAtPercentile(50), latencies.getValueAtPercentile(99));
+        }
+
+        public String toString()
+        {
+            return String.format("%-24s %10d msgs %9.2f Hz %10.2f KB/s %9.2f ms jitter %6d errors",
+                                 channel, count, rate, bandwidth/1024.0, getJitter()/1000.0, errors);
+        }
+    }
+}
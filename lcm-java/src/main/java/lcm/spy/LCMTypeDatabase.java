@@ -17,6 +17,8 @@ import java.util.zip.*;
 import lcm.util.*;
 
 import java.lang.reflect.*;
+import java.lang.invoke.*;
+import java.util.concurrent.*;
 
 import lcm.lcm.*;
 
@@ -25,6 +27,71 @@ public class LCMTypeDatabase
 {
     HashMap<Long, Class> classes = new HashMap<Long, Class>();
 
+    // fingerprint -> decoder, filled in on first use
+    ConcurrentHashMap<Long, Decoder> decoders = new ConcurrentHashMap<Long, Decoder>();
+
+    /** Decodes messages of one LCM type through its DataInput
+     * constructor. The constructor is looked up once, rather than
+     * through reflection for every message.
+     **/
+    public static final class Decoder
+    {
+        static final MethodType DECODE_TYPE = MethodType.methodType(Object.class, DataInput.class);
+
+        public final Class<?> cls;
+        final MethodHandle ctor;
+
+        /** True if the type's first field is "int64_t utime", which
+         * by convention is when the message was created.
+         **/
+        public final boolean hasUtime;
+
+        Decoder(Class<?> cls) throws NoSuchMethodException, IllegalAccessException
+        {
+            this.cls = cls;
+            this.ctor = MethodHandles.publicLookup()
+                .findConstructor(cls, MethodType.methodType(void.class, DataInput.class))
+                .asType(DECODE_TYPE);
+
+            // lcm-gen declares fields in message order.
+            Field first = null;
+            for (Field f : cls.getDeclaredFields()) {
+                if (!Modifier.isStatic(f.getModifiers())) {
+                    first = f;
+                    break;
+                }
+            }
+            hasUtime = first != null && first.getName().equals("utime") && first.getType() == long.class;
+        }
+
+        /** The message's utime field, without decoding the rest of it;
+         * see hasUtime. The stream is left where it was.
+         **/
+        public long readUtime(LCMDataInputStream ins) throws IOException
+        {
+            int pos = ins.getBufferOffset();
+            ins.skipBytes(8);
+            long utime = ins.readLong();
+            ins.skipBytes(pos - ins.getBufferOffset());
+            return utime;
+        }
+
+        public Object decode(DataInput ins) throws IOException
+        {
+            try {
+                return (Object) ctor.invokeExact(ins);
+            } catch (IOException ex) {
+                throw ex;
+            } catch (RuntimeException ex) {
+                throw ex;
+            } catch (Error ex) {
+                throw ex;
+            } catch (Throwable ex) {
+                throw new IOException(ex);
+            }
+        }
+    }
+
     public LCMTypeDatabase()
     {
         ClassDiscoverer.findClasses(new MyClassVisitor());
@@ -58,4 +125,31 @@ public class LCMTypeDatabase
     {
         return classes.get(fingerprint);
     }
+
+    /** The decoder for a type, or null if the type is unknown or
+     * cannot be decoded.
+     **/
+    public Decoder getDecoder(long fingerprint)
+    {
+        Decoder d = decoders.get(fingerprint);
+        if (d != null)
+            return d;
+
+        Class<?> cls = getClassByFingerprint(fingerprint);
+        if (cls == null)
+            return null;
+
+        try {
+            d = new Decoder(cls);
+        } catch (NoSuchMethodException ex) {
+            System.out.println("Bad LCM Type? "+ex);
+            return null;
+        } catch (IllegalAccessException ex) {
+            System.out.println("Bad LCM Type? "+ex);
+            return null;
+        }
+
+        Decoder prev = decoders.putIfAbsent(fingerprint, d);
+        return prev == null ? d : prev;
+    }
 }
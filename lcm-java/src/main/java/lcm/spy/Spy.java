@@ -37,6 +37,10 @@ public class Spy
 
     JButton clearButton = new JButton("Clear");
 
+    // messages are only decoded for an open structure viewer, and no
+    // more often than this (usecs).
+    static final long DECODE_INTERVAL = 100000;
+
     public Spy(String lcmurl) throws IOException
     {
         jf = new JFrame("LCM Spy");
@@ -62,6 +66,7 @@ public class Spy
         tcm.getColumn(4).setMaxWidth(100);
         tcm.getColumn(5).setMaxWidth(100);
         tcm.getColumn(6).setMaxWidth(100);
+        tcm.getColumn(7).setMaxWidth(100);
 
         JInternalFrame jif = new JInternalFrame("Channels", true);
         jif.setLayout(new BorderLayout());
@@ -171,6 +176,7 @@ public class Spy
 
             cd.viewer = new ObjectPanel(cd.name);
             cd.viewer.setObject(cd.last);
+            cd.last_decode_utime = 0; // decode the next message
 
             //	cd.viewer = new ObjectViewer(cd.name, cd.cls, null);
             cd.viewerFrame.setLayout(new BorderLayout());
@@ -194,7 +200,7 @@ public class Spy
     {
         public int getColumnCount()
         {
-            return 8;
+            return 9;
         }
 
         public int getRowCount()
@@ -208,6 +214,9 @@ public class Spy
             if (cd == null)
                 return "";
 
+            ChannelStatistics.Snapshot snap = cd.snapshot;
+            ChannelStatistics.Snapshot period = cd.period;
+
             switch (col)
             {
                 case 0:
@@ -220,17 +229,21 @@ public class Spy
                     return s.substring(s.lastIndexOf('.')+1);
 
                 case 2:
-                    return ""+cd.nreceived;
+                    return ""+(snap == null ? 0 : snap.count);
                 case 3:
-                    return String.format("%6.2f", cd.hz);
+                    return String.format("%6.2f", snap == null ? 0 : snap.rate);
                 case 4:
-                    return String.format("%6.2f ms",1000.0/cd.hz); // cd.max_interval/1000.0);
+                    return String.format("%6.2f ms", snap == null ? 0 : 1000.0/snap.rate);
                 case 5:
-                    return String.format("%6.2f ms",(cd.max_interval - cd.min_interval)/1000.0);
+                    return String.format("%6.2f ms", period == null ? 0 : period.getJitter()/1000.0);
                 case 6:
-                    return String.format("%6.2f KB/s", (cd.bandwidth/1024.0));
+                    return String.format("%6.2f KB/s", snap == null ? 0 : snap.bandwidth/1024.0);
                 case 7:
-                    return ""+cd.nerrors;
+                    if (period == null || period.latencies.getTotalCount() == 0)
+                        return "-";
+                    return String.format("%6.2f ms", period.latencies.getValueAtPercentile(50)/1000.0);
+                case 8:
+                    return ""+(snap == null ? 0 : snap.errors);
             }
             return "???";
         }
@@ -254,6 +267,8 @@ public class Spy
                 case 6:
                     return "Bandwidth";
                 case 7:
+                    return "Latency";
+                case 8:
                     return "Undecodable";
             }
             return "???";
@@ -265,21 +280,16 @@ public class Spy
     {
         public void messageReceived(LCM lcm, String channel, LCMDataInputStream dins)
         {
-            Object o = null;
             ChannelData cd = channelMap.get(channel);
-            int msg_size = 0;
-
             try {
-                msg_size = dins.available();
+                int msg_size = dins.available();
                 long fingerprint = (msg_size >=8) ? dins.readLong() : -1;
                 dins.reset();
 
-                Class cls = handlers.getClassByFingerprint(fingerprint);
-
                 if (cd == null) {
-                    cd = new ChannelData();
-                    cd.name = channel;
-                    cd.cls = cls;
+                    cd = new ChannelData(channel);
+                    cd.decoder = handlers.getDecoder(fingerprint);
+                    cd.cls = (cd.decoder != null) ? cd.decoder.cls : null;
                     cd.fingerprint = fingerprint;
                     cd.row = channelList.size();
 
@@ -289,50 +299,50 @@ public class Spy
                         _channelTableModel.fireTableDataChanged();
                     }
 
-                } else {
-                    if (cls != null && cd.cls != null && !cd.cls.equals(cls)) {
+                } else if (fingerprint != cd.fingerprint) {
+                    LCMTypeDatabase.Decoder decoder = handlers.getDecoder(fingerprint);
+                    if (decoder != null && cd.decoder != null && decoder.cls != cd.decoder.cls) {
                         System.out.println("WARNING: Class changed for channel "+channel);
-                        cd.nerrors++;
+                        cd.stats.recordError();
                     }
+                    cd.decoder = decoder;
+                    cd.cls = (decoder != null) ? decoder.cls : null;
+                    cd.fingerprint = fingerprint;
                 }
 
                 long utime = utime_now();
-                long interval = utime - cd.last_utime;
-                cd.hz_min_interval = Math.min(cd.hz_min_interval, interval);
-                cd.hz_max_interval = Math.max(cd.hz_max_interval, interval);
-                cd.hz_bytes += msg_size;
-                cd.last_utime = utime;
+                cd.stats.record(utime, dins, cd.decoder);
 
-                cd.nreceived++;
+                if (cd.decoder == null) {
+                    cd.stats.recordError();
+                    return;
+                }
 
-                o = cd.cls.getConstructor(DataInput.class).newInstance(dins);
-                cd.last = o;
+                // everything above is cheap; decoding may not be.
+                if (cd.viewer == null || !cd.viewerFrame.isVisible())
+                    return;
+                if (utime - cd.last_decode_utime < DECODE_INTERVAL)
+                    return;
+                cd.last_decode_utime = utime;
 
-                if (cd.viewer != null)
-                    cd.viewer.setObject(o);
+                Object o = cd.decoder.decode(dins);
+                cd.last = o;
+                cd.viewer.setObject(o);
 
-            } catch (NullPointerException ex) {
-                cd.nerrors++;
             } catch (IOException ex) {
-                cd.nerrors++;
-                System.out.println("Spy.messageReceived ex: "+ex);
-            } catch (NoSuchMethodException ex) {
-                cd.nerrors++;
-                System.out.println("Spy.messageReceived ex: "+ex);
-            } catch (InstantiationException ex) {
-                cd.nerrors++;
-                System.out.println("Spy.messageReceived ex: "+ex);
-            } catch (IllegalAccessException ex) {
-                cd.nerrors++;
-                System.out.println("Spy.messageReceived ex: "+ex);
-            } catch (InvocationTargetException ex) {
-                cd.nerrors++;
-                // these are almost always spurious
-                //System.out.println("ex: "+ex+"..."+ex.getTargetException());
+                // usually a message that doesn't match its type
+                cd.stats.recordError();
+            } catch (RuntimeException ex) {
+                cd.stats.recordError();
             }
         }
     }
 
+    // the table is refreshed this often (ms); rates are always over
+    // the last second, jitter and latency cover the last second too.
+    static final int REFRESH_INTERVAL = 250;
+    static final int PERIOD_TICKS = 1000 / REFRESH_INTERVAL;
+
     class HzThread extends Thread
     {
         public HzThread()
@@ -350,19 +360,16 @@ public class Spy
                 {
                     for (ChannelData cd : channelList)
                     {
-                        long diff_recv = cd.nreceived - cd.hz_last_nreceived;
-                        cd.hz_last_nreceived = cd.nreceived;
-                        long dutime = utime - cd.hz_last_utime;
-                        cd.hz_last_utime = utime;
-
-                        cd.hz = diff_recv / (dutime/1000000.0);
-
-                        cd.min_interval = cd.hz_min_interval;
-                        cd.max_interval = cd.hz_max_interval;
-                        cd.hz_min_interval = 9999;
-                        cd.hz_max_interval = 0;
-                        cd.bandwidth = cd.hz_bytes / (dutime/1000000.0);
-                        cd.hz_bytes = 0;
+                        ChannelStatistics.Snapshot snap = cd.stats.snapshot(utime);
+                        cd.snapshot = snap;
+
+                        if (cd.period_start == null) {
+                            cd.period_start = snap;
+                        } else if (++cd.ticks >= PERIOD_TICKS) {
+                            cd.period = snap.since(cd.period_start);
+                            cd.period_start = snap;
+                            cd.ticks = 0;
+                        }
                     }
                 }
 
@@ -372,7 +379,7 @@ public class Spy
                     channelTable.setRowSelectionInterval(selrow, selrow);
 
                 try {
-                    Thread.sleep(1000);
+                    Thread.sleep(REFRESH_INTERVAL);
                 } catch (InterruptedException ex) {
                 }
             }
@@ -0,0 +1,358 @@
+package lcm.util;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.*;
+
+/** A file stored as a sequence of independently Deflate-compressed
+ * blocks, read and written through the BufferedRandomAccessFile
+ * interface. File positions refer to the uncompressed data.
+ *
+ * Each block plays the role of BufferedRandomAccessFile's buffer: a
+ * seek binary-searches the block index and inflates only the block
+ * containing the new position, so seeking costs at most one block
+ * regardless of file size.
+ *
+ * Files are written sequentially (they cannot be modified in place).
+ * The block index is appended when the file is closed; if it is
+ * missing, because the writer did not finish, the blocks are found by
+ * following their headers and any truncated block at the end is
+ * ignored.
+ *
+ * Layout:
+ * <pre>
+ *   header:  FILE_MAGIC (8), version (4), block size (4)
+ *   block:   uncompressed length (4), compressed length (4), deflate data
+ *   index:   for each block: file offset (8), uncompressed length (4)
+ *   trailer: number of blocks (4), index offset (8), TRAILER_MAGIC (8)
+ * </pre>
+ **/
+public class BlockCompressedFile extends BufferedRandomAccessFile
+{
+    public static final long FILE_MAGIC = 0x4c434d5a424c4b31L; // "LCMZBLK1"
+    static final long TRAILER_MAGIC = 0x4c434d5a49445831L;     // "LCMZIDX1"
+    static final int  VERSION = 1;
+    static final int  HEADER_SIZE = 16;
+    static final int  TRAILER_SIZE = 20;
+
+    public static final int DEFAULT_BLOCK_SIZE = 256*1024;
+
+    boolean writing;
+    int blockSize;
+
+    // block index
+    int  nblocks;
+    long blockFileOffset[] = new long[16];
+    long blockStart[] = new long[16]; // uncompressed offset
+    int  blockLength[] = new int[16]; // uncompressed length
+
+    int loadedBlock = -1;
+    byte cbuf[] = new byte[0];
+
+    Inflater inflater;
+    Deflater deflater;
+
+    /** Open a compressed file for reading. **/
+    public BlockCompressedFile(String path) throws IOException
+    {
+        super(new RandomAccessFile(path, "r"));
+
+        long rawLength = raf.length();
+        if (readHeader() != VERSION)
+            throw new IOException("BlockCompressedFile: unsupported version");
+
+        if (!readIndex(rawLength))
+            scanBlocks(rawLength);
+
+        int maxLength = blockSize;
+        for (int i = 0; i < nblocks; i++)
+            maxLength = Math.max(maxLength, blockLength[i]);
+        buffer = new byte[maxLength];
+
+        inflater = new Inflater();
+        fileLength = nblocks == 0 ? 0 : blockStart[nblocks - 1] + blockLength[nblocks - 1];
+        bufferOffset = 0;
+        bufferLength = 0;
+        bufferPosition = 0;
+    }
+
+    /** Create (or truncate) a compressed file for writing.
+     *
+     * @param blockSize uncompressed size of each block. Larger blocks
+     * compress better; smaller blocks make seeks cheaper.
+     * @param level Deflater compression level, 1 (fastest) to 9.
+     **/
+    public BlockCompressedFile(String path, int blockSize, int level) throws IOException
+    {
+        super(new RandomAccessFile(path, "rw"));
+
+        raf.setLength(0);
+        raf.writeLong(FILE_MAGIC);
+        raf.writeInt(VERSION);
+        raf.writeInt(blockSize);
+
+        this.writing = true;
+        this.blockSize = blockSize;
+        buffer = new byte[blockSize];
+        deflater = new Deflater(level);
+        bufferOffset = 0;
+        bufferLength = 0;
+        bufferPosition = 0;
+    }
+
+    /** Returns true if the file at path is a BlockCompressedFile. **/
+    public static boolean isCompressed(String path) throws IOException
+    {
+        RandomAccessFile f = new RandomAccessFile(path, "r");
+        try {
+            return f.length() >= HEADER_SIZE && f.readLong() == FILE_MAGIC;
+        } finally {
+            f.close();
+        }
+    }
+
+    int readHeader() throws IOException
+    {
+        raf.seek(0);
+        if (raf.length() < HEADER_SIZE || raf.readLong() != FILE_MAGIC)
+            throw new IOException("BlockCompressedFile: bad magic");
+        int version = raf.readInt();
+        blockSize = raf.readInt();
+        return version;
+    }
+
+    boolean readIndex(long rawLength) throws IOException
+    {
+        if (rawLength < HEADER_SIZE + TRAILER_SIZE)
+            return false;
+
+        raf.seek(rawLength - TRAILER_SIZE);
+        int n = raf.readInt();
+        long indexOffset = raf.readLong();
+        if (raf.readLong() != TRAILER_MAGIC || n < 0 ||
+            indexOffset + n*12L != rawLength - TRAILER_SIZE)
+            return false;
+
+        raf.seek(indexOffset);
+        DataInputStream ins = new DataInputStream(new BufferedInputStream(new FileInputStream(raf.getFD()), 65536));
+        for (int i = 0; i < n; i++) {
+            long offset = ins.readLong();
+            addBlock(offset, ins.readInt());
+        }
+        return true;
+    }
+
+    void scanBlocks(long rawLength) throws IOException
+    {
+        long pos = HEADER_SIZE;
+        while (pos + 8 <= rawLength) {
+            raf.seek(pos);
+            int ulen = raf.readInt();
+            int clen = raf.readInt();
+            if (ulen <= 0 || clen <= 0 || pos + 8 + clen > rawLength)
+                break;
+
+            addBlock(pos, ulen);
+            pos += 8 + clen;
+        }
+    }
+
+    void addBlock(long fileOffset, int length)
+    {
+        if (nblocks == blockStart.length) {
+            blockFileOffset = Arrays.copyOf(blockFileOffset, nblocks*2);
+            blockStart = Arrays.copyOf(blockStart, nblocks*2);
+            blockLength = Arrays.copyOf(blockLength, nblocks*2);
+        }
+
+        blockFileOffset[nblocks] = fileOffset;
+        blockStart[nblocks] = nblocks == 0 ? 0 : blockStart[nblocks-1] + blockLength[nblocks-1];
+        blockLength[nblocks] = length;
+        nblocks++;
+    }
+
+    /** Number of compressed blocks. **/
+    public int getNumBlocks()
+    {
+        return nblocks;
+    }
+
+    /** Size of the compressed file. **/
+    public long getCompressedLength() throws IOException
+    {
+        return raf.length();
+    }
+
+    public long length() throws IOException
+    {
+        return writing ? fileLength + bufferPosition : fileLength;
+    }
+
+    /** Makes the block containing seekOffset the current buffer. **/
+    void bufferSeek(long seekOffset) throws IOException
+    {
+        if (writing)
+            throw new IOException("BlockCompressedFile: cannot seek while writing");
+
+        if (loadedBlock >= 0 && seekOffset >= bufferOffset && seekOffset < bufferOffset + bufferLength) {
+            bufferPosition = (int) (seekOffset - bufferOffset);
+            return;
+        }
+
+        if (seekOffset >= fileLength) {
+            bufferOffset = fileLength;
+            bufferLength = 0;
+            bufferPosition = 0;
+            loadedBlock = -1;
+            return;
+        }
+
+        // last block starting at or before seekOffset
+        int lo = 0, hi = nblocks - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (blockStart[mid] <= seekOffset)
+                lo = mid;
+            else
+                hi = mid - 1;
+        }
+
+        loadBlock(lo);
+        bufferOffset = blockStart[lo];
+        bufferLength = blockLength[lo];
+        bufferPosition = (int) (seekOffset - bufferOffset);
+    }
+
+    void loadBlock(int b) throws IOException
+    {
+        loadedBlock = -1;
+
+        raf.seek(blockFileOffset[b]);
+        int ulen = raf.readInt();
+        int clen = raf.readInt();
+        if (cbuf.length < clen)
+            cbuf = new byte[clen];
+        raf.readFully(cbuf, 0, clen);
+
+        inflater.reset();
+        inflater.setInput(cbuf, 0, clen);
+        try {
+            int n = 0;
+            while (n < ulen && !inflater.finished()) {
+                int r = inflater.inflate(buffer, n, ulen - n);
+                if (r == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    break;
+                n += r;
+            }
+            if (n != ulen)
+                throw new IOException("BlockCompressedFile: short block "+b);
+        } catch (DataFormatException ex) {
+            throw new IOException("BlockCompressedFile: corrupt block "+b+": "+ex.getMessage());
+        }
+
+        loadedBlock = b;
+    }
+
+    public byte peek() throws IOException
+    {
+        if (bufferPosition >= bufferLength)
+            bufferSeek(bufferOffset + bufferPosition);
+        if (bufferPosition >= bufferLength)
+            throw new EOFException("EOF");
+        return buffer[bufferPosition];
+    }
+
+    public void write(byte v) throws IOException
+    {
+        if (!writing)
+            throw new IOException("BlockCompressedFile: opened for reading");
+
+        buffer[bufferPosition++] = v;
+        if (bufferPosition == buffer.length)
+            writeBlock();
+    }
+
+    public void write(byte src[], int offset, int writelen) throws IOException
+    {
+        if (!writing)
+            throw new IOException("BlockCompressedFile: opened for reading");
+
+        while (writelen > 0) {
+            int thiscopy = Math.min(writelen, buffer.length - bufferPosition);
+            System.arraycopy(src, offset, buffer, bufferPosition, thiscopy);
+            bufferPosition += thiscopy;
+            offset += thiscopy;
+            writelen -= thiscopy;
+
+            if (bufferPosition == buffer.length)
+                writeBlock();
+        }
+    }
+
+    /** Compress and write the data buffered so far as a block. **/
+    void writeBlock() throws IOException
+    {
+        if (bufferPosition == 0)
+            return;
+
+        deflater.reset();
+        deflater.setInput(buffer, 0, bufferPosition);
+        deflater.finish();
+
+        if (cbuf.length < blockSize + 1024)
+            cbuf = new byte[blockSize + 1024];
+
+        int clen = 0;
+        while (!deflater.finished()) {
+            if (clen == cbuf.length)
+                cbuf = Arrays.copyOf(cbuf, cbuf.length*2);
+            clen += deflater.deflate(cbuf, clen, cbuf.length - clen);
+        }
+
+        long pos = raf.getFilePointer();
+        raf.writeInt(bufferPosition);
+        raf.writeInt(clen);
+        raf.write(cbuf, 0, clen);
+
+        addBlock(pos, bufferPosition);
+        fileLength += bufferPosition;
+        bufferOffset += bufferPosition;
+        bufferPosition = 0;
+    }
+
+    /** When writing, compresses any buffered data into a (possibly
+     * short) block, so that it is on disk even if the file is never
+     * closed.
+     **/
+    public void flush() throws IOException
+    {
+        if (writing)
+            writeBlock();
+    }
+
+    public void close() throws IOException
+    {
+        if (writing) {
+            writeBlock();
+
+            long indexOffset = raf.getFilePointer();
+            DataOutputStream outs = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(raf.getFD()), 65536));
+            for (int i = 0; i < nblocks; i++) {
+                outs.writeLong(blockFileOffset[i]);
+                outs.writeInt(blockLength[i]);
+            }
+            outs.writeInt(nblocks);
+            outs.writeLong(indexOffset);
+            outs.writeLong(TRAILER_MAGIC);
+            outs.flush();
+
+            deflater.end();
+            writing = false;
+        }
+
+        if (inflater != null)
+            inflater.end();
+
+        raf.close();
+    }
+}
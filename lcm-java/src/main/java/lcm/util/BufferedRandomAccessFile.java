@@ -36,6 +36,14 @@ public class BufferedRandomAccessFile
         bufferSeek(0);
     }
 
+    /** For subclasses that manage the buffer themselves; they must
+     * initialize it before it is used.
+     **/
+    BufferedRandomAccessFile(RandomAccessFile raf)
+    {
+        this.raf = raf;
+    }
+
     public void close() throws IOException
     {
         flushBuffer();
@@ -0,0 +1,151 @@
+package lcm.util;
+
+import java.util.concurrent.atomic.*;
+
+/** A histogram of non-negative longs (typically microseconds) with
+ * bounded relative error, in the manner of HdrHistogram.
+ * <p>
+ * Values below 2^SUB_BITS are counted exactly. Above that, each
+ * power-of-two range is split into 2^(SUB_BITS-1) equal buckets, so a
+ * value is known to within about 3%. Values larger than MAX_VALUE
+ * are counted as MAX_VALUE. record() is lock-free and may be called
+ * from any number of threads; readers work on a copy().
+ **/
+public final class Histogram
+{
+    static final int SUB_BITS = 6;
+    static final int HALF = 1 << (SUB_BITS - 1);
+
+    /** The largest value that is recorded faithfully: 2^36 - 1, a
+     * little over 19 hours in microseconds. **/
+    public static final long MAX_VALUE = (1L << 36) - 1;
+
+    static final int NBUCKETS = index(MAX_VALUE) + 1;
+
+    final AtomicLongArray counts;
+
+    public Histogram()
+    {
+        counts = new AtomicLongArray(NBUCKETS);
+    }
+
+    Histogram(long c[])
+    {
+        counts = new AtomicLongArray(c);
+    }
+
+    static int index(long v)
+    {
+        if (v < 2*HALF)
+            return (int) v;
+
+        int shift = 63 - Long.numberOfLeadingZeros(v) - (SUB_BITS - 1);
+        return (shift + 1) * HALF + (int) (v >>> shift) - HALF;
+    }
+
+    /** Smallest value counted in bucket i. **/
+    static long lowestValue(int i)
+    {
+        if (i < 2*HALF)
+            return i;
+
+        int shift = i / HALF - 1;
+        return (long) (i % HALF + HALF) << shift;
+    }
+
+    /** Largest value counted in bucket i. **/
+    static long highestValue(int i)
+    {
+        return lowestValue(i + 1) - 1;
+    }
+
+    /** Count v once. Negative values are ignored. **/
+    public void record(long v)
+    {
+        if (v < 0)
+            return;
+        counts.incrementAndGet(index(Math.min(v, MAX_VALUE)));
+    }
+
+    /** A snapshot of the current counts. Counts recorded while the
+     * copy is being made may or may not be included.
+     **/
+    public Histogram copy()
+    {
+        long c[] = new long[NBUCKETS];
+        for (int i = 0; i < NBUCKETS; i++)
+            c[i] = counts.get(i);
+        return new Histogram(c);
+    }
+
+    /** The values counted here but not in prev, an earlier copy() of
+     * the same histogram.
+     **/
+    public Histogram since(Histogram prev)
+    {
+        long c[] = new long[NBUCKETS];
+        for (int i = 0; i < NBUCKETS; i++)
+            c[i] = counts.get(i) - prev.counts.get(i);
+        return new Histogram(c);
+    }
+
+    public long getTotalCount()
+    {
+        long n = 0;
+        for (int i = 0; i < NBUCKETS; i++)
+            n += counts.get(i);
+        return n;
+    }
+
+    /** Lower bound of the smallest value, or -1 if empty. **/
+    public long getMin()
+    {
+        for (int i = 0; i < NBUCKETS; i++)
+            if (counts.get(i) > 0)
+                return lowestValue(i);
+        return -1;
+    }
+
+    /** Upper bound of the largest value, or -1 if empty. **/
+    public long getMax()
+    {
+        for (int i = NBUCKETS - 1; i >= 0; i--)
+            if (counts.get(i) > 0)
+                return highestValue(i);
+        return -1;
+    }
+
+    /** Mean of the bucket midpoints, or 0 if empty. **/
+    public double getMean()
+    {
+        double sum = 0;
+        long n = 0;
+        for (int i = 0; i < NBUCKETS; i++) {
+            long c = counts.get(i);
+            if (c > 0) {
+                sum += c * ((lowestValue(i) + highestValue(i)) / 2.0);
+                n += c;
+            }
+        }
+        return n == 0 ? 0 : sum / n;
+    }
+
+    /** Upper bound of the value below which percentile (0-100) of
+     * the values fall, or -1 if empty.
+     **/
+    public long getValueAtPercentile(double percentile)
+    {
+        long total = getTotalCount();
+        if (total == 0)
+            return -1;
+
+        long target = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+        long n = 0;
+        for (int i = 0; i < NBUCKETS; i++) {
+            n += counts.get(i);
+            if (n >= target)
+                return highestValue(i);
+        }
+        return getMax();
+    }
+}
@@ -0,0 +1,104 @@
+package lcm.util;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/** Read-only memory mapping of a file of any size.
+ *
+ * A single MappedByteBuffer cannot exceed 2 GB, so the file is mapped
+ * as a series of 1 GB chunks. Each chunk's mapping extends 'overlap'
+ * bytes into the next chunk, so any record of at most 'overlap' bytes
+ * can be read from the chunk in which it starts without straddling
+ * two buffers.
+ **/
+public class MappedFile
+{
+    static final long CHUNK_SIZE = 1L << 30;
+
+    RandomAccessFile raf;
+    MappedByteBuffer chunks[];
+    long length;
+    long overlap;
+
+    public MappedFile(String path, long overlap) throws IOException
+    {
+        this(new File(path), overlap);
+    }
+
+    public MappedFile(File file, long overlap) throws IOException
+    {
+        if (overlap > Integer.MAX_VALUE - CHUNK_SIZE)
+            throw new IllegalArgumentException("MappedFile: overlap too large");
+
+        this.overlap = overlap;
+
+        raf = new RandomAccessFile(file, "r");
+        length = raf.length();
+
+        FileChannel fc = raf.getChannel();
+        int nchunks = (int) ((length + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        chunks = new MappedByteBuffer[nchunks];
+
+        for (int i = 0; i < nchunks; i++) {
+            long start = i * CHUNK_SIZE;
+            long size = Math.min(CHUNK_SIZE + overlap, length - start);
+            chunks[i] = fc.map(FileChannel.MapMode.READ_ONLY, start, size);
+        }
+    }
+
+    public long length()
+    {
+        return length;
+    }
+
+    /** The largest record that may be read with a single call. **/
+    public long getOverlap()
+    {
+        return overlap;
+    }
+
+    public byte get(long pos)
+    {
+        return chunks[(int) (pos / CHUNK_SIZE)].get((int) (pos % CHUNK_SIZE));
+    }
+
+    public int getInt(long pos)
+    {
+        return chunks[(int) (pos / CHUNK_SIZE)].getInt((int) (pos % CHUNK_SIZE));
+    }
+
+    public long getLong(long pos)
+    {
+        return chunks[(int) (pos / CHUNK_SIZE)].getLong((int) (pos % CHUNK_SIZE));
+    }
+
+    /** Copy len bytes starting at pos into b. **/
+    public void get(long pos, byte b[], int offset, int len)
+    {
+        ByteBuffer bb = chunks[(int) (pos / CHUNK_SIZE)].duplicate();
+        bb.position((int) (pos % CHUNK_SIZE));
+        bb.get(b, offset, len);
+    }
+
+    /** Returns a zero-copy, read-only view of len bytes starting at
+     * pos. len may not exceed the overlap given to the constructor.
+     **/
+    public ByteBuffer slice(long pos, int len)
+    {
+        ByteBuffer bb = chunks[(int) (pos / CHUNK_SIZE)].duplicate();
+        int p = (int) (pos % CHUNK_SIZE);
+        bb.limit(p + len);
+        bb.position(p);
+        return bb.slice().asReadOnlyBuffer();
+    }
+
+    /** Release the file handle. The mappings themselves are released
+     * when they are garbage collected.
+     **/
+    public void close() throws IOException
+    {
+        chunks = null;
+        raf.close();
+    }
+}
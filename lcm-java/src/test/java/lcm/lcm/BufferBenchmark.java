@@ -0,0 +1,140 @@
+package lcm.lcm;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+import lcm.logging.*;
+import lcm.util.*;
+
+/** Measures bytes allocated per message on the paths that can hand
+ * pooled buffers to subscribers:
+ *
+ *   - reading a log with Log.readNext() versus Log.readNext(Event, BufferPool)
+ *   - reassembling a fragmented udpm message and queueing it to an
+ *     AsyncSubscriber, which retains the buffer instead of copying it
+ *
+ * usage: BufferBenchmark [message size]
+ **/
+public class BufferBenchmark
+{
+    public static void main(String args[]) throws Exception
+    {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 640*480;
+
+        benchmarkLog(size);
+        benchmarkReassembly(size);
+    }
+
+    static void benchmarkLog(int size) throws IOException
+    {
+        File f = File.createTempFile("lcm-buffer-benchmark", ".log");
+        f.deleteOnExit();
+
+        Log out = new Log(f.getPath(), "rw");
+        for (int i = 0; i < 64; i++) {
+            Log.Event e = new Log.Event();
+            e.eventNumber = i;
+            e.utime = i;
+            e.channel = "CAMERA";
+            e.data = new byte[size];
+            out.write(e);
+        }
+        out.close();
+
+        final Log log = new Log(f.getPath(), "r");
+        final BufferPool pool = new BufferPool();
+        final Log.Event ev = new Log.Event();
+
+        Benchmark.run(String.format("Log.readNext() %d bytes", size), new Benchmark.Task() {
+            public void run() throws IOException
+            {
+                try {
+                    log.readNext();
+                } catch (EOFException ex) {
+                    log.seekPositionFraction(0);
+                }
+            }
+        });
+
+        Benchmark.run(String.format("Log.readNext(pool) %d bytes", size), new Benchmark.Task() {
+            public void run() throws IOException
+            {
+                try {
+                    log.readNext(ev, pool).release();
+                } catch (EOFException ex) {
+                    log.seekPositionFraction(0);
+                }
+            }
+        });
+
+        log.close();
+    }
+
+    static void benchmarkReassembly(int size) throws IOException
+    {
+        LCM lcm = new LCM(new ArrayList<Provider>());
+        lcm.subscribeAsync(".*", new LCMSubscriber() {
+            public void messageReceived(LCM lcm, String channel, LCMDataInputStream ins)
+            {
+            }
+        }, 16, AsyncSubscriber.Policy.BLOCK);
+
+        final FragmentReassembler reassembler = new FragmentReassembler(lcm, lcm.getBufferPool());
+        final SocketAddress from = new InetSocketAddress("127.0.0.1", 7667);
+        final ArrayList<byte[]> fragments = makeFragments("CAMERA", new byte[size]);
+        final int seq[] = new int[1];
+
+        Benchmark.run(String.format("reassemble+async %d bytes", size), new Benchmark.Task() {
+            public void run() throws IOException
+            {
+                seq[0]++;
+                for (byte frag[] : fragments) {
+                    // patch in a fresh sequence number
+                    UDPMulticastProvider.putInt(frag, 4, seq[0]);
+
+                    LCMDataInputStream ins = new LCMDataInputStream(frag);
+                    ins.readInt();
+                    reassembler.handleFragment(from, ins);
+                }
+            }
+        });
+
+        lcm.close();
+    }
+
+    /** Build LC03 fragments the way UDPMulticastProvider.publishEx does. **/
+    static ArrayList<byte[]> makeFragments(String channel, byte data[])
+    {
+        int threshold = UDPMulticastProvider.FRAGMENTATION_THRESHOLD;
+        int payload_size = channel.length() + data.length;
+        int nfragments = (payload_size + threshold - 1) / threshold;
+
+        ArrayList<byte[]> fragments = new ArrayList<byte[]>();
+        int fragment_offset = 0;
+
+        for (int frag_no = 0; frag_no < nfragments; frag_no++) {
+            LCMDataOutputStream outs = new LCMDataOutputStream(threshold + 1024);
+            outs.writeInt(UDPMulticastProvider.MAGIC_LONG);
+            outs.writeInt(0);
+            outs.writeInt(data.length);
+            outs.writeInt(fragment_offset);
+            outs.writeShort(frag_no);
+            outs.writeShort(nfragments);
+
+            int fraglen;
+            if (frag_no == 0) {
+                outs.writeStringZ(channel);
+                fraglen = threshold - (channel.length() + 1);
+            } else {
+                fraglen = Math.min(threshold, data.length - fragment_offset);
+            }
+            outs.write(data, fragment_offset, fraglen);
+            fragment_offset += fraglen;
+
+            fragments.add(outs.toByteArray());
+        }
+
+        return fragments;
+    }
+}
@@ -0,0 +1,176 @@
+package lcm.lcm;
+
+import java.io.*;
+
+import lcm.util.*;
+
+/** Measures decoding and encoding through LCMDataInputStream and
+ * LCMDataOutputStream for messages laid out like april.lcmtypes
+ * laser_t (1081 ranges and intensities), velodyne_t (one 1206-byte
+ * packet) and image_t (640x480 gray). The field-by-field code is what
+ * lcm-gen emits; laser_t is also run with the bulk array methods.
+ *
+ * (lcm-java cannot depend on april.lcmtypes, so the layouts are
+ * reproduced here.)
+ **/
+public class CodecBenchmark
+{
+    static final int NRANGES = 1081;
+    static final int VELODYNE_PACKET = 1206;
+    static final int WIDTH = 640, HEIGHT = 480;
+
+    static class Laser
+    {
+        long utime;
+        int nranges;
+        float ranges[];
+        int nintensities;
+        float intensities[];
+        float rad0, radstep;
+
+        void decode(DataInput ins) throws IOException
+        {
+            utime = ins.readLong();
+            nranges = ins.readInt();
+            ranges = new float[nranges];
+            for (int a = 0; a < nranges; a++)
+                ranges[a] = ins.readFloat();
+            nintensities = ins.readInt();
+            intensities = new float[nintensities];
+            for (int a = 0; a < nintensities; a++)
+                intensities[a] = ins.readFloat();
+            rad0 = ins.readFloat();
+            radstep = ins.readFloat();
+        }
+
+        void decodeBulk(DataInput ins) throws IOException
+        {
+            utime = ins.readLong();
+            nranges = ins.readInt();
+            ranges = new float[nranges];
+            LCMDataInputStream.readFloats(ins, ranges, 0, nranges);
+            nintensities = ins.readInt();
+            intensities = new float[nintensities];
+            LCMDataInputStream.readFloats(ins, intensities, 0, nintensities);
+            rad0 = ins.readFloat();
+            radstep = ins.readFloat();
+        }
+
+        void encode(DataOutput outs) throws IOException
+        {
+            outs.writeLong(utime);
+            outs.writeInt(nranges);
+            for (int a = 0; a < nranges; a++)
+                outs.writeFloat(ranges[a]);
+            outs.writeInt(nintensities);
+            for (int a = 0; a < nintensities; a++)
+                outs.writeFloat(intensities[a]);
+            outs.writeFloat(rad0);
+            outs.writeFloat(radstep);
+        }
+
+        void encodeBulk(DataOutput outs) throws IOException
+        {
+            outs.writeLong(utime);
+            outs.writeInt(nranges);
+            LCMDataOutputStream.writeFloats(outs, ranges, 0, nranges);
+            outs.writeInt(nintensities);
+            LCMDataOutputStream.writeFloats(outs, intensities, 0, nintensities);
+            outs.writeFloat(rad0);
+            outs.writeFloat(radstep);
+        }
+    }
+
+    public static void main(String args[]) throws Exception
+    {
+        final Laser laser = new Laser();
+        laser.nranges = laser.nintensities = NRANGES;
+        laser.ranges = new float[NRANGES];
+        laser.intensities = new float[NRANGES];
+        for (int i = 0; i < NRANGES; i++) {
+            laser.ranges[i] = 1 + i / 100.0f;
+            laser.intensities[i] = i;
+        }
+
+        final LCMDataOutputStream outs = new LCMDataOutputStream(16);
+        laser.encode(outs);
+        final byte laserBytes[] = outs.toByteArray();
+
+        outs.reset();
+        outs.writeLong(0);
+        outs.writeInt(VELODYNE_PACKET);
+        outs.write(new byte[VELODYNE_PACKET]);
+        final byte velodyneBytes[] = outs.toByteArray();
+
+        outs.reset();
+        outs.writeLong(0);
+        outs.writeShort(WIDTH);
+        outs.writeShort(HEIGHT);
+        outs.writeShort(WIDTH);
+        outs.writeInt(0);
+        outs.writeInt(WIDTH*HEIGHT);
+        outs.write(new byte[WIDTH*HEIGHT]);
+        final byte imageBytes[] = outs.toByteArray();
+
+        report(Benchmark.run("decode laser_t", new Benchmark.Task() {
+            public void run() throws IOException
+            {
+                new Laser().decode(new LCMDataInputStream(laserBytes));
+            }
+        }), laserBytes.length);
+
+        report(Benchmark.run("decode laser_t, bulk", new Benchmark.Task() {
+            public void run() throws IOException
+            {
+                new Laser().decodeBulk(new LCMDataInputStream(laserBytes));
+            }
+        }), laserBytes.length);
+
+        report(Benchmark.run("encode laser_t", new Benchmark.Task() {
+            public void run() throws IOException
+            {
+                outs.reset();
+                laser.encode(outs);
+            }
+        }), laserBytes.length);
+
+        report(Benchmark.run("encode laser_t, bulk", new Benchmark.Task() {
+            public void run() throws IOException
+            {
+                outs.reset();
+                laser.encodeBulk(outs);
+            }
+        }), laserBytes.length);
+
+        report(Benchmark.run("decode velodyne_t", new Benchmark.Task() {
+            public void run() throws IOException
+            {
+                LCMDataInputStream ins = new LCMDataInputStream(velodyneBytes);
+                ins.readLong();
+                int datalen = ins.readInt();
+                byte data[] = new byte[datalen];
+                ins.readFully(data, 0, datalen);
+            }
+        }), velodyneBytes.length);
+
+        report(Benchmark.run("decode image_t", new Benchmark.Task() {
+            public void run() throws IOException
+            {
+                LCMDataInputStream ins = new LCMDataInputStream(imageBytes);
+                ins.readLong();
+                ins.readShort();
+                ins.readShort();
+                ins.readShort();
+                ins.readInt();
+                int size = ins.readInt();
+                byte image[] = new byte[size];
+                ins.readFully(image, 0, size);
+            }
+        }), imageBytes.length);
+    }
+
+    static void report(Benchmark.Result r, int size)
+    {
+        System.out.printf("    %.1f MB/s\n", r.opsPerSecond() * size / 1.0E6);
+    }
+}
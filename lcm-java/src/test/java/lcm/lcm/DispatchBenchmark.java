@@ -0,0 +1,65 @@
+package lcm.lcm;
+
+import java.util.*;
+
+import lcm.util.*;
+
+/** Measures LCM.receiveMessage() dispatch throughput for 1 to 512
+ * channels, with each channel matched by a literal subscription, a
+ * prefix regex and a catch-all regex. The multi-threaded runs show
+ * whether concurrent providers contend on the dispatch path.
+ **/
+public class DispatchBenchmark
+{
+    static class CountingSubscriber implements LCMSubscriber
+    {
+        long count;
+
+        public void messageReceived(LCM lcm, String channel, LCMDataInputStream ins)
+        {
+            count += ins.available();
+        }
+    }
+
+    public static void main(String args[])
+    {
+        int nthreads[] = new int[] { 1, 4 };
+        int nchannels[] = new int[] { 1, 8, 64, 512 };
+
+        final byte data[] = new byte[256];
+
+        for (int nchan : nchannels) {
+            final LCM lcm = new LCM(new ArrayList<Provider>());
+            final String channels[] = new String[nchan];
+
+            for (int i = 0; i < nchan; i++) {
+                channels[i] = "CHANNEL_"+i;
+                lcm.subscribe(channels[i], new CountingSubscriber());
+            }
+            lcm.subscribe("CHANNEL_1.*", new CountingSubscriber());
+            lcm.subscribe(".*", new CountingSubscriber());
+
+            for (int nthr : nthreads) {
+                Benchmark.run(String.format("dispatch %d channels", nchan), nthr, new Benchmark.Task() {
+                    int idx;
+
+                    public void run()
+                    {
+                        idx = (idx + 1) % channels.length;
+                        lcm.receiveMessage(channels[idx], data, 0, data.length);
+                    }
+                });
+            }
+
+            // cost of a subscription change, which rebuilds the table.
+            final CountingSubscriber churn = new CountingSubscriber();
+            Benchmark.run(String.format("subscribe+unsubscribe %d channels", nchan), new Benchmark.Task() {
+                public void run()
+                {
+                    lcm.subscribe("CHANNEL_2.*", churn);
+                    lcm.unsubscribe("CHANNEL_2.*", churn);
+                }
+            });
+        }
+    }
+}
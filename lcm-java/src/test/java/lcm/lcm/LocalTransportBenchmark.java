@@ -0,0 +1,144 @@
+package lcm.lcm;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import lcm.util.*;
+
+/** Compares the same-host transports: memq:// (same JVM), shm://
+ * (memory-mapped ring) and udpm:// (multicast loopback). For each, two
+ * LCM instances are opened on the URL:
+ *
+ *   throughput: one publishes as fast as it can; reports publishes per
+ *               second and how many messages the other received.
+ *   latency:    ping-pong; the second instance answers each message
+ *               from the first. Reports the one-way latency (half the
+ *               round trip) at the median and 99th percentile.
+ *
+ * A latency run gives up after 100 lost messages.
+ *
+ * usage: LocalTransportBenchmark [url ...]
+ **/
+public class LocalTransportBenchmark
+{
+    static final int PINGS = 20000;
+    static final int MAX_LOST = 100;
+
+    public static void main(String args[]) throws Exception
+    {
+        String urls[] = args;
+        if (urls.length == 0) {
+            File dir = new File("/dev/shm").isDirectory() ? new File("/dev/shm") : null;
+            File ring = File.createTempFile("lcm-benchmark", ".shm", dir);
+            ring.deleteOnExit();
+
+            urls = new String[] { "memq://benchmark",
+                                  "shm://"+ring.getPath(),
+                                  "udpm://239.255.76.67:7667?ttl=0" };
+        }
+
+        int sizes[] = new int[] { 100, 64*1024 };
+
+        for (String url : urls) {
+            for (int size : sizes) {
+                throughput(url, size);
+                latency(url, size);
+            }
+        }
+
+        System.exit(0);
+    }
+
+    static void throughput(String url, int size) throws Exception
+    {
+        final LCM pub = new LCM(url);
+        LCM sub = new LCM(url);
+
+        final long received[] = new long[1];
+        sub.subscribe("BENCHMARK_CHANNEL", new LCMSubscriber() {
+            public void messageReceived(LCM lcm, String channel, LCMDataInputStream ins)
+            {
+                synchronized(received) {
+                    received[0]++;
+                }
+            }
+        });
+        Thread.sleep(100);
+
+        final byte data[] = new byte[size];
+        final long published[] = new long[1];
+
+        Benchmark.run(String.format("%s publish %d bytes", url.split("[:?]")[0], size), new Benchmark.Task() {
+            public void run() throws Exception
+            {
+                pub.publish("BENCHMARK_CHANNEL", data, 0, data.length);
+                published[0]++;
+            }
+        });
+
+        Thread.sleep(500);
+        synchronized(received) {
+            System.out.printf("    published %d, received %d (%.1f%%)\n", published[0], received[0],
+                              100.0 * received[0] / published[0]);
+        }
+
+        pub.close();
+        sub.close();
+    }
+
+    static void latency(String url, int size) throws Exception
+    {
+        LCM ping = new LCM(url);
+        LCM pong = new LCM(url);
+
+        final byte data[] = new byte[size];
+
+        pong.subscribe("BENCHMARK_PING", new LCMSubscriber() {
+            public void messageReceived(LCM lcm, String channel, LCMDataInputStream ins)
+            {
+                try {
+                    lcm.publish("BENCHMARK_PONG", data, 0, data.length);
+                } catch (IOException ex) {
+                    System.err.println("ex: "+ex);
+                }
+            }
+        });
+
+        final Semaphore replies = new Semaphore(0);
+        ping.subscribe("BENCHMARK_PONG", new LCMSubscriber() {
+            public void messageReceived(LCM lcm, String channel, LCMDataInputStream ins)
+            {
+                replies.release();
+            }
+        });
+        Thread.sleep(100);
+
+        long rtt[] = new long[PINGS];
+        int n = 0, lost = 0;
+
+        for (int i = 0; i < PINGS + PINGS/10 && lost < MAX_LOST; i++) {
+            long t0 = System.nanoTime();
+            ping.publish("BENCHMARK_PING", data, 0, data.length);
+            if (!replies.tryAcquire(20, TimeUnit.MILLISECONDS)) {
+                lost++;
+                Thread.sleep(20);
+                replies.drainPermits(); // a late reply
+                continue;
+            }
+            long dt = System.nanoTime() - t0;
+
+            // the first tenth is warm-up
+            if (i >= PINGS/10 && n < rtt.length)
+                rtt[n++] = dt;
+        }
+
+        Arrays.sort(rtt, 0, n);
+        System.out.printf("%-41s one-way latency: median %8.1f us, 99%% %8.1f us, %d lost\n",
+                          String.format("%s ping-pong %d bytes", url.split("[:?]")[0], size),
+                          n > 0 ? rtt[n/2] / 2000.0 : 0, n > 0 ? rtt[n*99/100] / 2000.0 : 0, lost);
+
+        ping.close();
+        pong.close();
+    }
+}
@@ -0,0 +1,188 @@
+package lcm.lcm;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import lcm.logging.*;
+
+/** Measures LogProcessor on a synthetic log of 8 sensor channels,
+ * against LogFileProvider playing as fast as possible (one thread).
+ * Each subscriber does a fixed amount of work per message (a checksum
+ * over the payload, repeated) and checks that messages on its channel,
+ * and within a group of channels, arrive in log order.
+ *
+ * On a machine with N cores, LogProcessor should approach N times the
+ * single-threaded rate once the work per message dominates.
+ *
+ * usage: LogProcessorBenchmark [events] [work per message]
+ **/
+public class LogProcessorBenchmark
+{
+    static final int NCHANNELS = 8;
+    static final int SIZE = 1000;
+
+    static AtomicLong disorder = new AtomicLong();
+    static volatile long sink;
+
+    /** Checks per-channel order (the channel's sequence number is at
+     * offset 0) and, optionally, group order (the log's sequence
+     * number is at offset 8).
+     **/
+    static class Subscriber implements LCMSubscriber
+    {
+        int work;
+        long lastSeq = -1;
+
+        Subscriber(int work)
+        {
+            this.work = work;
+        }
+
+        public void messageReceived(LCM lcm, String channel, LCMDataInputStream ins)
+        {
+            try {
+                long seq = ins.readLong();
+                if (seq != lastSeq + 1)
+                    disorder.incrementAndGet();
+                lastSeq = seq;
+                ins.readLong();
+
+                byte b[] = ins.getBuffer();
+                int off = ins.getBufferOffset(), len = ins.available();
+                long h = 0;
+                for (int w = 0; w < work; w++)
+                    for (int i = 0; i < len; i++)
+                        h = 31*h + b[off + i];
+                sink = h;
+            } catch (IOException ex) {
+                System.err.println("ex: "+ex);
+            }
+        }
+    }
+
+    /** All channels in the group must arrive in log order. **/
+    static class GroupChecker implements LCMSubscriber
+    {
+        long last = -1;
+
+        public void messageReceived(LCM lcm, String channel, LCMDataInputStream ins)
+        {
+            try {
+                ins.readLong();
+                long seq = ins.readLong();
+                if (seq <= last)
+                    disorder.incrementAndGet();
+                last = seq;
+            } catch (IOException ex) {
+                System.err.println("ex: "+ex);
+            }
+        }
+    }
+
+    public static void main(String args[]) throws Exception
+    {
+        int nevents = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int work = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+
+        File f = makeLog(nevents);
+        int ncpus = Runtime.getRuntime().availableProcessors();
+        System.out.printf("%d events, %d channels, %d cpus\n", nevents, NCHANNELS, ncpus);
+
+        for (int w : new int[] { 0, work }) {
+            for (int i = 0; i < 2; i++)
+                replay(f, nevents, w);
+            for (int nthreads : new int[] { 1, 2, 4, 8 }) {
+                process(f, nevents, w, nthreads, false);
+                process(f, nevents, w, nthreads, false);
+            }
+            process(f, nevents, w, 4, true);
+        }
+
+        f.delete();
+    }
+
+    static void replay(File f, int nevents, int work) throws Exception
+    {
+        LCM lcm = new LCM("file://"+f.getPath()+"?speed=0&delay=0.1");
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicInteger count = new AtomicInteger();
+        final long t0[] = new long[1];
+        final int n = nevents;
+
+        for (int i = 0; i < NCHANNELS; i++)
+            lcm.subscribe("SENSOR_"+i, new Subscriber(work));
+        lcm.subscribe(".*", new LCMSubscriber() {
+            public void messageReceived(LCM lcm, String channel, LCMDataInputStream ins)
+            {
+                int c = count.incrementAndGet();
+                if (c == 1)
+                    t0[0] = System.nanoTime();
+                if (c == n)
+                    done.countDown();
+            }
+        });
+
+        done.await();
+        report("LogFileProvider speed=0", work, nevents, t0[0]);
+        lcm.close();
+    }
+
+    static void process(File f, int nevents, int work, int nthreads, boolean grouped) throws Exception
+    {
+        LogProcessor proc = new LogProcessor(f.getPath(), nthreads);
+        LCM lcm = proc.getLCM();
+        for (int i = 0; i < NCHANNELS; i++)
+            lcm.subscribe("SENSOR_"+i, new Subscriber(work));
+        if (grouped) {
+            proc.addGroup("SENSOR_[0-3]");
+            lcm.subscribe("SENSOR_[0-3]", new GroupChecker());
+        }
+
+        long t0 = System.nanoTime();
+        proc.run();
+        if (proc.getNumEvents() != nevents)
+            throw new RuntimeException("read "+proc.getNumEvents()+" of "+nevents+" events");
+        report("LogProcessor "+nthreads+" thread"+(nthreads == 1 ? "" : "s")+(grouped ? ", grouped" : ""),
+               work, nevents, t0);
+        lcm.close();
+    }
+
+    static void report(String name, int work, int nevents, long t0)
+    {
+        double dt = (System.nanoTime() - t0) / 1.0E9;
+        System.out.printf("%-36s work %d: %9.0f events/s, %6.1f MB/s, out of order %d\n",
+                          name, work, nevents / dt, nevents * (double) SIZE / 1.0E6 / dt, disorder.getAndSet(0));
+    }
+
+    static File makeLog(int nevents) throws IOException
+    {
+        File f = File.createTempFile("lcm-processor-benchmark", ".log");
+        f.deleteOnExit();
+
+        Log log = new Log(f.getPath(), "rw");
+        Log.Event e = new Log.Event();
+        e.data = new byte[SIZE];
+        new Random(0).nextBytes(e.data);
+        long seqs[] = new long[NCHANNELS];
+
+        for (int i = 0; i < nevents; i++) {
+            int ch = i % NCHANNELS;
+            e.utime = 1000000000L + i * 100;
+            e.eventNumber = i;
+            e.channel = "SENSOR_"+ch;
+            putLong(e.data, 0, seqs[ch]++);
+            putLong(e.data, 8, i);
+            log.write(e);
+        }
+        log.close();
+        return f;
+    }
+
+    static void putLong(byte b[], int off, long v)
+    {
+        for (int i = 0; i < 8; i++)
+            b[off+i] = (byte) (v >>> (56 - 8*i));
+    }
+}
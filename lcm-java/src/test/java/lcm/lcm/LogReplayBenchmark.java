@@ -0,0 +1,104 @@
+package lcm.lcm;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import lcm.logging.*;
+import lcm.util.*;
+
+/** Measures how accurately LogFileProvider replays a log in time.
+ * Synthetic logs of evenly spaced events are played at several speeds.
+ * Each event's arrival is compared with when it should have arrived,
+ * given the speed and the median offset of all arrivals from that
+ * schedule (so that a slow first event doesn't skew the rest). Also
+ * reports the rate when playing as fast as possible.
+ *
+ * usage: LogReplayBenchmark [directory]
+ **/
+public class LogReplayBenchmark
+{
+    static final int SIZE = 200;
+
+    public static void main(String args[]) throws Exception
+    {
+        File dir = new File(args.length > 0 ? args[0] : System.getProperty("java.io.tmpdir"));
+
+        File f = makeLog(dir, 1000, 2000);
+        play(f, 1000, 2000, 1.0);
+        play(f, 1000, 2000, 10.0);
+        f.delete();
+
+        f = makeLog(dir, 10000, 20000);
+        play(f, 10000, 20000, 1.0);
+        play(f, 10000, 20000, 4.0);
+        f.delete();
+
+        // long enough to get past warmup.
+        f = makeLog(dir, 10000, 500000);
+        for (int i = 0; i < 3; i++)
+            play(f, 10000, 500000, 0);
+        f.delete();
+    }
+
+    static File makeLog(File dir, int hz, long n) throws IOException
+    {
+        File f = File.createTempFile("lcm-replay-benchmark", ".log", dir);
+        f.deleteOnExit();
+
+        Log log = new Log(f.getPath(), "rw");
+        Log.Event e = new Log.Event();
+        e.channel = "REPLAY";
+        e.data = new byte[SIZE];
+
+        for (long i = 0; i < n; i++) {
+            e.utime = 1000000000L + i * 1000000 / hz;
+            log.write(e);
+        }
+        log.close();
+        return f;
+    }
+
+    static void play(File f, final int hz, final long nevents, final double speed) throws Exception
+    {
+        final long arrivals[] = new long[(int) nevents];
+        final CountDownLatch done = new CountDownLatch(1);
+
+        LCM lcm = new LCM("file://"+f.getPath()+"?speed="+speed+"&delay=0.1");
+
+        lcm.subscribe("REPLAY", new LCMSubscriber() {
+            int n;
+
+            public void messageReceived(LCM lcm, String channel, LCMDataInputStream ins)
+            {
+                arrivals[n] = System.nanoTime();
+                if (++n == nevents)
+                    done.countDown();
+            }
+        });
+
+        done.await();
+        double dt = (arrivals[(int) nevents - 1] - arrivals[0]) / 1.0E9;
+
+        if (speed > 0) {
+            long offsets[] = new long[(int) nevents];
+            for (int i = 0; i < nevents; i++)
+                offsets[i] = arrivals[i] - arrivals[0] - (long) (i * 1.0E9 / hz / speed);
+            long sorted[] = offsets.clone();
+            Arrays.sort(sorted);
+            long median = sorted[sorted.length / 2];
+
+            Histogram error = new Histogram();
+            for (long o : offsets)
+                error.record(Math.abs(o - median) / 1000);
+
+            System.out.printf("%6d Hz log at %4.1fx: |error| p50 %5d us, p99 %6d us, max %6d us; took %.4f s for %.4f s\n",
+                              hz, speed, error.getValueAtPercentile(50), error.getValueAtPercentile(99), error.getMax(),
+                              dt, (nevents - 1) / (double) hz / speed);
+        } else {
+            System.out.printf("%6d Hz log as fast as possible: %.0f events/s\n", hz, (nevents - 1) / dt);
+        }
+
+        lcm.close();
+    }
+}
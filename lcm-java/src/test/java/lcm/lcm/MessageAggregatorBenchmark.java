@@ -0,0 +1,179 @@
+package lcm.lcm;
+
+import java.lang.management.*;
+import java.util.*;
+import java.util.concurrent.locks.*;
+
+import lcm.util.*;
+
+/** Measures MessageAggregator with a publisher at a fixed rate
+ * (default 10 kHz) over 8 channels, and 1 or 4 consumer threads that
+ * retrieve messages one at a time with getNextMessage() or in batches
+ * with drainTo(). Reports delivery latency and the CPU time each side
+ * spends per message. Then does the same with the publisher going as
+ * fast as it can, and measures a put and get with no waiting.
+ *
+ * usage: MessageAggregatorBenchmark [rate Hz] [seconds]
+ **/
+public class MessageAggregatorBenchmark
+{
+    static final int SIZE = 256;
+    static final int BATCH = 64;
+    static final int UNPACED_MESSAGES = 2000000;
+
+    static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    public static void main(String args[]) throws Exception
+    {
+        double rate = args.length > 0 ? Double.parseDouble(args[0]) : 10000;
+        double seconds = args.length > 1 ? Double.parseDouble(args[1]) : 5;
+
+        for (int nconsumers : new int[] { 1, 4 }) {
+            run(rate, seconds, nconsumers, false);
+            run(rate, seconds, nconsumers, true);
+        }
+
+        // with the publisher going flat out, consumers fall behind and
+        // batches fill up.
+        for (int nconsumers : new int[] { 1, 4 }) {
+            run(0, 0, nconsumers, false);
+            run(0, 0, nconsumers, true);
+        }
+
+        final MessageAggregator agg = new MessageAggregator();
+        final byte data[] = new byte[SIZE];
+        final ArrayList<MessageAggregator.Message> batch = new ArrayList<MessageAggregator.Message>();
+
+        Benchmark.run("put + getNextMessage(0)", new Benchmark.Task() {
+            public void run()
+            {
+                agg.messageReceived(null, "CHANNEL", new LCMDataInputStream(data));
+                agg.getNextMessage(0);
+            }
+        });
+
+        Benchmark.run("64 x put + drainTo(64)", new Benchmark.Task() {
+            public void run()
+            {
+                for (int i = 0; i < BATCH; i++)
+                    agg.messageReceived(null, "CHANNEL", new LCMDataInputStream(data));
+                batch.clear();
+                agg.drainTo(batch, BATCH);
+            }
+        });
+    }
+
+    static class Consumer extends Thread
+    {
+        MessageAggregator agg;
+        boolean batched;
+        Histogram latency; // usecs, shared by all consumers
+        long nreceived, cpuNanos;
+
+        Consumer(MessageAggregator agg, boolean batched, Histogram latency)
+        {
+            this.agg = agg;
+            this.batched = batched;
+            this.latency = latency;
+        }
+
+        public void run()
+        {
+            ArrayList<MessageAggregator.Message> batch = new ArrayList<MessageAggregator.Message>();
+
+            while (true) {
+                batch.clear();
+                if (batched)
+                    agg.drainTo(batch, BATCH, -1);
+                else
+                    batch.add(agg.getNextMessage());
+
+                long now = System.nanoTime();
+                for (MessageAggregator.Message m : batch) {
+                    if (m == null)
+                        continue; // interrupted, or lost a race for the message
+                    if (m.channel.equals("STOP")) {
+                        cpuNanos = threads.getCurrentThreadCpuTime();
+                        return;
+                    }
+                    latency.record((now - getLong(m.data)) / 1000);
+                    nreceived++;
+                }
+            }
+        }
+    }
+
+    static long getLong(byte b[])
+    {
+        long v = 0;
+        for (int i = 0; i < 8; i++)
+            v = (v << 8) | (b[i] & 0xff);
+        return v;
+    }
+
+    static void run(double rate, double seconds, int nconsumers, boolean batched) throws Exception
+    {
+        MessageAggregator agg = new MessageAggregator();
+        Histogram latency = new Histogram();
+
+        Consumer consumers[] = new Consumer[nconsumers];
+        for (int i = 0; i < nconsumers; i++) {
+            consumers[i] = new Consumer(agg, batched, latency);
+            consumers[i].start();
+        }
+
+        String channels[] = new String[8];
+        for (int i = 0; i < channels.length; i++)
+            channels[i] = "CHANNEL_"+i;
+
+        byte data[] = new byte[SIZE];
+        long period = rate > 0 ? (long) (1.0E9 / rate) : 0;
+        long n = rate > 0 ? (long) (rate * seconds) : UNPACED_MESSAGES;
+        long cpu0 = threads.getCurrentThreadCpuTime();
+        long t0 = System.nanoTime();
+
+        for (long i = 0; i < n; i++) {
+            // park rather than spin, to leave the CPU to the consumers.
+            long due = t0 + i * period;
+            long now = System.nanoTime();
+            if (due - now > 0) {
+                LockSupport.parkNanos(due - now);
+                now = System.nanoTime();
+            }
+
+            for (int j = 0; j < 8; j++)
+                data[j] = (byte) (now >>> (56 - 8*j));
+            agg.messageReceived(null, channels[(int) (i % channels.length)], new LCMDataInputStream(data));
+        }
+        long publishCpu = threads.getCurrentThreadCpuTime() - cpu0;
+
+        // one STOP at a time, so that each goes to a different consumer.
+        for (int i = 0; i < nconsumers; i++) {
+            while (agg.numMessagesAvailable() > 0)
+                Thread.sleep(1);
+            agg.messageReceived(null, "STOP", new LCMDataInputStream(data));
+        }
+
+        long nreceived = 0, consumerCpu = 0;
+        for (Consumer c : consumers) {
+            c.join();
+            nreceived += c.nreceived;
+            consumerCpu += c.cpuNanos;
+        }
+
+        if (rate <= 0) {
+            double dt = (System.nanoTime() - t0) / 1.0E9;
+            System.out.printf("unpaced, %d consumer%s, %-14s: %d/%d msgs, %.0f msgs/s; cpu/msg publish %5.0f ns, consume %5.0f ns\n",
+                              nconsumers, nconsumers == 1 ? " " : "s", batched ? "drainTo" : "getNextMessage",
+                              nreceived, n, n / dt, publishCpu / (double) n, consumerCpu / (double) n);
+            return;
+        }
+
+        System.out.printf("%5.0f Hz, %d consumer%s, %-14s: %d/%d msgs, latency p50 %4d us, p99 %5d us, max %6d us; "+
+                          "cpu/msg publish %5.0f ns, consume %5.0f ns\n",
+                          rate, nconsumers, nconsumers == 1 ? " " : "s",
+                          batched ? "drainTo" : "getNextMessage", nreceived, n,
+                          latency.getValueAtPercentile(50), latency.getValueAtPercentile(99), latency.getMax(),
+                          publishCpu / (double) n, consumerCpu / (double) n);
+    }
+}
@@ -0,0 +1,73 @@
+package lcm.lcm;
+
+import java.util.*;
+
+import lcm.util.*;
+
+/** Measures what LCMMetrics costs per message: dispatch through
+ * receiveMessage() and publishing to a memq provider, with metrics
+ * disabled and enabled. Then prints the counters, as they would be
+ * published.
+ **/
+public class MetricsBenchmark
+{
+    static class CountingSubscriber implements LCMSubscriber
+    {
+        long count;
+
+        public void messageReceived(LCM lcm, String channel, LCMDataInputStream ins)
+        {
+            count += ins.available();
+        }
+    }
+
+    public static void main(String args[]) throws Exception
+    {
+        final byte data[] = new byte[256];
+        final String channels[] = new String[8];
+        for (int i = 0; i < channels.length; i++)
+            channels[i] = "CHANNEL_"+i;
+
+        final LCM lcm = new LCM(new ArrayList<Provider>());
+        for (String channel : channels)
+            lcm.subscribe(channel, new CountingSubscriber());
+        lcm.subscribe(".*", new CountingSubscriber());
+
+        // memq delivers on its own thread; nobody subscribes to it
+        final LCM pub = new LCM("memq://");
+
+        for (boolean enabled : new boolean[] { false, true }) {
+            lcm.getMetrics().setEnabled(enabled);
+            pub.getMetrics().setEnabled(enabled);
+            String what = enabled ? "enabled" : "disabled";
+
+            Benchmark.run("dispatch, metrics "+what, new Benchmark.Task() {
+                int idx;
+
+                public void run()
+                {
+                    idx = (idx + 1) % channels.length;
+                    lcm.receiveMessage(channels[idx], data, 0, data.length);
+                }
+            });
+
+            Benchmark.run("publish, metrics "+what, new Benchmark.Task() {
+                int idx;
+
+                public void run() throws Exception
+                {
+                    idx = (idx + 1) % channels.length;
+                    pub.publish(channels[idx], data, 0, data.length);
+                }
+            });
+        }
+
+        for (Map.Entry<String, Long> e : lcm.getMetrics().getCounters().entrySet()) {
+            if (!e.getKey().startsWith("channel.") || e.getKey().startsWith("channel.CHANNEL_0."))
+                System.out.printf("%-50s %d\n", e.getKey(), e.getValue());
+        }
+
+        lcm.close();
+        pub.close();
+    }
+}
@@ -0,0 +1,34 @@
+package lcm.lcm;
+
+import lcm.util.*;
+
+/** Measures publish throughput and bytes allocated per publish on
+ * the udpm provider, for a small message and for a camera-sized
+ * message that must be fragmented. Traffic is sent with ttl=0 so it
+ * does not leave the host.
+ *
+ * usage: PublishBenchmark [udpm-url]
+ **/
+public class PublishBenchmark
+{
+    public static void main(String args[]) throws Exception
+    {
+        String url = args.length > 0 ? args[0] : "udpm://239.255.76.67:7667?ttl=0";
+        final UDPMulticastProvider udpm = new UDPMulticastProvider(null, new URLParser(url));
+
+        int sizes[] = new int[] { 100, 8000, 640*480 };
+
+        for (int size : sizes) {
+            final byte data[] = new byte[size];
+
+            Benchmark.run(String.format("udpm publish %d bytes", size), new Benchmark.Task() {
+                public void run()
+                {
+                    udpm.publish("BENCHMARK_CHANNEL", data, 0, data.length);
+                }
+            });
+        }
+
+        udpm.close();
+    }
+}
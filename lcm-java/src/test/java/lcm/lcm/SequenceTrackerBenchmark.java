@@ -0,0 +1,76 @@
+package lcm.lcm;
+
+import java.net.*;
+import java.util.*;
+
+import lcm.util.*;
+
+/** Measures the cost of SequenceTracker.record() per received
+ * message, for one sender and for several interleaved senders, and
+ * checks its counts against a stream with known losses, reordering and
+ * duplicates.
+ **/
+public class SequenceTrackerBenchmark
+{
+    public static void main(String args[]) throws Exception
+    {
+        final String channels[] = new String[8];
+        for (int i = 0; i < channels.length; i++)
+            channels[i] = "CHANNEL_"+i;
+
+        for (final int nsenders : new int[] { 1, 16 }) {
+            final SequenceTracker tracker = new SequenceTracker();
+            final SocketAddress senders[] = new SocketAddress[nsenders];
+            for (int i = 0; i < nsenders; i++)
+                senders[i] = new InetSocketAddress("127.0.0.1", 40000 + i);
+
+            Benchmark.run(String.format("record(), %d senders", nsenders), new Benchmark.Task() {
+                int n;
+                int seqs[] = new int[nsenders];
+
+                public void run()
+                {
+                    int s = n % nsenders;
+                    tracker.record(senders[s], seqs[s]++, channels[n & 7]);
+                    n++;
+                }
+            });
+        }
+
+        check();
+    }
+
+    static void check()
+    {
+        SequenceTracker tracker = new SequenceTracker();
+        SocketAddress from = new InetSocketAddress("127.0.0.1", 40000);
+
+        // every 100th message lost, every 50th delayed by 3 messages,
+        // every 200th sent twice. Starts and ends with ones that arrive.
+        int n = 1000000, lost = 0, reordered = 0, duplicates = 0;
+        ArrayList<Integer> delayed = new ArrayList<Integer>();
+        for (int seq = 2; seq < n; seq++) {
+            if (seq % 100 == 1) {
+                lost++;
+            } else if (seq % 50 == 0) {
+                delayed.add(seq);
+                reordered++;
+            } else {
+                tracker.record(from, seq, "A");
+                if (seq % 200 == 3) {
+                    tracker.record(from, seq, "A");
+                    duplicates++;
+                }
+            }
+            if (!delayed.isEmpty() && seq - delayed.get(0) == 3)
+                tracker.record(from, delayed.remove(0), "A");
+        }
+
+        SequenceTracker.Sender s = tracker.getSenders().get(0);
+        System.out.println(s);
+        boolean ok = s.lost == lost && s.reordered == reordered && s.duplicates == duplicates &&
+            s.received == n - 2 - lost;
+        System.out.println(ok ? "counts match" : "COUNTS DIFFER: expected "+lost+" lost, "+
+                           reordered+" reordered, "+duplicates+" duplicates");
+    }
+}
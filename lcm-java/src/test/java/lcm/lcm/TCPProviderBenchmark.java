@@ -0,0 +1,67 @@
+package lcm.lcm;
+
+import lcm.util.*;
+
+/** Measures publish throughput over tcpq:// through a TCPService hub
+ * running in this process, with one subscriber, as when replaying a
+ * log as fast as possible. Afterwards checks that every message was
+ * delivered.
+ *
+ * usage: TCPProviderBenchmark
+ **/
+public class TCPProviderBenchmark
+{
+    public static void main(String args[]) throws Exception
+    {
+        TCPService service = new TCPService(0);
+        String url = "tcpq://127.0.0.1:"+service.getPort();
+
+        LCM sub = new LCM(url);
+        final LCM pub = new LCM(url);
+
+        final long received[] = new long[1];
+        sub.subscribe("BENCHMARK_CHANNEL", new LCMSubscriber() {
+            public void messageReceived(LCM lcm, String channel, LCMDataInputStream ins)
+            {
+                synchronized(received) {
+                    received[0]++;
+                }
+            }
+        });
+
+        // wait for both connections and the subscription to reach the hub
+        while (service.getNumClients() < 2)
+            Thread.sleep(10);
+        Thread.sleep(500);
+
+        int sizes[] = new int[] { 100, 1000, 64*1024 };
+        final long published[] = new long[1];
+
+        for (int size : sizes) {
+            final byte data[] = new byte[size];
+
+            Benchmark.run(String.format("tcpq publish %d bytes", size), new Benchmark.Task() {
+                public void run() throws Exception
+                {
+                    pub.publish("BENCHMARK_CHANNEL", data, 0, data.length);
+                    published[0]++;
+                }
+            });
+        }
+
+        // let the subscriber catch up
+        for (int i = 0; i < 100; i++) {
+            synchronized(received) {
+                if (received[0] == published[0])
+                    break;
+            }
+            Thread.sleep(100);
+        }
+
+        synchronized(received) {
+            System.out.printf("published %d, received %d\n", published[0], received[0]);
+        }
+
+        System.exit(0);
+    }
+}
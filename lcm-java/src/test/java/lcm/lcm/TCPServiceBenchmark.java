@@ -0,0 +1,182 @@
+package lcm.lcm;
+
+import java.io.*;
+import java.net.*;
+
+/** Load generator for TCPService. One publisher sends messages as
+ * fast as the hub accepts them while 1 to 64 subscribers receive them;
+ * reports messages per second delivered in total. Another run gives
+ * each subscriber hundreds of subscriptions to other channels, as on a
+ * busy hub. A final run adds a subscriber that never reads, to show
+ * how each Policy treats the other subscribers.
+ *
+ * usage: TCPServiceBenchmark [message size] [seconds]
+ **/
+public class TCPServiceBenchmark
+{
+    static final String CHANNEL = "BENCHMARK_CHANNEL";
+
+    public static void main(String args[]) throws Exception
+    {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        double seconds = args.length > 1 ? Double.parseDouble(args[1]) : 2.0;
+
+        int nclients[] = new int[] { 1, 4, 16, 64 };
+        for (int n : nclients)
+            run(TCPService.Policy.BLOCK, n, 0, false, size, seconds);
+
+        run(TCPService.Policy.BLOCK, 16, 500, false, size, seconds);
+
+        for (TCPService.Policy policy : TCPService.Policy.values())
+            run(policy, 8, 0, true, size, seconds);
+    }
+
+    static void run(TCPService.Policy policy, int nclients, int nother, boolean stalledClient,
+                    int size, double seconds) throws Exception
+    {
+        TCPService service = new TCPService(0, 1024*1024, policy);
+        int port = service.getPort();
+
+        Subscriber subs[] = new Subscriber[nclients];
+        for (int i = 0; i < nclients; i++) {
+            subs[i] = new Subscriber(port, nother);
+            subs[i].start();
+        }
+
+        Socket stalled = null;
+        if (stalledClient) {
+            stalled = connect(port);
+            DataOutputStream outs = new DataOutputStream(stalled.getOutputStream());
+            writeMessage(outs, TCPProvider.MESSAGE_TYPE_SUBSCRIBE, CHANNEL, null);
+            outs.flush();
+        }
+
+        // wait for the subscriptions to reach the hub
+        while (service.getNumClients() < nclients + (stalledClient ? 1 : 0))
+            Thread.sleep(10);
+        Thread.sleep(100);
+
+        Publisher pub = new Publisher(port, size);
+        pub.start();
+
+        Thread.sleep(200); // warm up
+        long received0 = 0;
+        for (Subscriber s : subs)
+            received0 += s.received;
+        long published0 = pub.published;
+        long t0 = System.nanoTime();
+
+        Thread.sleep((long) (seconds*1000));
+
+        long received1 = 0;
+        for (Subscriber s : subs)
+            received1 += s.received;
+        long published1 = pub.published;
+        double dt = (System.nanoTime() - t0) / 1.0E9;
+
+        System.out.printf("%-10s %2d clients%s %6d bytes: %10.1f msg/s published, %10.1f msg/s delivered, %d dropped, %d disconnected\n",
+                          policy, nclients, stalledClient ? " + stalled" : nother > 0 ? String.format(" x %3d subs", nother + 1) : "          ", size,
+                          (published1 - published0) / dt, (received1 - received0) / dt,
+                          service.getNumDropped(), service.getNumDisconnected());
+
+        pub.sock.close();
+        for (Subscriber s : subs)
+            s.sock.close();
+        if (stalled != null)
+            stalled.close();
+        service.close();
+    }
+
+    static Socket connect(int port) throws IOException
+    {
+        Socket sock = new Socket("127.0.0.1", port);
+        sock.setTcpNoDelay(true);
+        DataOutputStream outs = new DataOutputStream(sock.getOutputStream());
+        outs.writeInt(TCPProvider.MAGIC_CLIENT);
+        outs.writeInt(TCPProvider.VERSION);
+        outs.flush();
+
+        DataInputStream ins = new DataInputStream(sock.getInputStream());
+        if (ins.readInt() != TCPProvider.MAGIC_SERVER)
+            throw new IOException("bad server magic");
+        ins.readInt();
+        return sock;
+    }
+
+    static void writeMessage(DataOutputStream outs, int type, String channel, byte data[]) throws IOException
+    {
+        outs.writeInt(type);
+        outs.writeInt(channel.length());
+        outs.writeBytes(channel);
+        if (data != null) {
+            outs.writeInt(data.length);
+            outs.write(data);
+        }
+    }
+
+    static class Subscriber extends Thread
+    {
+        Socket sock;
+        volatile long received;
+
+        Subscriber(int port, int nother) throws IOException
+        {
+            sock = connect(port);
+            DataOutputStream outs = new DataOutputStream(sock.getOutputStream());
+
+            // subscriptions that never match; one in ten is a regex.
+            for (int i = 0; i < nother; i++)
+                writeMessage(outs, TCPProvider.MESSAGE_TYPE_SUBSCRIBE, i % 10 == 0 ? "OTHER_"+i+".*" : "OTHER_"+i, null);
+            writeMessage(outs, TCPProvider.MESSAGE_TYPE_SUBSCRIBE, CHANNEL, null);
+            outs.flush();
+            setDaemon(true);
+        }
+
+        public void run()
+        {
+            try {
+                DataInputStream ins = new DataInputStream(new BufferedInputStream(sock.getInputStream(), 65536));
+                byte buf[] = new byte[1024];
+                while (true) {
+                    ins.readInt();
+                    int channellen = ins.readInt();
+                    ins.readFully(buf, 0, channellen);
+                    int datalen = ins.readInt();
+                    if (buf.length < datalen)
+                        buf = new byte[datalen];
+                    ins.readFully(buf, 0, datalen);
+                    received++;
+                }
+            } catch (IOException ex) {
+            }
+        }
+    }
+
+    static class Publisher extends Thread
+    {
+        Socket sock;
+        byte data[];
+        volatile long published;
+
+        Publisher(int port, int size) throws IOException
+        {
+            sock = connect(port);
+            data = new byte[size];
+            setDaemon(true);
+        }
+
+        public void run()
+        {
+            try {
+                DataOutputStream outs = new DataOutputStream(new BufferedOutputStream(sock.getOutputStream(), 65536));
+                while (true) {
+                    writeMessage(outs, TCPProvider.MESSAGE_TYPE_PUBLISH, CHANNEL, data);
+                    published++;
+                    if ((published & 15) == 0)
+                        outs.flush();
+                }
+            } catch (IOException ex) {
+            }
+        }
+    }
+}
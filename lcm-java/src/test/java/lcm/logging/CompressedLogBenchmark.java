@@ -0,0 +1,141 @@
+package lcm.logging;
+
+import java.io.*;
+import java.util.*;
+
+import lcm.util.*;
+
+/** Compares plain and block-compressed logs: write rate, compression
+ * ratio, sequential read rate (Log.readNext) and the cost of a random
+ * seek followed by a read.
+ *
+ * Given a log file, its events are used (recorded data compresses very
+ * differently from synthetic data); otherwise a log of synthetic
+ * camera images and small pose messages is generated.
+ *
+ * usage: CompressedLogBenchmark [logfile] [level]
+ **/
+public class CompressedLogBenchmark
+{
+    public static void main(String args[]) throws Exception
+    {
+        ArrayList<Log.Event> events = args.length > 0 ? readEvents(args[0], 256*1024*1024) : makeEvents();
+        int level = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+
+        long nbytes = 0;
+        for (Log.Event e : events)
+            nbytes += e.data.length;
+        System.out.printf("%d events, %.1f MB\n", events.size(), nbytes / 1.0E6);
+
+        File plain = File.createTempFile("lcm-log-benchmark", ".log");
+        File compressed = File.createTempFile("lcm-log-benchmark", ".lcmz");
+        plain.deleteOnExit();
+        compressed.deleteOnExit();
+
+        double plainRate = write(new Log(plain.getPath(), "rw"), events);
+        double compressedRate = write(Log.createCompressed(compressed.getPath(), level), events);
+
+        System.out.printf("write plain       %10.1f MB/s\n", plainRate);
+        System.out.printf("write compressed  %10.1f MB/s (level %d)\n", compressedRate, level);
+        System.out.printf("size              %10.1f MB -> %.1f MB, ratio %.2f\n",
+                          plain.length() / 1.0E6, compressed.length() / 1.0E6,
+                          plain.length() / (double) compressed.length());
+
+        double meanSize = nbytes / (double) events.size();
+        benchmarkRead("plain", new Log(plain.getPath(), "r"), meanSize);
+        benchmarkRead("compressed", new Log(compressed.getPath(), "r"), meanSize);
+    }
+
+    static double write(Log log, ArrayList<Log.Event> events) throws IOException
+    {
+        long nbytes = 0;
+        long t0 = System.nanoTime();
+        for (Log.Event e : events) {
+            log.write(e);
+            nbytes += e.data.length;
+        }
+        log.close();
+        return nbytes / 1.0E6 / ((System.nanoTime() - t0) / 1.0E9);
+    }
+
+    static void benchmarkRead(String name, final Log log, double meanSize) throws IOException
+    {
+        Benchmark.Result r = Benchmark.run("readNext "+name, new Benchmark.Task() {
+            public void run() throws IOException
+            {
+                try {
+                    log.readNext();
+                } catch (EOFException ex) {
+                    log.seekPositionFraction(0);
+                }
+            }
+        });
+        System.out.printf("    %.1f MB/s\n", r.opsPerSecond() * meanSize / 1.0E6);
+
+        final Random rand = new Random(0);
+        Benchmark.run("seek+readNext "+name, new Benchmark.Task() {
+            public void run() throws IOException
+            {
+                log.seekPositionFraction(rand.nextDouble() * 0.99);
+                log.readNext();
+            }
+        });
+
+        log.close();
+    }
+
+    static ArrayList<Log.Event> readEvents(String path, long maxBytes) throws IOException
+    {
+        ArrayList<Log.Event> events = new ArrayList<Log.Event>();
+        Log log = new Log(path, "r");
+        long nbytes = 0;
+
+        try {
+            while (nbytes < maxBytes) {
+                Log.Event e = log.readNext();
+                events.add(e);
+                nbytes += e.data.length;
+            }
+        } catch (EOFException ex) {
+        }
+
+        log.close();
+        return events;
+    }
+
+    static ArrayList<Log.Event> makeEvents()
+    {
+        ArrayList<Log.Event> events = new ArrayList<Log.Event>();
+        Random rand = new Random(0);
+        int width = 640, height = 480;
+
+        for (int i = 0; i < 300; i++) {
+            // a smooth gradient with sensor noise, roughly like a
+            // grayscale camera image.
+            byte im[] = new byte[width*height];
+            for (int y = 0; y < height; y++)
+                for (int x = 0; x < width; x++)
+                    im[y*width+x] = (byte) ((x + y + i)/5 + rand.nextInt(4));
+            events.add(makeEvent(events.size(), i*33333L, "CAMERA", im));
+
+            for (int j = 0; j < 10; j++) {
+                byte pose[] = new byte[120];
+                rand.nextBytes(pose);
+                Arrays.fill(pose, 0, 64, (byte) 0);
+                events.add(makeEvent(events.size(), i*33333L + j*3333, "POSE", pose));
+            }
+        }
+
+        return events;
+    }
+
+    static Log.Event makeEvent(long eventNumber, long utime, String channel, byte data[])
+    {
+        Log.Event e = new Log.Event();
+        e.eventNumber = eventNumber;
+        e.utime = utime;
+        e.channel = channel;
+        e.data = data;
+        return e;
+    }
+}
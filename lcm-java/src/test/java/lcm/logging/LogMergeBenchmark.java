@@ -0,0 +1,155 @@
+package lcm.logging;
+
+import java.io.*;
+import java.util.*;
+
+/** Compares copying a log event by event with Log.readNext() and
+ * Log.write() (as LogPlayer's export used to) against LogMerge, then
+ * measures LogMerge merging several logs, and filtering and slicing
+ * one. Each output is read back and checked.
+ *
+ * The inputs are synthetic logs of large camera-like and small
+ * pose-like messages, with interleaved utimes as if recorded on
+ * different machines. The copy is also timed on a log of small
+ * messages only, where per-event costs dominate.
+ *
+ * usage: LogMergeBenchmark [ninputs] [MB per input]
+ **/
+public class LogMergeBenchmark
+{
+    public static void main(String args[]) throws Exception
+    {
+        int ninputs = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        int mb = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+
+        String inputs[] = new String[ninputs];
+        for (int i = 0; i < ninputs; i++)
+            inputs[i] = makeLog(i, mb*1000000L, true);
+        File out = File.createTempFile("lcm-merge-benchmark", ".log");
+        out.deleteOnExit();
+
+        copy(inputs[0], out.getPath());
+        copy(makeLog(ninputs, mb*1000000L / 4, false), out.getPath());
+
+        LogMerge merge = new LogMerge();
+        long total = 0, totalEvents = 0;
+        for (String path : inputs) {
+            merge.addInput(path);
+            total += new File(path).length();
+            totalEvents += count(path);
+        }
+        long t0 = System.nanoTime();
+        merge.run(out.getPath());
+        report("LogMerge merge "+ninputs, total, merge.getNumEventsWritten(), t0);
+        check(out.getPath(), totalEvents, null);
+
+        merge.setInclude("POSE.*");
+        merge.setTimeRange(1, 3);
+        t0 = System.nanoTime();
+        merge.run(out.getPath());
+        report("LogMerge POSE.*, 1-3 s", total, merge.getNumEventsWritten(), t0);
+        check(out.getPath(), merge.getNumEventsWritten(), "POSE");
+    }
+
+    static void copy(String inpath, String outpath) throws IOException
+    {
+        long inlen = new File(inpath).length();
+        long t0 = System.nanoTime();
+        Log inlog = new Log(inpath, "r");
+        Log outlog = new Log(outpath, "rw");
+        long nevents = 0;
+        try {
+            while (true) {
+                outlog.write(inlog.readNext());
+                nevents++;
+            }
+        } catch (EOFException ex) {
+        }
+        inlog.close();
+        outlog.close();
+        report("Log.readNext + write copy", inlen, nevents, t0);
+
+        LogMerge merge = new LogMerge();
+        merge.addInput(inpath);
+        t0 = System.nanoTime();
+        merge.run(outpath);
+        report("LogMerge copy", inlen, merge.getNumEventsWritten(), t0);
+        check(outpath, nevents, null);
+    }
+
+    static void report(String name, long nbytes, long nevents, long t0)
+    {
+        double dt = (System.nanoTime() - t0) / 1.0E9;
+        System.out.printf("%-30s: %8d events, %7.1f MB in %6.3f s, %7.1f MB/s\n",
+                          name, nevents, nbytes / 1.0E6, dt, nbytes / 1.0E6 / dt);
+    }
+
+    /** Count events with the log's index, which LogMerge then uses to
+     * find the start of a slice.
+     **/
+    static long count(String path) throws IOException
+    {
+        LogIndex.getIndexFile(path).deleteOnExit();
+        LogIndex index = LogIndex.open(path);
+        long n = index.getNumEvents();
+        index.close();
+        return n;
+    }
+
+    /** Check event count, numbering, utime order and channels. **/
+    static void check(String path, long nevents, String prefix) throws IOException
+    {
+        Log log = new Log(path, "r");
+        long n = 0, lastUtime = Long.MIN_VALUE;
+        try {
+            while (true) {
+                Log.Event e = log.readNext();
+                if (e.eventNumber != n || e.utime < lastUtime || (prefix != null && !e.channel.startsWith(prefix)))
+                    throw new RuntimeException("bad event "+n+": "+e.eventNumber+" "+e.utime+" "+e.channel);
+                lastUtime = e.utime;
+                n++;
+            }
+        } catch (EOFException ex) {
+        }
+        log.close();
+
+        if (n != nevents)
+            throw new RuntimeException("expected "+nevents+" events, got "+n);
+    }
+
+    /** A log of 100 KB camera images at 30 Hz (if images is true) and
+     * 200 byte poses at 100 Hz, with a clock offset per input.
+     **/
+    static String makeLog(int idx, long nbytes, boolean images) throws IOException
+    {
+        File f = File.createTempFile("lcm-merge-benchmark", ".log");
+        f.deleteOnExit();
+
+        Random rand = new Random(idx);
+        byte image[] = new byte[100000];
+        byte pose[] = new byte[200];
+        rand.nextBytes(image);
+        rand.nextBytes(pose);
+
+        Log log = new Log(f.getPath(), "rw");
+        long utime0 = 1000000000000000L + idx*1234;
+        long written = 0;
+        for (long i = 0; written < nbytes; i++) {
+            Log.Event e = new Log.Event();
+            e.eventNumber = i;
+            if (images && i % 13 < 3) {
+                e.utime = utime0 + i * 7692;
+                e.channel = "CAMERA_"+idx;
+                e.data = image;
+            } else {
+                e.utime = utime0 + i * 7692 + 100;
+                e.channel = "POSE_"+idx;
+                e.data = pose;
+            }
+            log.write(e);
+            written += e.data.length;
+        }
+        log.close();
+        return f.getPath();
+    }
+}
@@ -0,0 +1,64 @@
+package lcm.logging;
+
+import java.io.*;
+
+import lcm.util.*;
+
+/** Compares Log.write() with AsyncLogWriter for small and large
+ * events, from one and from four publishing threads. The async writer
+ * is measured in blocking mode, so that the reported rate is what the
+ * disk sustains rather than how fast events can be dropped.
+ *
+ * usage: LogWriterBenchmark [directory]
+ **/
+public class LogWriterBenchmark
+{
+    public static void main(String args[]) throws Exception
+    {
+        File dir = new File(args.length > 0 ? args[0] : System.getProperty("java.io.tmpdir"));
+
+        int sizes[] = new int[] { 100, 64*1024 };
+        int threads[] = new int[] { 1, 4 };
+
+        for (int size : sizes) {
+            final byte data[] = new byte[size];
+
+            for (int nthreads : threads) {
+                File f = File.createTempFile("lcm-log-benchmark", ".log", dir);
+                f.deleteOnExit();
+
+                final Log log = new Log(f.getPath(), "rw");
+                final Log.Event e = new Log.Event();
+                e.channel = "BENCHMARK_CHANNEL";
+                e.data = data;
+
+                Benchmark.run(String.format("Log.write %d bytes", size), nthreads, new Benchmark.Task() {
+                    public void run() throws IOException
+                    {
+                        log.write(e);
+                    }
+                });
+                log.close();
+                f.delete();
+
+                f = File.createTempFile("lcm-log-benchmark", ".log", dir);
+                f.deleteOnExit();
+
+                final AsyncLogWriter writer = new AsyncLogWriter(f.getPath());
+                writer.setBlocking(true);
+
+                Benchmark.run(String.format("AsyncLogWriter %d bytes", size), nthreads, new Benchmark.Task() {
+                    public void run() throws IOException
+                    {
+                        writer.write(0, "BENCHMARK_CHANNEL", data, 0, data.length);
+                    }
+                });
+                writer.close();
+
+                System.out.printf("    %d events in %d writes, max queue depth %d\n",
+                                  writer.getNumWritten(), writer.getNumBatches(), writer.getMaxQueueDepth());
+                f.delete();
+            }
+        }
+    }
+}
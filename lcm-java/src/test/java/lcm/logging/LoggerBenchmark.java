@@ -0,0 +1,150 @@
+package lcm.logging;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.locks.*;
+
+import lcm.lcm.*;
+
+/** Stress test for {@link Logger}: publishes synthetic traffic as fast
+ * as possible (or at a given rate) on a local LCM URL, logs it with
+ * rotation and an exclude filter, then reads the files back and checks
+ * that every message the logger received was written, in order.
+ * <p>
+ * Messages the logger never received were lost on the way (for udpm,
+ * in the kernel's receive buffer); messages it received but could not
+ * queue were dropped because the disk fell behind.
+ *
+ * usage: LoggerBenchmark [-l url] [-s size] [-r MB/s] [-t seconds] [-n channels] [-R rotate MB] [directory]
+ **/
+public class LoggerBenchmark
+{
+    static final String DEFAULT_URL = "udpm://239.255.76.67:7667?ttl=0&recv_buf_size=16777216";
+
+    public static void main(String args[]) throws Exception
+    {
+        String url = DEFAULT_URL;
+        int size = 1200;
+        double rateMB = 0, seconds = 5, rotateMB = 256;
+        int nchannels = 8;
+        File dir = new File(System.getProperty("java.io.tmpdir"));
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-l"))
+                url = args[++i];
+            else if (args[i].equals("-s"))
+                size = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-r"))
+                rateMB = Double.parseDouble(args[++i]);
+            else if (args[i].equals("-t"))
+                seconds = Double.parseDouble(args[++i]);
+            else if (args[i].equals("-n"))
+                nchannels = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-R"))
+                rotateMB = Double.parseDouble(args[++i]);
+            else
+                dir = new File(args[i]);
+        }
+
+        String prefix = new File(dir, "lcm-logger-stress-"+System.nanoTime()).getPath();
+
+        Logger logger = new Logger(prefix);
+        logger.setExclude("STRESS_EXCLUDED");
+        logger.setRotateSize((long) (rotateMB * 1.0E6));
+
+        LCM recv = new LCM(url);
+        recv.subscribe("STRESS.*", logger);
+        LCM pub = new LCM(url);
+
+        String channels[] = new String[nchannels];
+        for (int i = 0; i < nchannels; i++)
+            channels[i] = "STRESS_"+i;
+
+        // each message starts with its sequence number on its channel.
+        byte data[] = new byte[Math.max(size, 8)];
+        long seqs[] = new long[nchannels];
+        long npublished = 0, nexcluded = 0;
+
+        double bytesPerNano = rateMB * 1.0E6 / 1.0E9;
+        long t0 = System.nanoTime();
+        long tend = t0 + (long) (seconds * 1.0E9);
+        long now = t0;
+
+        for (long n = 0; now < tend; n++) {
+            if ((n & 15) == 15) {
+                pub.publish("STRESS_EXCLUDED", data, 0, size);
+                nexcluded++;
+            } else {
+                int c = (int) (n % nchannels);
+                long seq = seqs[c]++;
+                for (int i = 0; i < 8; i++)
+                    data[i] = (byte) (seq >>> (56 - 8*i));
+                pub.publish(channels[c], data, 0, size);
+                npublished++;
+            }
+
+            now = System.nanoTime();
+            if (bytesPerNano > 0) {
+                // sleep rather than spin when well ahead, to leave the
+                // CPU to the logger.
+                long due = t0 + (long) ((n + 1) * size / bytesPerNano);
+                if (due - now > 100000)
+                    LockSupport.parkNanos(due - now);
+                while (now < due)
+                    now = System.nanoTime();
+            }
+        }
+        double dt = (now - t0) / 1.0E9;
+
+        Thread.sleep(500);
+        recv.close();
+        pub.close();
+        logger.close();
+
+        // read back every file and check that sequence numbers only go up.
+        int nfiles = 0, nout_of_order = 0;
+        long nread = 0, nreadBytes = 0;
+        long lastSeq[] = new long[nchannels];
+        Arrays.fill(lastSeq, -1);
+
+        for (int i = 0; ; i++) {
+            File f = new File(String.format("%s.%02d", prefix, i));
+            if (!f.exists())
+                break;
+            nfiles++;
+
+            Log log = new Log(f.getPath(), "r");
+            try {
+                while (true) {
+                    Log.Event e = log.readNext();
+                    int c = Integer.parseInt(e.channel.substring(7));
+                    long seq = 0;
+                    for (int j = 0; j < 8; j++)
+                        seq = (seq << 8) | (e.data[j] & 0xff);
+                    if (seq <= lastSeq[c])
+                        nout_of_order++;
+                    lastSeq[c] = seq;
+                    nread++;
+                    nreadBytes += e.data.length;
+                }
+            } catch (EOFException ex) {
+            }
+            log.close();
+            f.delete();
+        }
+
+        long nreceived = logger.getNumReceived();
+
+        System.out.printf("published  %10d msgs of %d bytes in %.2f s: %.1f MB/s, %.0f msgs/s (+%d excluded)\n",
+                          npublished, size, dt, npublished * (double) size / dt / 1.0E6, npublished / dt, nexcluded);
+        System.out.printf("received   %10d msgs (%d lost before the logger), %d excluded\n",
+                          nreceived, npublished - nreceived, logger.getNumExcluded());
+        System.out.printf("written    %10d msgs, %d dropped, %d errors, %d files\n",
+                          logger.getNumWritten(), logger.getNumDropped(), logger.getNumErrors(), logger.getNumFiles());
+        System.out.printf("read back  %10d msgs, %.1f MB, %d files, %d out of order\n",
+                          nread, nreadBytes / 1.0E6, nfiles, nout_of_order);
+
+        boolean ok = logger.getNumDropped() == 0 && nread == nreceived && nout_of_order == 0;
+        System.out.println(ok ? "logger kept up" : "LOGGER FELL BEHIND");
+    }
+}
@@ -0,0 +1,149 @@
+package lcm.util;
+
+import java.lang.management.*;
+import java.util.*;
+
+/** Minimal harness for the micro-benchmarks that ship with LCM. A
+ * task is run for a warmup period and then for a measurement period
+ * on one or more threads; the harness reports operations per second
+ * and, when the JVM supports it, bytes allocated per operation.
+ **/
+public class Benchmark
+{
+    /** A single benchmark operation. run() is called repeatedly,
+     * possibly from several threads at once.
+     **/
+    public interface Task
+    {
+        public void run() throws Exception;
+    }
+
+    /** Result of a single measurement. **/
+    public static class Result
+    {
+        public String name;
+        public int    nthreads;
+        public long   ops;
+        public double seconds;
+        public long   allocatedBytes; // -1 if unavailable
+
+        public double opsPerSecond()
+        {
+            return ops / seconds;
+        }
+
+        public double bytesPerOp()
+        {
+            if (allocatedBytes < 0 || ops == 0)
+                return -1;
+            return allocatedBytes / (double) ops;
+        }
+
+        public String toString()
+        {
+            return String.format("%-40s %2d thr %14.1f ops/s %12.1f B/op",
+                                 name, nthreads, opsPerSecond(), bytesPerOp());
+        }
+    }
+
+    static double warmupSeconds = 1.0;
+    static double measureSeconds = 2.0;
+
+    /** Override the default warmup and measurement durations. **/
+    public static void setDurations(double warmup, double measure)
+    {
+        warmupSeconds = warmup;
+        measureSeconds = measure;
+    }
+
+    /** Returns the number of bytes allocated so far by the calling
+     * thread, or -1 if the JVM does not expose this counter.
+     **/
+    public static long threadAllocatedBytes()
+    {
+        ThreadMXBean tmx = ManagementFactory.getThreadMXBean();
+        if (tmx instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean stmx = (com.sun.management.ThreadMXBean) tmx;
+            if (stmx.isThreadAllocatedMemorySupported() && stmx.isThreadAllocatedMemoryEnabled())
+                return stmx.getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    /** Run the task on the calling thread and print the result. **/
+    public static Result run(String name, Task task)
+    {
+        return run(name, 1, task);
+    }
+
+    /** Run the task concurrently on nthreads threads and print the
+     * aggregate result.
+     **/
+    public static Result run(String name, int nthreads, final Task task)
+    {
+        runFor(nthreads, task, warmupSeconds);
+
+        Result r = runFor(nthreads, task, measureSeconds);
+        r.name = name;
+        System.out.println(r);
+        return r;
+    }
+
+    static Result runFor(int nthreads, final Task task, double seconds)
+    {
+        final long deadline = System.nanoTime() + (long) (seconds*1E9);
+        final long ops[] = new long[nthreads];
+        final long allocs[] = new long[nthreads];
+        final Throwable errors[] = new Throwable[nthreads];
+
+        Thread threads[] = new Thread[nthreads];
+        for (int i = 0; i < nthreads; i++) {
+            final int idx = i;
+            threads[i] = new Thread() {
+                public void run()
+                {
+                    long a0 = threadAllocatedBytes();
+                    long n = 0;
+                    try {
+                        // check the clock only every 64 operations
+                        while (System.nanoTime() < deadline) {
+                            for (int j = 0; j < 64; j++)
+                                task.run();
+                            n += 64;
+                        }
+                    } catch (Throwable t) {
+                        errors[idx] = t;
+                    }
+                    long a1 = threadAllocatedBytes();
+                    ops[idx] = n;
+                    allocs[idx] = (a0 < 0 || a1 < 0) ? -1 : a1 - a0;
+                }
+            };
+        }
+
+        long t0 = System.nanoTime();
+        for (Thread t : threads)
+            t.start();
+        for (Thread t : threads) {
+            try {
+                t.join();
+            } catch (InterruptedException ex) {
+            }
+        }
+        long t1 = System.nanoTime();
+
+        Result r = new Result();
+        r.nthreads = nthreads;
+        r.seconds = (t1 - t0) / 1E9;
+        for (int i = 0; i < nthreads; i++) {
+            if (errors[i] != null)
+                throw new RuntimeException("Benchmark task failed", errors[i]);
+            r.ops += ops[i];
+            if (allocs[i] < 0 || r.allocatedBytes < 0)
+                r.allocatedBytes = -1;
+            else
+                r.allocatedBytes += allocs[i];
+        }
+        return r;
+    }
+}